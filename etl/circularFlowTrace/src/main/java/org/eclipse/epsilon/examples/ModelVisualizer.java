@@ -6,19 +6,58 @@ import java.awt.Font;
 import java.awt.FontMetrics;
 import java.awt.Graphics2D;
 import java.awt.Polygon;
+import java.awt.Rectangle;
 import java.awt.RenderingHints;
+import java.awt.font.FontRenderContext;
+import java.awt.geom.Path2D;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferInt;
+import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.LinkedHashSet;
 import java.util.Objects;
-
-import javax.imageio.ImageIO;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
 
 import org.eclipse.emf.common.util.URI;
 import org.eclipse.emf.ecore.EAttribute;
@@ -28,9 +67,11 @@ import org.eclipse.emf.ecore.EEnumLiteral;
 import org.eclipse.emf.ecore.EObject;
 import org.eclipse.emf.ecore.EPackage;
 import org.eclipse.emf.ecore.EReference;
+import org.eclipse.emf.ecore.InternalEObject;
 import org.eclipse.emf.ecore.resource.Resource;
 import org.eclipse.emf.ecore.resource.ResourceSet;
 import org.eclipse.emf.ecore.resource.impl.ResourceSetImpl;
+import org.eclipse.emf.ecore.util.EcoreUtil;
 import org.eclipse.emf.ecore.xmi.impl.XMIResourceFactoryImpl;
 import org.eclipse.emf.emfatic.core.EmfaticResourceFactory;
 import org.eclipse.epsilon.flexmi.FlexmiResourceFactory;
@@ -46,26 +87,148 @@ public final class ModelVisualizer {
     private static final int ROOT_SPACING = 90;
     private static final int MARGIN = 60;
 
+    // Edges are drawn with arrowheads and diamonds around their end points;
+    // this is how far (in pixels) any of those can reach beyond the end points.
+    private static final int EDGE_SLACK = 24;
+    private static final int NODE_SLACK = 2;
+    private static final int MIN_CELL_SIZE = 128;
+
+    // Automatic level of detail: diagrams with more nodes than this lose their attribute lines,
+    // respectively their titles, and text is not drawn once it would be smaller than this many pixels.
+    private static final int FULL_DETAIL_NODE_LIMIT = 2_000;
+    private static final int TITLE_DETAIL_NODE_LIMIT = 20_000;
+    private static final int MIN_TEXT_HEIGHT = 4;
+    private static final int BOX_NODE_WIDTH = 80;
+
+    // Above this many bytes the whole-canvas BufferedImage is not worth attempting (1 byte per
+    // pixel with a palette, 4 in truecolor), so rendering switches to streaming strips automatically.
+    private static final long MAX_BUFFERED_BYTES = 1L << 28;
+    private static final int DEFAULT_STRIP_HEIGHT = 256;
+    private static final int DEFAULT_TILE_HEIGHT = 128;
+    private static final int DEFAULT_PYRAMID_TILE_SIZE = 256;
+    private static final long DEFAULT_LAYOUT_BUDGET_MILLIS = 500;
+    private static final double PACKED_ROOT_ASPECT_RATIO = 16.0 / 9.0;
+    private static final int DEFAULT_MAX_VALUE_ELEMENTS = 100;
+    private static final int DEFAULT_MAX_VALUE_LENGTH = 1_000;
+    private static final int DEFAULT_WRAP_LENGTH = 120;
+    private static final int DEFAULT_FOCUS_HOPS = 2;
+    private static final String ELLIPSIS = "...";
+    private static final String WRAP_INDENT = "    ";
+
+    // The font Graphics2D starts out with; edge labels are derived from it.
+    private static final Font LABEL_FONT = new Font(Font.DIALOG, Font.PLAIN, 12).deriveFont(Font.PLAIN, 14f);
+
+    // Drawing resources shared by all nodes and edges, so that painting allocates none per element
+    private static final Color BACKGROUND_COLOR = new Color(0xF5, 0xF5, 0xF5);
+    private static final Color CONTAINMENT_COLOR = new Color(120, 120, 120);
+    private static final Color EDGE_COLOR = new Color(90, 90, 90);
+    private static final Color NODE_BODY_COLOR = Color.WHITE;
+    private static final Color NODE_BORDER_COLOR = Color.BLACK;
+    private static final Color NODE_BODY_TEXT_COLOR = Color.BLACK;
+    private static final BasicStroke EDGE_STROKE = new BasicStroke(2f);
+    private static final BasicStroke DASHED_EDGE_STROKE = new BasicStroke(2f, BasicStroke.CAP_ROUND,
+            BasicStroke.JOIN_ROUND, 10f, new float[] { 10f, 10f }, 0f);
+    private static final BasicStroke NODE_BORDER_STROKE = new BasicStroke(1.5f);
+    private static final BasicStroke NODE_SEPARATOR_STROKE = new BasicStroke(1f);
+    private static final NodeStyle DEFAULT_STYLE = NodeStyle.of(new Color(232, 242, 250));
+    private static final NodeStyle PROXY_STYLE = NodeStyle.of(new Color(224, 224, 224));
+    private static final NodeStyle SUMMARY_STYLE = NodeStyle.of(new Color(240, 240, 240));
+
+    // Shared by all renders in this JVM: titles and attribute lines repeat across nodes and models
+    private static final TextWidthCache TEXT_WIDTHS = new TextWidthCache();
+
     private ModelVisualizer() {
     }
 
     public static void main(String[] args) throws Exception {
-        if (args.length < 1) {
-            System.err.println("Usage: ModelVisualizer <file.emf|file.xmi|file.flexmi|file.ecore> [output.png]");
+        RenderOptions options = RenderOptions.defaults();
+        List<String> files = new ArrayList<>();
+        boolean statistics = false;
+        for (String arg : args) {
+            if ("--stats".equals(arg)) {
+                statistics = true;
+            } else if (arg.startsWith("--")) {
+                options.apply(arg);
+            } else {
+                files.add(arg);
+            }
+        }
+
+        if (files.isEmpty()) {
+            System.err.println("Usage: ModelVisualizer [options] <file.emf|file.xmi|file.flexmi|file.ecore> [output.png|output.svg]");
             System.err.println("   (if output file is omitted, it will be derived from the input file name)");
+            System.err.println("   (an output file ending in .svg is written as SVG instead of PNG)");
+            System.err.println("   (with --pyramid the output is a directory of tiles)");
+            System.err.println("Options:");
+            System.err.println("   --streaming          render in horizontal strips straight to the PNG encoder");
+            System.err.println("   --strip-height=<px>  height of a streaming strip (default " + DEFAULT_STRIP_HEIGHT + ")");
+            System.err.println("   --threads=<n>        rasterize tiles on n threads (default: available processors)");
+            System.err.println("   --tile-height=<px>   height of a parallel tile (default " + DEFAULT_TILE_HEIGHT + ")");
+            System.err.println("   --viewport=x,y,w,h   only render this region of the diagram (in diagram pixels)");
+            System.err.println("   --scale=<factor>     scale the rendered region (default 1.0)");
+            System.err.println("   --detail=<level>     full, title or box (default: chosen from the node count)");
+            System.err.println("   --layout=<engine>    subtree, tidy or layered (default: layered for metamodels, subtree for models)");
+            System.err.println("   --layout-budget=<ms> time the layered layout may spend reducing crossings (default " + DEFAULT_LAYOUT_BUDGET_MILLIS + ")");
+            System.err.println("   --pack               pack the trees onto shelves close to a 16/9 rectangle instead of a single row");
+            System.err.println("   --root-aspect=<w/h>  pack the trees to this width-to-height ratio instead, or row for a single row (default)");
+            System.err.println("   --layout-cache       keep the tree layouts in <output>.layout, so that rendering the model");
+            System.err.println("                        again only lays out the trees that changed");
+            System.err.println("   --routing=<routing>  straight from side to side (default), or orthogonal around the nodes");
+            System.err.println("   --no-resolve         draw references into other resources as stubs instead of loading them");
+            System.err.println("   --max-children=<n>   show at most n children per containment and sum up the rest in one node");
+            System.err.println("   --max-children=<Class.reference>=<n>  the same for one containment, e.g. Consumer.orders=10");
+            System.err.println("   --max-values=<n>     show at most n values of a multi-valued attribute (default " + DEFAULT_MAX_VALUE_ELEMENTS + ")");
+            System.err.println("   --max-value-length=<chars>  cut attribute values off after this many characters (default " + DEFAULT_MAX_VALUE_LENGTH + ")");
+            System.err.println("   --wrap=<chars>       wrap attribute lines longer than this, or 0 to never wrap (default " + DEFAULT_WRAP_LENGTH + ")");
+            System.err.println("   --focus=<selector>   only render the elements near one element of a model, selected as");
+            System.err.println("                        Class.attribute=value (e.g. Return.id=R-1042) or by URI fragment");
+            System.err.println("   --hops=<k>           how many containment or reference steps away from the focus to render (default " + DEFAULT_FOCUS_HOPS + ")");
+            System.err.println("   --pyramid            write a deep-zoom tile pyramid instead of a single image");
+            System.err.println("   --pyramid-tile-size=<px>  edge length of a pyramid tile (default " + DEFAULT_PYRAMID_TILE_SIZE + ")");
+            System.err.println("   --indexed            write PNGs with a palette of the diagram colors, one byte per pixel");
+            System.err.println("   --deflate-level=<n>  PNG compression from 0 (fastest) to 9 (smallest) (default 6)");
+            System.err.println("   --png-filter=<type>  none, sub, up, average, paeth or adaptive (default: none with a palette,");
+            System.err.println("                        adaptive in truecolor)");
+            System.err.println("   --stats              print text measurement cache statistics");
             return;
         }
 
-        File inputFile = new File(args[0]);
-        File pngFile = args.length > 1 ? new File(args[1]) : derivePngFile(inputFile);
+        File inputFile = new File(files.get(0));
+        File pngFile = files.size() > 1 ? new File(files.get(1))
+                : options.pyramid ? derivePyramidDirectory(inputFile) : derivePngFile(inputFile);
 
-        render(inputFile, pngFile);
+        render(inputFile, pngFile, options);
         System.out.println("Diagram exported to: " + pngFile.getAbsolutePath());
+        if (statistics) {
+            System.out.println(textWidthStatistics());
+        }
     }
 
     public static void render(File inputFile, File outputFile) throws Exception {
+        render(inputFile, outputFile, RenderOptions.defaults());
+    }
+
+    /**
+     * Renders only the part of the diagram inside {@code viewport}, given in the pixel coordinates
+     * of the full diagram, magnified by {@code scale}. The whole model is still laid out, but only
+     * nodes and edges that reach into the viewport are drawn.
+     */
+    public static void render(File inputFile, File outputFile, Rectangle viewport, double scale) throws Exception {
+        render(inputFile, outputFile, RenderOptions.defaults().viewport(viewport).scale(scale));
+    }
+
+    /**
+     * Describes how the text measurements of all renders so far were served: from the width
+     * cache, summed from a per-font advance table, or measured by the font metrics.
+     */
+    public static String textWidthStatistics() {
+        return TEXT_WIDTHS.statistics();
+    }
+
+    public static void render(File inputFile, File outputFile, RenderOptions options) throws Exception {
         Objects.requireNonNull(inputFile, "inputFile");
         Objects.requireNonNull(outputFile, "outputFile");
+        Objects.requireNonNull(options, "options");
 
         ResourceSet resourceSet = new ResourceSetImpl();
         registerFactories(resourceSet);
@@ -90,43 +253,71 @@ public final class ModelVisualizer {
             registerPackagesFromResource(resourceSet, resource);
         }
 
-        Map<EObject, DiagramNode> nodeIndex = new IdentityHashMap<>();
-        Map<String, Color> colorIndex = new HashMap<>();
-        List<DiagramNode> roots = new ArrayList<>();
-        
+        ForkJoinPool pool = options.threads > 1 ? new ForkJoinPool(options.threads) : null;
+        try {
+            DiagramGraph graph = buildGraph(resource, isMetamodel, options, pool);
+            if (graph.size == 0) {
+                throw new IllegalArgumentException("No root objects found to render in file: " + inputFile.getName());
+            }
+            Layout layout = options.layout != null ? options.layout : isMetamodel ? Layout.LAYERED : Layout.SUBTREE;
+            renderDiagram(graph, outputFile, options, detail(options, graph.elementCount), layout, pool);
+        } finally {
+            if (pool != null) {
+                pool.shutdown();
+            }
+        }
+    }
+
+    /** The level of detail of {@code options}, or the one for {@code elementCount} nodes if it is automatic. */
+    private static Detail detail(RenderOptions options, int elementCount) {
+        return options.detail != null ? options.detail : Detail.forNodeCount(elementCount);
+    }
+
+    /**
+     * Builds the nodes and edges of the diagram of {@code resource}. The model elements are only
+     * tracked while this runs: the graph numbers its nodes and keeps no reference to the model.
+     */
+    private static DiagramGraph buildGraph(Resource resource, boolean isMetamodel, RenderOptions options,
+            ForkJoinPool pool) {
+        GraphBuilder builder = new GraphBuilder();
+        Map<String, NodeStyle> styleIndex = new HashMap<>();
+        Map<EClass, ClassPlan> plans = new IdentityHashMap<>();
+
         if (isMetamodel) {
             // For metamodels: visualize EClasses with their attributes and references
             for (EObject rootObject : resource.getContents()) {
                 if (rootObject instanceof EPackage ePackage) {
-                    buildMetamodelNodes(ePackage, roots, nodeIndex, colorIndex);
+                    buildMetamodelNodes(ePackage, builder, styleIndex);
                 }
             }
         } else {
-            // For models: visualize instances with their values
-            for (EObject rootObject : resource.getContents()) {
-                roots.add(buildModelNode(rootObject, nodeIndex, colorIndex));
+            // For models: visualize instances with their values, or only those near the focus
+            Set<EObject> scope = options.focus != null
+                    ? collectNeighbourhood(resource, selectElement(resource, options.focus), options.focusHops)
+                    : null;
+            for (EObject rootObject : scope != null ? neighbourhoodRoots(scope) : resource.getContents()) {
+                buildModelNode(rootObject, builder, styleIndex, plans, options, scope);
             }
         }
 
-        if (roots.isEmpty()) {
-            throw new IllegalArgumentException("No root objects found to render in file: " + inputFile.getName());
-        }
-
-        List<DiagramEdge> containmentEdges = collectContainmentEdges(roots);
-        List<DiagramEdge> crossReferences = collectCrossReferences(nodeIndex);
-        
-        // Separate containment edges from other edges
-        List<DiagramEdge> containmentRefs = new ArrayList<>();
-        List<DiagramEdge> otherRefs = new ArrayList<>();
-        for (DiagramEdge edge : crossReferences) {
-            if (edge.containment()) {
-                containmentRefs.add(edge);
-            } else {
-                otherRefs.add(edge);
+        if (!isMetamodel && detail(options, builder.elementCount()) == Detail.FULL) {
+            Map<String, String> lineTable = new HashMap<>();
+            for (int v = 0; v < builder.size(); v++) {
+                if (builder.plan(v) != null) {
+                    addAttributeLines(builder, v, lineTable, options);
+                }
             }
         }
 
-        renderDiagram(roots, containmentEdges, containmentRefs, otherRefs, outputFile);
+        EdgeTable.Builder containmentRefs = new EdgeTable.Builder();
+        EdgeTable.Builder references = new EdgeTable.Builder();
+        if (isMetamodel) {
+            collectMetamodelReferences(builder, containmentRefs, references);
+        } else {
+            // Each proxy stub is a tree of its own, after the model, so the nodes stay in pre-order
+            collectModelReferences(builder, references, options.resolveProxies ? null : new HashMap<>(), pool);
+        }
+        return builder.build(containmentRefs, references);
     }
 
     private static String getFileExtension(String fileName) {
@@ -186,152 +377,401 @@ public final class ModelVisualizer {
         }
     }
 
-    private static void buildMetamodelNodes(EPackage ePackage, List<DiagramNode> roots,
-            Map<EObject, DiagramNode> index, Map<String, Color> colorIndex) {
-        // Process all EClasses in this package and subpackages
-        for (EClass eClass : ePackage.getEClassifiers().stream()
-                .filter(EClass.class::isInstance)
-                .map(EClass.class::cast)
-                .toList()) {
-            DiagramNode classNode = buildMetamodelClassNode(eClass, index, colorIndex);
-            roots.add(classNode);
-        }
-        
-        // Process all EEnums in this package and subpackages
-        for (EEnum eEnum : ePackage.getEClassifiers().stream()
-                .filter(EEnum.class::isInstance)
-                .map(EEnum.class::cast)
-                .toList()) {
-            DiagramNode enumNode = buildMetamodelEnumNode(eEnum, index, colorIndex);
-            roots.add(enumNode);
-        }
-        
-        // Process subpackages
-        for (EPackage subPackage : ePackage.getESubpackages()) {
-            buildMetamodelNodes(subPackage, roots, index, colorIndex);
+    private static void buildMetamodelNodes(EPackage rootPackage, GraphBuilder builder,
+            Map<String, NodeStyle> styleIndex) {
+        // Packages are visited in pre-order from an explicit stack, however deeply they are nested
+        Deque<EPackage> packages = new ArrayDeque<>();
+        packages.push(rootPackage);
+        while (!packages.isEmpty()) {
+            EPackage ePackage = packages.pop();
+
+            // Process all EClasses in this package
+            for (EClass eClass : ePackage.getEClassifiers().stream()
+                    .filter(EClass.class::isInstance)
+                    .map(EClass.class::cast)
+                    .toList()) {
+                buildMetamodelClassNode(eClass, builder, styleIndex);
+            }
+
+            // Process all EEnums in this package
+            for (EEnum eEnum : ePackage.getEClassifiers().stream()
+                    .filter(EEnum.class::isInstance)
+                    .map(EEnum.class::cast)
+                    .toList()) {
+                buildMetamodelEnumNode(eEnum, builder, styleIndex);
+            }
+
+            // Subpackages come next, in their original order
+            List<EPackage> subPackages = ePackage.getESubpackages();
+            for (int i = subPackages.size() - 1; i >= 0; i--) {
+                packages.push(subPackages.get(i));
+            }
         }
     }
 
-    private static DiagramNode buildMetamodelClassNode(EClass eClass, Map<EObject, DiagramNode> index,
-            Map<String, Color> colorIndex) {
-        if (index.containsKey(eClass)) {
-            return index.get(eClass);
+    private static void buildMetamodelClassNode(EClass eClass, GraphBuilder builder,
+            Map<String, NodeStyle> styleIndex) {
+        if (builder.id(eClass) >= 0) {
+            return;
         }
 
-        DiagramNode node = new DiagramNode();
-        node.eObject = eClass;
-        node.title = eClass.getName();
-        node.fillColor = lookupColor(eClass.getName(), colorIndex);
+        int node = builder.add(eClass, null, eClass.getName(), lookupStyle(eClass.getName(), styleIndex), -1);
 
         // Add only attributes (references are shown as edges, not in the node)
+        List<String> lines = new ArrayList<>();
         for (EAttribute attribute : eClass.getEAllAttributes()) {
             String typeName = attribute.getEType().getName();
             String multiplicity = attribute.getUpperBound() == -1 ? "[*]" : 
                 attribute.getLowerBound() == attribute.getUpperBound() ? 
                     "[" + attribute.getLowerBound() + "]" : 
                     "[" + attribute.getLowerBound() + ".." + attribute.getUpperBound() + "]";
-            node.lines.add(attribute.getName() + ": " + typeName + multiplicity);
+            lines.add(attribute.getName() + ": " + typeName + multiplicity);
         }
-
-        index.put(eClass, node);
-        return node;
+        builder.addLines(node, lines);
     }
 
-    private static DiagramNode buildMetamodelEnumNode(EEnum eEnum, Map<EObject, DiagramNode> index,
-            Map<String, Color> colorIndex) {
-        if (index.containsKey(eEnum)) {
-            return index.get(eEnum);
+    private static void buildMetamodelEnumNode(EEnum eEnum, GraphBuilder builder,
+            Map<String, NodeStyle> styleIndex) {
+        if (builder.id(eEnum) >= 0) {
+            return;
         }
 
-        DiagramNode node = new DiagramNode();
-        node.eObject = eEnum;
-        node.title = eEnum.getName();
-        node.fillColor = lookupColor(eEnum.getName(), colorIndex);
+        int node = builder.add(eEnum, null, eEnum.getName(), lookupStyle(eEnum.getName(), styleIndex), -1);
 
         // Add enum literals
+        List<String> lines = new ArrayList<>();
         for (EEnumLiteral literal : eEnum.getELiterals()) {
-            node.lines.add(literal.getName());
+            lines.add(literal.getName());
         }
-
-        index.put(eEnum, node);
-        return node;
+        builder.addLines(node, lines);
     }
 
-    private static DiagramNode buildModelNode(EObject eObject, Map<EObject, DiagramNode> index,
-            Map<String, Color> colorIndex) {
-        if (index.containsKey(eObject)) {
-            return index.get(eObject);
+    /**
+     * Builds the nodes of {@code root} and everything it contains. The containment tree is walked
+     * with an explicit stack of child iterators, so models of any depth can be built; nodes are
+     * still created in pre-order, which is the order classifiers are assigned their colors in.
+     * Children beyond the limits of {@code options} are only counted, into a summary node, and
+     * children outside {@code scope} are left out unless it is {@code null}. Elements that already
+     * have a node are not built again.
+     */
+    private static void buildModelNode(EObject root, GraphBuilder builder, Map<String, NodeStyle> styleIndex,
+            Map<EClass, ClassPlan> plans, RenderOptions options, Set<EObject> scope) {
+        if (builder.id(root) >= 0) {
+            return;
         }
 
-        DiagramNode node = new DiagramNode();
-        node.eObject = eObject;
-        node.title = ":" + eObject.eClass().getName();
-        node.fillColor = lookupColor(eObject.eClass().getName(), colorIndex);
-
-        for (EAttribute attribute : eObject.eClass().getEAllAttributes()) {
-            Object value = eObject.eGet(attribute);
-            if (value == null) {
+        int rootNode = createModelNode(root, -1, builder, styleIndex, plans, options);
+        Deque<ContainmentFrame> stack = new ArrayDeque<>();
+        stack.push(new ContainmentFrame(rootNode, contentsToBuild(root, builder.plan(rootNode), scope)));
+        while (!stack.isEmpty()) {
+            ContainmentFrame frame = stack.peek();
+            if (!frame.children().hasNext()) {
+                stack.pop();
                 continue;
             }
-            String rendered = renderAttributeValue(value);
-            if (rendered.isEmpty()) {
+            Object next = frame.children().next();
+            if (next instanceof OmittedChildren omitted) {
+                createSummaryNode(omitted, frame.node(), builder);
+                continue;
+            }
+            EObject child = (EObject) next;
+            if ((scope != null && !scope.contains(child)) || builder.id(child) >= 0) {
+                continue;
+            }
+            int childNode = createModelNode(child, frame.node(), builder, styleIndex, plans, options);
+            stack.push(new ContainmentFrame(childNode, contentsToBuild(child, builder.plan(childNode), scope)));
+        }
+    }
+
+    /**
+     * The element {@code selector} picks. With an {@code =} it is the first element, in model
+     * order, of the class named before the dot (or a subclass) whose attribute named after the dot
+     * has the value after the {@code =}, as in {@code Return.id=R-1042}; otherwise the selector is
+     * the URI fragment of the element.
+     */
+    private static EObject selectElement(Resource resource, String selector) {
+        int equals = selector.indexOf('=');
+        if (equals == -1) {
+            EObject element = resource.getEObject(selector);
+            if (element == null) {
+                throw new IllegalArgumentException("No element at URI fragment: " + selector);
+            }
+            return element;
+        }
+        int dot = selector.lastIndexOf('.', equals);
+        if (dot == -1) {
+            throw new IllegalArgumentException("Expected Class.attribute=value or a URI fragment but got: " + selector);
+        }
+        String className = selector.substring(0, dot);
+        String attributeName = selector.substring(dot + 1, equals);
+        String value = selector.substring(equals + 1);
+        for (Iterator<EObject> contents = resource.getAllContents(); contents.hasNext();) {
+            EObject element = contents.next();
+            if (!isKindOf(element.eClass(), className)) {
                 continue;
             }
-            node.lines.add(attribute.getName() + " = " + rendered);
+            for (EAttribute attribute : element.eClass().getEAllAttributes()) {
+                if (attribute.getName().equals(attributeName) && value.equals(String.valueOf(element.eGet(attribute)))) {
+                    return element;
+                }
+            }
+        }
+        throw new IllegalArgumentException("No element matches: " + selector);
+    }
+
+    private static boolean isKindOf(EClass eClass, String className) {
+        if (eClass.getName().equals(className)) {
+            return true;
+        }
+        for (EClass superType : eClass.getESuperTypes()) {
+            if (isKindOf(superType, className)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The elements of {@code resource} at most {@code hops} steps away from {@code focus}, in the
+     * order a breadth-first search reaches them. A step goes to the container, to a contained
+     * element, or to an element that refers to or is referred to by the last one. References are
+     * read without resolving proxies, and the ones into the current elements are found by a pass
+     * over the resource per step, so that nothing is kept per element outside the neighbourhood.
+     */
+    private static Set<EObject> collectNeighbourhood(Resource resource, EObject focus, int hops) {
+        Set<EObject> found = new LinkedHashSet<>();
+        found.add(focus);
+        List<EObject> frontier = List.of(focus);
+        for (int hop = 0; hop < hops && !frontier.isEmpty(); hop++) {
+            List<EObject> next = new ArrayList<>();
+            for (EObject element : frontier) {
+                reach(element.eContainer(), resource, found, next);
+                for (EObject child : element.eContents()) {
+                    reach(child, resource, found, next);
+                }
+                for (EReference reference : element.eClass().getEAllReferences()) {
+                    if (!reference.isContainment() && !reference.isContainer()) {
+                        for (Object target : referenceTargets(element, reference)) {
+                            reach((EObject) target, resource, found, next);
+                        }
+                    }
+                }
+            }
+
+            Set<EObject> targets = Collections.newSetFromMap(new IdentityHashMap<>());
+            targets.addAll(frontier);
+            for (Iterator<EObject> contents = resource.getAllContents(); contents.hasNext();) {
+                EObject source = contents.next();
+                if (found.contains(source)) {
+                    continue;
+                }
+                incoming:
+                for (EReference reference : source.eClass().getEAllReferences()) {
+                    if (!reference.isContainment() && !reference.isContainer()) {
+                        for (Object target : referenceTargets(source, reference)) {
+                            if (targets.contains(target)) {
+                                reach(source, resource, found, next);
+                                break incoming;
+                            }
+                        }
+                    }
+                }
+            }
+            frontier = next;
+        }
+        return found;
+    }
+
+    private static void reach(EObject element, Resource resource, Set<EObject> found, List<EObject> next) {
+        if (element != null && !element.eIsProxy() && element.eResource() == resource && found.add(element)) {
+            next.add(element);
         }
+    }
+
+    /** What {@code source} refers to through {@code reference}, read without resolving proxies. */
+    private static Collection<?> referenceTargets(EObject source, EReference reference) {
+        Object value = source.eGet(reference, false);
+        return value instanceof Collection<?> collection ? collection : value == null ? List.of() : List.of(value);
+    }
 
-        index.put(eObject, node);
-        for (EObject child : eObject.eContents()) {
-            DiagramNode childNode = buildModelNode(child, index, colorIndex);
-            childNode.parent = node;
-            childNode.containmentName = child.eContainmentFeature() != null ? child.eContainmentFeature().getName() : "";
-            node.children.add(childNode);
+    /** The elements of {@code scope} that are not contained in another one, in the order of {@code scope}. */
+    private static List<EObject> neighbourhoodRoots(Set<EObject> scope) {
+        List<EObject> roots = new ArrayList<>();
+        for (EObject element : scope) {
+            if (!scope.contains(element.eContainer())) {
+                roots.add(element);
+            }
         }
+        return roots;
+    }
 
-        return node;
+    private static int createModelNode(EObject eObject, int parent, GraphBuilder builder,
+            Map<String, NodeStyle> styleIndex, Map<EClass, ClassPlan> plans, RenderOptions options) {
+        ClassPlan plan = lookupPlan(eObject.eClass(), plans, styleIndex, options);
+        return builder.add(eObject, plan, plan.title(), plan.style(), parent);
     }
 
-    private static String renderAttributeValue(Object value) {
-        if (value instanceof Collection<?> collection) {
-            List<String> parts = new ArrayList<>();
-            for (Object element : collection) {
-                if (element != null) {
-                    parts.add(element.toString());
+    /**
+     * The contents of a model element to build nodes for. A containment with more children than
+     * its limit in the plan gives its first children followed by an {@link OmittedChildren} for
+     * the rest, which are never visited. With a {@code scope}, only the children in it count
+     * towards the limit and the summary, so an element in scope is not cut off by the ones outside.
+     */
+    private static Iterator<?> contentsToBuild(EObject eObject, ClassPlan plan, Set<EObject> scope) {
+        if (plan.childLimits() == null) {
+            return eObject.eContents().iterator();
+        }
+        List<Object> contents = new ArrayList<>();
+        EReference[] containments = plan.containments();
+        for (int i = 0; i < containments.length; i++) {
+            Object value = eObject.eGet(containments[i]);
+            if (value instanceof List<?> children) {
+                int limit = plan.childLimits()[i];
+                int count = 0;
+                for (Object child : children) {
+                    if (scope == null || scope.contains(child)) {
+                        if (count < limit) {
+                            contents.add(child);
+                        } else if (scope == null) {
+                            count = children.size();
+                            break;
+                        }
+                        count++;
+                    }
+                }
+                if (count > limit) {
+                    contents.add(new OmittedChildren(containments[i], count - limit));
                 }
+            } else if (value != null) {
+                contents.add(value);
+            }
+        }
+        return contents.iterator();
+    }
+
+    /** The children of a containment that are left out of the diagram, by their number. */
+    private record OmittedChildren(EReference reference, int count) {
+    }
+
+    /** A node standing in for omitted children, such as {@code +9,990 more Order}. */
+    private static int createSummaryNode(OmittedChildren omitted, int parent, GraphBuilder builder) {
+        String title = String.format(Locale.ROOT, "+%,d more %s", omitted.count(),
+                omitted.reference().getEReferenceType().getName());
+        return builder.add(null, null, title, SUMMARY_STYLE, parent);
+    }
+
+    /**
+     * Adds a line per set attribute to the node of a model element. This is done once the level of
+     * detail is known, so that attribute values are not rendered to strings when they are hidden.
+     * Lines that are already in {@code lineTable} are shared rather than kept once per node, and
+     * values are rendered within the limits of {@code options}.
+     */
+    private static void addAttributeLines(GraphBuilder builder, int node, Map<String, String> lineTable,
+            RenderOptions options) {
+        EObject eObject = builder.eObject(node);
+        ClassPlan plan = builder.plan(node);
+        EAttribute[] attributes = plan.attributes();
+        List<String> lines = new ArrayList<>(attributes.length);
+        for (int i = 0; i < attributes.length; i++) {
+            Object value = eObject.eGet(attributes[i]);
+            if (value == null) {
+                continue;
+            }
+            String rendered = renderAttributeValue(value, options.maxValueElements, options.maxValueLength);
+            if (rendered.isEmpty()) {
+                continue;
+            }
+            addWrapped(plan.linePrefixes()[i] + rendered, options.wrapLength, lines, lineTable);
+        }
+        builder.addLines(node, lines);
+    }
+
+    /**
+     * Renders an attribute value in at most {@code maxLength} characters, and a collection by at
+     * most {@code maxElements} of its elements, without rendering the elements beyond either
+     * limit. A value that is cut off ends in an ellipsis, for a collection followed by its size.
+     */
+    private static String renderAttributeValue(Object value, int maxElements, int maxLength) {
+        StringBuilder text = new StringBuilder();
+        if (!(value instanceof Collection<?> collection)) {
+            return appendBounded(text, value.toString(), maxLength) ? text.toString() : text.append(ELLIPSIS).toString();
+        }
+        int shown = 0;
+        for (Object element : collection) {
+            if (element == null) {
+                continue;
+            }
+            if (shown == maxElements || shown > 0 && !appendBounded(text, ", ", maxLength)
+                    || !appendBounded(text, element.toString(), maxLength)) {
+                return text.append(ELLIPSIS).append(String.format(Locale.ROOT, " (%,d values)", collection.size()))
+                        .toString();
             }
-            return String.join(", ", parts);
+            shown++;
         }
-        return value.toString();
+        return text.toString();
     }
 
-    private static List<DiagramEdge> collectContainmentEdges(List<DiagramNode> roots) {
-        List<DiagramEdge> edges = new ArrayList<>();
-        for (DiagramNode root : roots) {
-            collectContainmentEdges(root, edges);
+    /** Appends as much of {@code part} as fits into {@code maxLength} characters; false if not all of it. */
+    private static boolean appendBounded(StringBuilder text, String part, int maxLength) {
+        int room = maxLength - text.length();
+        if (part.length() <= room) {
+            text.append(part);
+            return true;
         }
-        return edges;
+        text.append(part, 0, Math.max(room, 0));
+        return false;
     }
 
-    private static void collectContainmentEdges(DiagramNode node, List<DiagramEdge> edges) {
-        for (DiagramNode child : node.children) {
-            edges.add(DiagramEdge.of(node, child, child.containmentName, false));
-            collectContainmentEdges(child, edges);
+    /**
+     * Adds {@code line} to {@code lines}, broken into pieces of at most {@code width} characters,
+     * at a space in the second half of a piece where there is one; the pieces after the first are
+     * indented. A {@code width} of {@code 0} never breaks.
+     */
+    private static void addWrapped(String line, int width, List<String> lines, Map<String, String> lineTable) {
+        if (width == 0 || line.length() <= width) {
+            lines.add(intern(line, lineTable));
+            return;
+        }
+        int start = 0;
+        String indent = "";
+        while (line.length() - start > width - indent.length()) {
+            int limit = start + width - indent.length();
+            int end = line.lastIndexOf(' ', limit);
+            if (end <= start + (width - indent.length()) / 2) {
+                end = limit;
+            }
+            lines.add(intern(indent + line.substring(start, end), lineTable));
+            start = end;
+            while (start < line.length() && line.charAt(start) == ' ') {
+                start++;
+            }
+            indent = WRAP_INDENT;
         }
+        if (start < line.length()) {
+            lines.add(intern(indent + line.substring(start), lineTable));
+        }
+    }
+
+    /** The equal line already in {@code lineTable}, so that nodes showing the same line share it. */
+    private static String intern(String line, Map<String, String> lineTable) {
+        String interned = lineTable.putIfAbsent(line, line);
+        return interned != null ? interned : line;
     }
 
-    private static List<DiagramEdge> collectCrossReferences(Map<EObject, DiagramNode> index) {
-        List<DiagramEdge> edges = new ArrayList<>();
-        for (Map.Entry<EObject, DiagramNode> entry : index.entrySet()) {
-            EObject source = entry.getKey();
-            DiagramNode sourceNode = entry.getValue();
-            
-            // Handle metamodel (EClass) references
-            if (source instanceof EClass sourceClass) {
+    /**
+     * Adds the containments between the classifiers of a metamodel to {@code containmentRefs}, and
+     * the generalizations, other references and enum-typed attributes to {@code references}, in
+     * the order of the nodes.
+     */
+    private static void collectMetamodelReferences(GraphBuilder builder, EdgeTable.Builder containmentRefs,
+            EdgeTable.Builder references) {
+        for (int sourceNode = 0; sourceNode < builder.size(); sourceNode++) {
+            if (builder.eObject(sourceNode) instanceof EClass sourceClass) {
                 // Add generalization edges (supertypes)
                 for (EClass superType : sourceClass.getESuperTypes()) {
-                    DiagramNode targetNode = index.get(superType);
-                    if (targetNode != null) {
-                        edges.add(DiagramEdge.of(sourceNode, targetNode, "", false)); // Generalization without label
+                    int targetNode = builder.id(superType);
+                    if (targetNode >= 0) {
+                        references.add(sourceNode, targetNode, "", false); // Generalization without label
                     }
                 }
                 
@@ -339,14 +779,14 @@ public final class ModelVisualizer {
                 for (EReference reference : sourceClass.getEAllReferences()) {
                     if (reference.isContainment()) {
                         if (reference.getEType() instanceof EClass targetClass) {
-                            DiagramNode targetNode = index.get(targetClass);
-                            if (targetNode != null && !targetNode.equals(sourceNode)) {
+                            int targetNode = builder.id(targetClass);
+                            if (targetNode >= 0 && targetNode != sourceNode) {
                                 String multiplicity = reference.getUpperBound() == -1 ? "[*]" : 
                                     reference.getLowerBound() == reference.getUpperBound() ? 
                                         "[" + reference.getLowerBound() + "]" : 
                                         "[" + reference.getLowerBound() + ".." + reference.getUpperBound() + "]";
                                 String label = reference.getName() + ": " + targetClass.getName() + multiplicity;
-                                edges.add(DiagramEdge.ofContainment(sourceNode, targetNode, label));
+                                containmentRefs.add(sourceNode, targetNode, label, false);
                             }
                         }
                     }
@@ -356,24 +796,24 @@ public final class ModelVisualizer {
                 for (EReference reference : sourceClass.getEAllReferences()) {
                     if (!reference.isContainment()) {
                         if (reference.getEType() instanceof EClass targetClass) {
-                            DiagramNode targetNode = index.get(targetClass);
-                            if (targetNode != null && !targetNode.equals(sourceNode)) {
+                            int targetNode = builder.id(targetClass);
+                            if (targetNode >= 0 && targetNode != sourceNode) {
                                 String multiplicity = reference.getUpperBound() == -1 ? "[*]" : 
                                     reference.getLowerBound() == reference.getUpperBound() ? 
                                         "[" + reference.getLowerBound() + "]" : 
                                         "[" + reference.getLowerBound() + ".." + reference.getUpperBound() + "]";
                                 String label = reference.getName() + ": " + targetClass.getName() + multiplicity;
-                                edges.add(DiagramEdge.of(sourceNode, targetNode, label, true));
+                                references.add(sourceNode, targetNode, label, true);
                             }
                         } else if (reference.getEType() instanceof EEnum targetEnum) {
-                            DiagramNode targetNode = index.get(targetEnum);
-                            if (targetNode != null) {
+                            int targetNode = builder.id(targetEnum);
+                            if (targetNode >= 0) {
                                 String multiplicity = reference.getUpperBound() == -1 ? "[*]" : 
                                     reference.getLowerBound() == reference.getUpperBound() ? 
                                         "[" + reference.getLowerBound() + "]" : 
                                         "[" + reference.getLowerBound() + ".." + reference.getUpperBound() + "]";
                                 String label = reference.getName() + ": " + targetEnum.getName() + multiplicity;
-                                edges.add(DiagramEdge.of(sourceNode, targetNode, label, true));
+                                references.add(sourceNode, targetNode, label, true);
                             }
                         }
                     }
@@ -382,49 +822,82 @@ public final class ModelVisualizer {
                 // Also add edges for attributes that reference enums
                 for (EAttribute attribute : sourceClass.getEAllAttributes()) {
                     if (attribute.getEType() instanceof EEnum targetEnum) {
-                        DiagramNode targetNode = index.get(targetEnum);
-                        if (targetNode != null) {
+                        int targetNode = builder.id(targetEnum);
+                        if (targetNode >= 0) {
                             String multiplicity = attribute.getUpperBound() == -1 ? "[*]" : 
                                 attribute.getLowerBound() == attribute.getUpperBound() ? 
                                     "[" + attribute.getLowerBound() + "]" : 
                                     "[" + attribute.getLowerBound() + ".." + attribute.getUpperBound() + "]";
                             String label = attribute.getName() + ": " + targetEnum.getName() + multiplicity;
-                            edges.add(DiagramEdge.of(sourceNode, targetNode, label, true));
+                            references.add(sourceNode, targetNode, label, true);
                         }
                     }
                 }
-            } else {
-                // Handle model instance references
-                EClass eClass = source.eClass();
-                for (EReference reference : eClass.getEAllReferences()) {
-                    if (reference.isContainment()) {
-                        continue;
-                    }
-                    Object value = source.eGet(reference);
-                    if (value instanceof EObject target) {
-                        DiagramNode targetNode = index.get(target);
-                        if (targetNode != null) {
-                            edges.add(DiagramEdge.of(sourceNode, targetNode, reference.getName(), true));
-                        }
-                    } else if (value instanceof Collection<?> collection) {
-                        for (Object element : collection) {
-                            if (element instanceof EObject target) {
-                                DiagramNode targetNode = index.get(target);
-                                if (targetNode != null) {
-                                    edges.add(DiagramEdge.of(sourceNode, targetNode, reference.getName(), true));
-                                }
-                            }
-                        }
-                    }
+            }
+        }
+    }
+
+    /**
+     * Adds the references between the model elements of {@code builder} to {@code edges}, in the
+     * order of their nodes. Ranges of nodes are collected on the threads of {@code pool} if there
+     * is one, each into its own buffer, and the buffers are joined in the order of the ranges, so
+     * the edges come out the same on any number of threads. Workers read references without
+     * resolving proxies, because resolving may load resources into the resource set, which is not
+     * safe to do concurrently; the proxies they find are resolved here afterwards, range by range.
+     * With {@code proxyStubs} they are not resolved at all: references to them end at a stub node
+     * per proxy URI, which is added to the builder as a root of its own and to {@code proxyStubs},
+     * so that no other resource is ever loaded. The lists of many-valued references are created
+     * before the workers start, see {@link #createReferenceLists}.
+     */
+    private static void collectModelReferences(GraphBuilder builder, EdgeTable.Builder edges,
+            Map<String, Integer> proxyStubs, ForkJoinPool pool) {
+        CrossReferenceTask task = new CrossReferenceTask(builder, 0, builder.size());
+        if (pool != null) {
+            createReferenceLists(builder);
+            pool.invoke(task);
+        } else {
+            task.collect();
+        }
+        task.join(edges, builder, proxyStubs);
+    }
+
+    /**
+     * Reads every many-valued reference of the model nodes once, on the calling thread. EMF creates
+     * the list of such a feature on its first {@code eGet} and stores it in the object without any
+     * synchronization; with the lists created before the pool starts, workers only read them.
+     */
+    private static void createReferenceLists(GraphBuilder builder) {
+        for (int node = 0; node < builder.size(); node++) {
+            ClassPlan plan = builder.plan(node);
+            if (plan == null) {
+                continue; // a summary of omitted children
+            }
+            EObject eObject = builder.eObject(node);
+            for (EReference reference : plan.references()) {
+                if (reference.isMany()) {
+                    eObject.eGet(reference, false);
                 }
             }
         }
-        return edges;
     }
 
-    private static void renderDiagram(List<DiagramNode> roots, List<DiagramEdge> containments,
-            List<DiagramEdge> containmentRefs, List<DiagramEdge> references, File output) throws IOException {
-        if (roots.isEmpty()) {
+    /** A node standing in for an unresolved proxy, titled with the URI of the object it refers to. */
+    private static int createProxyStub(EObject proxy, GraphBuilder builder) {
+        return builder.add(null, null, ((InternalEObject) proxy).eProxyURI().toString(), PROXY_STYLE, -1);
+    }
+
+    /** A reference to a proxy, found by a worker and left for the calling thread to resolve. */
+    private record ProxyReference(int source, EReference reference, EObject proxy) {
+    }
+
+    /**
+     * Lays out and renders the diagram. Nodes are numbered in pre-order, so measuring and layout
+     * are passes over number ranges instead of recursions over the trees. Work that can be spread
+     * over threads runs on {@code pool} if there is one.
+     */
+    private static void renderDiagram(DiagramGraph graph, File output, RenderOptions options, Detail detail,
+            Layout layout, ForkJoinPool pool) throws IOException {
+        if (graph.size == 0) {
             throw new IllegalArgumentException("No root objects found to render.");
         }
 
@@ -437,304 +910,753 @@ public final class ModelVisualizer {
         FontMetrics titleMetrics = scratchGraphics.getFontMetrics(titleFont);
         FontMetrics bodyMetrics = scratchGraphics.getFontMetrics(bodyFont);
 
-        for (DiagramNode root : roots) {
-            measureNode(root, titleMetrics, bodyMetrics);
+        Consumer<int[]> measure = nodes -> measureNodes(graph, nodes, titleMetrics, bodyMetrics, detail, pool);
+        if (layout == Layout.LAYERED) {
+            measure.accept(null);
+            LayeredLayout.layout(graph, options.layoutBudgetMillis);
+        } else {
+            LayoutCache cache = options.layoutCache
+                    ? LayoutCache.load(layoutCacheFile(output), layout, detail, titleMetrics, bodyMetrics)
+                    : null;
+            layoutTrees(graph, layout.engine, measure, cache, options.rootAspectRatio);
+            if (cache != null) {
+                cache.save();
+            }
         }
 
-        int totalWidth = 0;
-        int maxHeight = 0;
-        for (DiagramNode root : roots) {
-            totalWidth += root.subtreeWidth;
-            maxHeight = Math.max(maxHeight, root.subtreeHeight);
+        Rectangle diagramBounds = bounds(graph, 0, graph.size);
+        for (int v = 0; v < graph.size; v++) {
+            graph.x[v] += MARGIN - diagramBounds.x;
+            graph.y[v] += MARGIN - diagramBounds.y;
         }
-        totalWidth += ROOT_SPACING * (roots.size() - 1);
+        int imageWidth = diagramBounds.width + MARGIN * 2;
+        int imageHeight = diagramBounds.height + MARGIN * 2;
 
-        int imageWidth = totalWidth + MARGIN * 2;
-        int imageHeight = maxHeight + MARGIN * 2;
+        FontMetrics labelMetrics = scratchGraphics.getFontMetrics(LABEL_FONT);
+        scratchGraphics.dispose();
+        IndexedPalette palette = options.indexedColor ? IndexedPalette.of(graph.styles) : null;
+        Rectangle viewport = options.viewport != null ? options.viewport : new Rectangle(0, 0, imageWidth, imageHeight);
+        View view = new View(viewport, options.scale);
 
-        BufferedImage image = new BufferedImage(imageWidth, imageHeight, BufferedImage.TYPE_INT_ARGB);
-        Graphics2D g = image.createGraphics();
-        configureGraphics(g);
-        g.setColor(Color.decode("#F5F5F5"));
-        g.fillRect(0, 0, imageWidth, imageHeight);
+        int[][] routes = options.edgeRouting == EdgeRouting.ORTHOGONAL
+                ? OrthogonalRouter.route(graph, imageWidth, imageHeight, pool)
+                : straightRoutes(graph);
+        EdgeLabels labels = detail == Detail.BOX ? EdgeLabels.none(routes.length)
+                : LabelPlacer.place(graph, routes, labelMetrics);
+        SpatialIndex index = SpatialIndex.build(graph, routes, labels, imageWidth, imageHeight);
+        DiagramScene scene = new DiagramScene(graph, routes, labels, imageWidth, imageHeight, titleFont, bodyFont,
+                titleMetrics, bodyMetrics, index, detail, palette);
 
-        int cursorX = MARGIN;
-        int startY = MARGIN;
-        for (DiagramNode root : roots) {
-            layoutNode(root, cursorX, startY);
-            cursorX += root.subtreeWidth + ROOT_SPACING;
+        if (!options.pyramid && isSvgFile(output)) {
+            writeSvg(scene, view, output);
+        } else if (options.pyramid) {
+            writeTilePyramid(scene, view, output, options, pool);
+        } else if (options.streaming
+                || (long) view.width() * view.height() * (palette != null ? 1 : 4) > MAX_BUFFERED_BYTES) {
+            writeStreamingPng(scene, view, output, options, pool);
+        } else {
+            BufferedImage image = createImage(scene, view.width(), view.height());
+            paintArea(image, scene, view, 0, options.tileHeight, pool);
+            writePng(image, output, scene, options);
         }
+    }
 
-        g.setStroke(new BasicStroke(2f));
-        g.setColor(new Color(120, 120, 120));
-        for (DiagramEdge edge : containments) {
-            drawContainment(g, edge);
+    /**
+     * Measures and lays out every containment tree with {@code engine} and packs the trees' bounding
+     * boxes with {@link #packBoxes}. Each tree is a contiguous range of node numbers. With a
+     * {@code cache}, trees it holds with the same text are neither measured nor laid out again, and
+     * trees whose nodes measure the same as a cached one reuse its layout. All trees are measured
+     * in one call to {@code measure}, with the nodes to measure or {@code null} for all of them,
+     * before any of them is laid out.
+     */
+    private static void layoutTrees(DiagramGraph graph, LayoutEngine engine, Consumer<int[]> measure,
+            LayoutCache cache, double aspectRatio) {
+        int[] roots = graph.roots;
+        long[] contentHashes = new long[roots.length];
+        boolean[] restored = new boolean[roots.length];
+        int[] unmeasured = cache == null ? null : new int[graph.size];
+        int unmeasuredCount = 0;
+        for (int i = 0; i < roots.length && cache != null; i++) {
+            int root = roots[i];
+            contentHashes[i] = cache.contentHash(graph, root);
+            restored[i] = cache.restore(graph, root, contentHashes[i]);
+            if (!restored[i]) {
+                for (int v = root; v < root + graph.subtreeSizes[root]; v++) {
+                    unmeasured[unmeasuredCount++] = v;
+                }
+            }
         }
+        measure.accept(unmeasured == null ? null : Arrays.copyOf(unmeasured, unmeasuredCount));
 
-        // Draw containment references with diamond shapes
-        g.setStroke(new BasicStroke(2f));
-        g.setColor(new Color(90, 90, 90));
-        for (DiagramEdge edge : containmentRefs) {
-            drawContainmentReference(g, edge);
+        List<Rectangle> boxes = new ArrayList<>(roots.length);
+        for (int i = 0; i < roots.length; i++) {
+            int root = roots[i];
+            int end = root + graph.subtreeSizes[root];
+            if (!restored[i] && (cache == null || !cache.restoreLayout(graph, root))) {
+                engine.layout(graph, root);
+            }
+            Rectangle bounds = bounds(graph, root, end);
+            for (int v = root; v < end; v++) {
+                graph.x[v] -= bounds.x;
+                graph.y[v] -= bounds.y;
+            }
+            if (cache != null) {
+                cache.add(graph, root, contentHashes[i]);
+            }
+            boxes.add(new Rectangle(bounds.width, bounds.height));
         }
-
-        // Draw references - generalization (solid) vs associations (dashed)
-        g.setColor(new Color(90, 90, 90));
-        for (DiagramEdge edge : references) {
-            if (edge.dashed()) {
-                // Association: dashed line
-                g.setStroke(new BasicStroke(2f, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND, 10f, new float[] { 10f, 10f }, 0f));
-            } else {
-                // Generalization: solid line
-                g.setStroke(new BasicStroke(2f));
+        packBoxes(boxes, aspectRatio);
+        for (int i = 0; i < roots.length; i++) {
+            Rectangle box = boxes.get(i);
+            for (int v = roots[i]; v < roots[i] + graph.subtreeSizes[roots[i]]; v++) {
+                graph.x[v] += box.x;
+                graph.y[v] += box.y;
             }
-            drawReference(g, edge);
         }
+    }
 
-        for (DiagramNode root : roots) {
-            drawNode(g, root, titleFont, bodyFont, titleMetrics, bodyMetrics);
+    /**
+     * Places boxes of the given sizes on shelves, first fit by decreasing height, on a strip wide
+     * enough for the packing to come out at about {@code aspectRatio} (width by height). Every
+     * shelf is as high as its first and tallest box, so little more than the boxes' own area is
+     * left empty. A ratio of {@code 0} lines the boxes up in one row, in their original order.
+     */
+    private static void packBoxes(List<Rectangle> boxes, double aspectRatio) {
+        if (aspectRatio == 0) {
+            int x = 0;
+            for (Rectangle box : boxes) {
+                box.setLocation(x, 0);
+                x += box.width + ROOT_SPACING;
+            }
+            return;
         }
 
-        g.dispose();
-        ImageIO.write(image, "PNG", output);
-    }
+        double area = 0;
+        int widest = 0;
+        for (Rectangle box : boxes) {
+            area += (double) (box.width + ROOT_SPACING) * (box.height + ROOT_SPACING);
+            widest = Math.max(widest, box.width);
+        }
+        double stripWidth = Math.max(widest, Math.sqrt(area * aspectRatio) - ROOT_SPACING);
 
-    private static void measureNode(DiagramNode node, FontMetrics titleMetrics, FontMetrics bodyMetrics) {
-        int titleWidth = titleMetrics.stringWidth(node.title);
-        int maxLineWidth = titleWidth;
-        for (String line : node.lines) {
-            maxLineWidth = Math.max(maxLineWidth, bodyMetrics.stringWidth(line));
+        List<Rectangle> byHeight = new ArrayList<>(boxes);
+        byHeight.sort(Comparator.comparingInt((Rectangle box) -> box.height).reversed());
+        int[] shelfTop = new int[boxes.size()];
+        int[] shelfUsed = new int[boxes.size()];
+        int shelves = 0;
+        int nextTop = 0;
+        for (Rectangle box : byHeight) {
+            int shelf = 0;
+            while (shelf < shelves && shelfUsed[shelf] + box.width > stripWidth) {
+                shelf++;
+            }
+            if (shelf == shelves) {
+                shelfTop[shelves++] = nextTop;
+                nextTop += box.height + ROOT_SPACING;
+            }
+            box.setLocation(shelfUsed[shelf], shelfTop[shelf]);
+            shelfUsed[shelf] += box.width + ROOT_SPACING;
         }
-        node.width = maxLineWidth + H_PADDING * 2;
+    }
 
-        int titleHeight = titleMetrics.getHeight();
-        int bodyHeight = node.lines.isEmpty() ? 0
-                : node.lines.size() * bodyMetrics.getHeight() + (node.lines.size() - 1) * LINE_SPACING;
-        node.height = V_PADDING * 2 + titleHeight + (node.lines.isEmpty() ? 0 : HEADER_GAP + bodyHeight);
+    /**
+     * Rasterizes the diagram one horizontal strip at a time and hands every strip to a scanline
+     * PNG encoder, so that only {@code stripHeight} rows of pixels are ever held in memory.
+     */
+    private static void writeStreamingPng(DiagramScene scene, View view, File output, RenderOptions options,
+            ForkJoinPool pool) throws IOException {
+        int height = Math.min(options.stripHeight, view.height());
+        BufferedImage strip = createImage(scene, view.width(), height);
 
-        int childrenWidth = 0;
-        int maxChildHeight = 0;
-        for (DiagramNode child : node.children) {
-            measureNode(child, titleMetrics, bodyMetrics);
-            childrenWidth += child.subtreeWidth;
-            maxChildHeight = Math.max(maxChildHeight, child.subtreeHeight);
-        }
-        if (!node.children.isEmpty()) {
-            childrenWidth += SIBLING_SPACING * (node.children.size() - 1);
+        try (PngStripEncoder encoder = createPngEncoder(output, view.width(), view.height(), scene, options)) {
+            for (int top = 0; top < view.height(); top += height) {
+                int rows = Math.min(height, view.height() - top);
+                paintArea(strip, scene, view, top, options.tileHeight, pool);
+                encoder.writeRows(strip, rows);
+            }
+            encoder.finish();
         }
+    }
 
-        node.subtreeWidth = Math.max(node.width, childrenWidth);
-        node.subtreeHeight = node.height;
-        if (!node.children.isEmpty()) {
-            node.subtreeHeight += LEVEL_SPACING + maxChildHeight;
+    private static void writePng(BufferedImage image, File output, DiagramScene scene, RenderOptions options)
+            throws IOException {
+        try (PngStripEncoder encoder = createPngEncoder(output, image.getWidth(), image.getHeight(), scene, options)) {
+            encoder.writeRows(image, image.getHeight());
+            encoder.finish();
         }
     }
 
-    private static void layoutNode(DiagramNode node, int x, int y) {
-        node.x = x + (node.subtreeWidth - node.width) / 2;
-        node.y = y;
+    private static PngStripEncoder createPngEncoder(File output, int width, int height, DiagramScene scene,
+            RenderOptions options) throws IOException {
+        return new PngStripEncoder(new BufferedOutputStream(new FileOutputStream(output)), width, height,
+                scene.palette() != null ? scene.palette().colorModel() : null, options.deflateLevel, options.pngFilter);
+    }
+
+    /** An image to paint {@code scene} into: indexed when the scene has a palette, truecolor otherwise. */
+    private static BufferedImage createImage(DiagramScene scene, int width, int height) {
+        return scene.palette() != null
+                ? new BufferedImage(width, height, BufferedImage.TYPE_BYTE_INDEXED, scene.palette().colorModel())
+                : new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+    }
 
-        if (node.children.isEmpty()) {
-            return;
+    /**
+     * Writes the view as a deep-zoom pyramid into the directory {@code output}. The last level is
+     * the view at full resolution and every level before it is half the size of the next, down to
+     * the first one that fits in a single tile. Tiles are stored as
+     * {@code <level>/<column>_<row>.png} and described by {@code pyramid.json}.
+     *
+     * <p>Each tile is rendered on its own from the shared layout, so with a pool the tiles of all
+     * levels are painted concurrently and only one tile per worker is held in memory.
+     */
+    private static void writeTilePyramid(DiagramScene scene, View view, File output, RenderOptions options,
+            ForkJoinPool pool) throws IOException {
+        int tileSize = options.pyramidTileSize;
+        int levels = 1;
+        while (Math.max(view.width(), view.height()) > (long) tileSize << (levels - 1)) {
+            levels++;
         }
 
-        int childX = x + (node.subtreeWidth - totalChildrenWidth(node)) / 2;
-        int childY = node.y + node.height + LEVEL_SPACING;
-        for (DiagramNode child : node.children) {
-            layoutNode(child, childX, childY);
-            childX += child.subtreeWidth + SIBLING_SPACING;
+        List<View> levelViews = new ArrayList<>();
+        List<PyramidTile> tiles = new ArrayList<>();
+        for (int level = 0; level < levels; level++) {
+            View levelView = new View(view.viewport(), view.scale() / (1L << (levels - 1 - level)));
+            levelViews.add(levelView);
+            File directory = new File(output, String.valueOf(level));
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Cannot create tile directory " + directory);
+            }
+            for (int top = 0; top < levelView.height(); top += tileSize) {
+                for (int left = 0; left < levelView.width(); left += tileSize) {
+                    tiles.add(new PyramidTile(levelView, new File(directory, left / tileSize + "_" + top / tileSize + ".png"),
+                            new Rectangle(left, top, Math.min(tileSize, levelView.width() - left),
+                                    Math.min(tileSize, levelView.height() - top))));
+                }
+            }
         }
-    }
 
-    private static int totalChildrenWidth(DiagramNode node) {
-        if (node.children.isEmpty()) {
-            return 0;
+        if (pool == null) {
+            for (PyramidTile tile : tiles) {
+                writePyramidTile(scene, tile, options);
+            }
+        } else {
+            try {
+                pool.invoke(new PyramidTask(scene, options, tiles, 0, tiles.size()));
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
         }
-        int width = 0;
-        for (DiagramNode child : node.children) {
-            width += child.subtreeWidth;
+
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(new File(output, "pyramid.json")), StandardCharsets.UTF_8))) {
+            out.write("{\n  \"format\": \"png\",\n  \"tileSize\": " + tileSize + ",\n  \"width\": " + view.width()
+                    + ",\n  \"height\": " + view.height() + ",\n  \"levels\": [\n");
+            for (int level = 0; level < levels; level++) {
+                View levelView = levelViews.get(level);
+                out.write("    { \"level\": " + level + ", \"scale\": " + levelView.scale() + ", \"width\": "
+                        + levelView.width() + ", \"height\": " + levelView.height() + ", \"columns\": "
+                        + (levelView.width() + tileSize - 1) / tileSize + ", \"rows\": "
+                        + (levelView.height() + tileSize - 1) / tileSize + " }" + (level + 1 < levels ? "," : "") + "\n");
+            }
+            out.write("  ]\n}\n");
         }
-        width += SIBLING_SPACING * (node.children.size() - 1);
-        return width;
     }
 
-    private static void drawContainment(Graphics2D g, DiagramEdge edge) {
-        DiagramNode parent = edge.source();
-        DiagramNode child = edge.target();
-        drawArrow(g, parent.getBottomCenterX(), parent.getBottomCenterY(), child.getTopCenterX(), child.y);
+    private static void writePyramidTile(DiagramScene scene, PyramidTile tile, RenderOptions options)
+            throws IOException {
+        Rectangle region = tile.region();
+        BufferedImage image = createImage(scene, region.width, region.height);
+        paintRegion(image, scene, tile.view(), region.x, region.y);
+        writePng(image, tile.file(), scene, options);
     }
 
-    private static void drawContainmentReference(Graphics2D g, DiagramEdge edge) {
-        DiagramNode source = edge.source();
-        DiagramNode target = edge.target();
-        int x1 = source.getRightCenterX();
-        int y1 = source.getRightCenterY();
-        int x2 = target.getLeftCenterX();
-        int y2 = target.getLeftCenterY();
+    /**
+     * Writes the laid-out diagram as SVG in one pass over the scene, in the same order and with the
+     * same geometry as {@link #paintScene}. Elements go straight to the writer without building a
+     * document tree, so memory use does not grow with the size of the output.
+     */
+    private static void writeSvg(DiagramScene scene, View view, File output) throws IOException {
+        Rectangle viewport = view.viewport();
+        int[] visible = scene.index().query(viewport);
+        int i = 0;
+        // A vector image stays legible when zoomed, so only the level of detail of the layout applies
+        Detail detail = scene.detail();
+        DiagramGraph graph = scene.graph();
+        try (Writer out = new BufferedWriter(
+                new OutputStreamWriter(new FileOutputStream(output), StandardCharsets.UTF_8), 1 << 16)) {
+            out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+            out.write("<svg xmlns=\"http://www.w3.org/2000/svg\" width=\"" + view.width() + "\" height=\""
+                    + view.height() + "\" viewBox=\"" + viewport.x + " " + viewport.y + " " + viewport.width + " "
+                    + viewport.height + "\">\n");
+            out.write("<rect x=\"" + viewport.x + "\" y=\"" + viewport.y + "\" width=\"" + viewport.width
+                    + "\" height=\"" + viewport.height + "\" fill=\"" + svgColor(BACKGROUND_COLOR) + "\"/>\n");
 
-        // Draw line from source to target
-        g.drawLine(x1, y1, x2, y2);
-        
-        // Draw diamond at source end
-        int diamondSize = 10;
-        double angle = Math.atan2(y2 - y1, x2 - x1);
-        int diamondX = (int) (x1 + diamondSize * Math.cos(angle));
-        int diamondY = (int) (y1 + diamondSize * Math.sin(angle));
-        
-        Polygon diamond = new Polygon();
-        diamond.addPoint(diamondX, diamondY);
-        diamond.addPoint((int) (diamondX + diamondSize * Math.cos(angle - Math.PI / 2)), 
-                        (int) (diamondY + diamondSize * Math.sin(angle - Math.PI / 2)));
-        diamond.addPoint((int) (diamondX + diamondSize * Math.cos(angle - Math.PI)), 
-                        (int) (diamondY + diamondSize * Math.sin(angle - Math.PI)));
-        diamond.addPoint((int) (diamondX + diamondSize * Math.cos(angle + Math.PI / 2)), 
-                        (int) (diamondY + diamondSize * Math.sin(angle + Math.PI / 2)));
-        
-        g.fillPolygon(diamond);
-        g.drawPolygon(diamond);
-        
-        // Draw arrow at target end
-        drawArrowHead(g, x1, y1, x2, y2);
-        
-        // Draw label
-        if (!edge.label().isEmpty()) {
-            int labelX = (x1 + x2) / 2;
-            int labelY = (y1 + y2) / 2 - 6;
-            Font original = g.getFont();
-            g.setFont(original.deriveFont(Font.PLAIN, 14f));
-            g.drawString(edge.label(), labelX, labelY);
-            g.setFont(original);
+            out.write("<g stroke=\"" + svgColor(CONTAINMENT_COLOR) + "\" stroke-width=\"2\" fill=\""
+                    + svgColor(CONTAINMENT_COLOR) + "\">\n");
+            for (; i < visible.length && visible[i] < scene.firstContainmentRef(); i++) {
+                int child = visible[i];
+                int parent = graph.parents[child];
+                int x1 = graph.centerX(parent);
+                int y1 = graph.bottom(parent);
+                int x2 = graph.centerX(child);
+                int y2 = graph.y[child];
+                svgLine(out, x1, y1, x2, y2, "");
+                svgPolygon(out, arrowHead(x1, y1, x2, y2), " stroke=\"none\"");
+            }
+            out.write("</g>\n");
+
+            out.write("<g stroke=\"" + svgColor(EDGE_COLOR) + "\" stroke-width=\"2\" fill=\"" + svgColor(EDGE_COLOR)
+                    + "\" font-family=\"Dialog, sans-serif\" font-size=\"14\">\n");
+            for (; i < visible.length && visible[i] < scene.firstReference(); i++) {
+                int[] route = scene.route(visible[i]);
+                int n = route.length;
+                svgRoute(out, route, "");
+                svgPolygon(out, diamond(route[0], route[1], route[2], route[3]), "");
+                svgPolygon(out, arrowHead(route[n - 4], route[n - 3], route[n - 2], route[n - 1]), " stroke=\"none\"");
+                svgLabel(out, scene.labels(), visible[i] - scene.firstContainmentRef());
+            }
+            for (; i < visible.length && visible[i] < scene.firstNode(); i++) {
+                int reference = visible[i] - scene.firstReference();
+                int[] route = scene.route(visible[i]);
+                int n = route.length;
+                String dash = graph.references.dashed[reference]
+                        ? " stroke-dasharray=\"10 10\" stroke-linecap=\"round\" stroke-linejoin=\"round\""
+                        : "";
+                svgRoute(out, route, dash);
+                if (graph.references.isGeneralization(reference)) {
+                    svgPolygon(out, arrowHead(route[n - 4], route[n - 3], route[n - 2], route[n - 1]), " fill=\"#FFFFFF\"");
+                } else {
+                    svgPolygon(out, arrowHead(route[n - 4], route[n - 3], route[n - 2], route[n - 1]), " stroke=\"none\"");
+                    svgLabel(out, scene.labels(), visible[i] - scene.firstContainmentRef());
+                }
+            }
+            out.write("</g>\n");
+
+            FontMetrics titleMetrics = scene.titleMetrics();
+            FontMetrics bodyMetrics = scene.bodyMetrics();
+            out.write("<g font-family=\"SansSerif, sans-serif\" font-size=\"16\">\n");
+            for (; i < visible.length; i++) {
+                int node = visible[i] - scene.firstNode();
+                int x = graph.x[node];
+                int y = graph.y[node];
+                int width = graph.width[node];
+                int height = graph.height[node];
+                NodeStyle style = graph.styles[node] != null ? graph.styles[node] : DEFAULT_STYLE;
+                Color base = style.fill();
+                if (detail == Detail.BOX) {
+                    out.write("<rect x=\"" + x + "\" y=\"" + y + "\" width=\"" + width + "\" height=\""
+                            + height + "\" fill=\"" + svgColor(base) + "\" stroke=\"#000000\" stroke-width=\"1.5\"/>\n");
+                    continue;
+                }
+                int titleBottom = y + V_PADDING + titleMetrics.getHeight();
+                int headerHeight = V_PADDING + titleMetrics.getHeight();
+                out.write("<rect x=\"" + x + "\" y=\"" + y + "\" width=\"" + width + "\" height=\""
+                        + height + "\" fill=\"#FFFFFF\"/>\n");
+                out.write("<rect x=\"" + x + "\" y=\"" + y + "\" width=\"" + width + "\" height=\""
+                        + headerHeight + "\" fill=\"" + svgColor(base) + "\"/>\n");
+                out.write("<rect x=\"" + x + "\" y=\"" + y + "\" width=\"" + width + "\" height=\""
+                        + height + "\" fill=\"none\" stroke=\"#000000\" stroke-width=\"1.5\"/>\n");
+                if (detail == Detail.FULL && graph.lineCount(node) != 0) {
+                    svgLine(out, x, titleBottom, x + width, titleBottom,
+                            " stroke=\"#000000\" stroke-width=\"1\"");
+                }
+                int titleBaseline = y + V_PADDING + titleMetrics.getAscent();
+                svgText(out, x + (width - graph.titleWidth[node]) / 2, titleBaseline, graph.titles[node],
+                        " font-size=\"18\" font-weight=\"bold\" fill=\"" + svgColor(style.headerText()) + "\"");
+                if (detail != Detail.FULL) {
+                    continue;
+                }
+                int bodyBaseline = titleBottom + HEADER_GAP + bodyMetrics.getAscent();
+                for (int line = graph.lineStart[node]; line < graph.lineStart[node + 1]; line++) {
+                    svgText(out, x + H_PADDING, bodyBaseline, graph.lines[line], "");
+                    bodyBaseline += bodyMetrics.getHeight() + LINE_SPACING;
+                }
+            }
+            out.write("</g>\n");
+            out.write("</svg>\n");
         }
     }
 
-    private static void drawReference(Graphics2D g, DiagramEdge edge) {
-        DiagramNode source = edge.source();
-        DiagramNode target = edge.target();
-        
-        // For generalization (empty label), draw from bottom center to top center
-        boolean isGeneralization = edge.label().isEmpty() && !edge.dashed();
-        if (isGeneralization) {
-            int x1 = source.getBottomCenterX();
-            int y1 = source.getBottomCenterY();
-            int x2 = target.getTopCenterX();
-            int y2 = target.y;
-            
-            g.drawLine(x1, y1, x2, y2);
-            drawGeneralizationArrow(g, x1, y1, x2, y2);
-        } else {
-            // For associations, draw from side to side
-            int x1 = source.getRightCenterX();
-            int y1 = source.getRightCenterY();
-            int x2 = target.getLeftCenterX();
-            int y2 = target.getLeftCenterY();
+    private static boolean isSvgFile(File file) {
+        return "svg".equals(getFileExtension(file.getName()));
+    }
 
-            g.drawLine(x1, y1, x2, y2);
-            drawArrowHead(g, x1, y1, x2, y2);
+    private static void svgLine(Writer out, int x1, int y1, int x2, int y2, String attributes) throws IOException {
+        out.write("<line x1=\"" + x1 + "\" y1=\"" + y1 + "\" x2=\"" + x2 + "\" y2=\"" + y2 + "\"" + attributes + "/>\n");
+    }
 
-            if (!edge.label().isEmpty()) {
-                int labelX = (x1 + x2) / 2;
-                int labelY = (y1 + y2) / 2 - 6;
-                Font original = g.getFont();
-                g.setFont(original.deriveFont(Font.PLAIN, 14f));
-                g.drawString(edge.label(), labelX, labelY);
-                g.setFont(original);
+    /** Writes a route of two points as a line, longer ones as an unfilled polyline. */
+    private static void svgRoute(Writer out, int[] route, String attributes) throws IOException {
+        if (route.length == 4) {
+            svgLine(out, route[0], route[1], route[2], route[3], attributes);
+            return;
+        }
+        out.write("<polyline points=\"");
+        for (int i = 0; i < route.length; i += 2) {
+            if (i > 0) {
+                out.write(' ');
             }
+            out.write(route[i] + "," + route[i + 1]);
         }
+        out.write("\" fill=\"none\"" + attributes + "/>\n");
     }
 
-    private static void drawNode(Graphics2D g, DiagramNode node, Font titleFont, Font bodyFont, FontMetrics titleMetrics,
-            FontMetrics bodyMetrics) {
-        Color base = node.fillColor != null ? node.fillColor : new Color(232, 242, 250);
-        Color headerColor = base; // Use the base color for header
-        Color bodyColor = Color.WHITE; // White body section for attributes
-        Color borderColor = new Color(0, 0, 0); // Black border
-        Color headerTextColor = readableTextColor(headerColor);
-        Color bodyTextColor = new Color(0, 0, 0); // Black text for attributes
-
-        // Fill entire node with body color first
-        g.setColor(bodyColor);
-        g.fillRect(node.x, node.y, node.width, node.height);
+    private static void svgPolygon(Writer out, Polygon polygon, String attributes) throws IOException {
+        out.write("<polygon points=\"");
+        for (int i = 0; i < polygon.npoints; i++) {
+            if (i > 0) {
+                out.write(' ');
+            }
+            out.write(polygon.xpoints[i] + "," + polygon.ypoints[i]);
+        }
+        out.write("\"" + attributes + "/>\n");
+    }
 
-        // Draw header section with colored background
-        int titleBottom = node.y + V_PADDING + titleMetrics.getHeight();
-        int headerHeight = V_PADDING + titleMetrics.getHeight();
-        if (headerHeight > 0) {
-            g.setColor(headerColor);
-            g.fillRect(node.x, node.y, node.width, headerHeight);
+    private static void svgLabel(Writer out, EdgeLabels labels, int edge) throws IOException {
+        String text = labels.text(edge);
+        if (text != null) {
+            svgText(out, labels.x(edge), labels.baseline(edge), text, " stroke=\"none\"");
         }
+    }
 
-        // Draw border
-        g.setColor(borderColor);
-        g.setStroke(new BasicStroke(1.5f));
-        g.drawRect(node.x, node.y, node.width, node.height);
+    private static void svgText(Writer out, int x, int y, String text, String attributes) throws IOException {
+        out.write("<text x=\"" + x + "\" y=\"" + y + "\"" + attributes + ">");
+        svgEscape(out, text);
+        out.write("</text>\n");
+    }
 
-        // Draw separator line between header and body
-        if (!node.lines.isEmpty()) {
-            g.setColor(borderColor);
-            g.setStroke(new BasicStroke(1f));
-            g.drawLine(node.x, titleBottom, node.x + node.width, titleBottom);
+    /**
+     * Writes {@code text} so that it can stand in element content as well as in a quoted attribute.
+     * Control characters other than tab, line feed and carriage return are not allowed in XML 1.0
+     * at all and are left out.
+     */
+    private static void svgEscape(Writer out, String text) throws IOException {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '<' -> out.write("&lt;");
+                case '>' -> out.write("&gt;");
+                case '&' -> out.write("&amp;");
+                case '"' -> out.write("&quot;");
+                case '\t', '\n', '\r' -> out.write(c);
+                default -> {
+                    if (c >= 0x20) {
+                        out.write(c);
+                    }
+                }
+            }
         }
+    }
 
-        // Draw title
-        g.setFont(titleFont);
-        int titleBaseline = node.y + V_PADDING + titleMetrics.getAscent();
-        g.setColor(headerTextColor);
-        // Center the title
-        int titleWidth = titleMetrics.stringWidth(node.title);
-        g.drawString(node.title, node.x + (node.width - titleWidth) / 2, titleBaseline);
+    private static String svgColor(Color color) {
+        return String.format("#%02X%02X%02X", color.getRed(), color.getGreen(), color.getBlue());
+    }
 
-        // Draw body lines (attributes)
-        g.setFont(bodyFont);
-        g.setColor(bodyTextColor);
-        int bodyBaseline = titleBottom + HEADER_GAP + bodyMetrics.getAscent();
-        for (String line : node.lines) {
-            g.drawString(line, node.x + H_PADDING, bodyBaseline);
-            bodyBaseline += bodyMetrics.getHeight() + LINE_SPACING;
+    /**
+     * Paints the part of the view that starts at row {@code top} into {@code target}. Without a
+     * pool the area is painted in one go; otherwise it is cut into tiles that are rasterized
+     * concurrently, each through its own view of the shared pixel buffer.
+     *
+     * <p>Tiles always span the full width: the antialiasing rasterizer accumulates coverage along
+     * each scanline, so a vertical cut changes the edge pixels of long shallow lines, whereas a cut
+     * between rows leaves every pixel exactly as the sequential pass would paint it.
+     *
+     * <p>Indexed targets are cut into tiles even without a pool, because every tile is painted in
+     * truecolor first and that buffer should stay small.
+     */
+    private static void paintArea(BufferedImage target, DiagramScene scene, View view, int top, int tileHeight,
+            ForkJoinPool pool) {
+        int height = target.getHeight();
+        boolean indexed = target.getColorModel() instanceof IndexColorModel;
+        if ((pool == null && !indexed) || height <= 1) {
+            paintRegion(target, scene, view, 0, top);
+            return;
         }
 
-        // Draw children (for model instances)
-        for (DiagramNode child : node.children) {
-            drawNode(g, child, titleFont, bodyFont, titleMetrics, bodyMetrics);
+        // Keep every worker busy even when the area is a single streaming strip
+        int rows = pool == null ? tileHeight
+                : Math.max(1, Math.min(tileHeight, (height + pool.getParallelism() - 1) / pool.getParallelism()));
+        List<Rectangle> tiles = new ArrayList<>();
+        for (int y = 0; y < height; y += rows) {
+            tiles.add(new Rectangle(0, y, target.getWidth(), Math.min(rows, height - y)));
+        }
+        if (pool == null) {
+            for (Rectangle tile : tiles) {
+                paintRegion(target.getSubimage(tile.x, tile.y, tile.width, tile.height), scene, view, tile.x,
+                        top + tile.y);
+            }
+        } else {
+            pool.invoke(new TileTask(target, scene, view, top, tiles, 0, tiles.size()));
         }
     }
 
-    private static void drawArrow(Graphics2D g, int x1, int y1, int x2, int y2) {
-        g.drawLine(x1, y1, x2, y2);
-        drawArrowHead(g, x1, y1, x2, y2);
+    /** Paints the part of the view whose top left corner is at {@code (left, top)} into {@code target}. */
+    private static void paintRegion(BufferedImage target, DiagramScene scene, View view, int left, int top) {
+        if (target.getColorModel() instanceof IndexColorModel) {
+            // Java2D would blend into an indexed image through its colour model pixel by pixel, so
+            // the region is painted in truecolor and mapped onto the palette in one pass
+            BufferedImage truecolor = new BufferedImage(target.getWidth(), target.getHeight(),
+                    BufferedImage.TYPE_INT_RGB);
+            paintRegion(truecolor, scene, view, left, top);
+            scene.palette().quantize(truecolor, target);
+            return;
+        }
+        Graphics2D g = target.createGraphics();
+        g.translate(-left, -top);
+        g.scale(view.scale(), view.scale());
+        g.translate(-view.viewport().x, -view.viewport().y);
+        paintScene(g, scene, view.diagramArea(new Rectangle(left, top, target.getWidth(), target.getHeight())),
+                scene.detailAt(view.scale()));
+        g.dispose();
     }
 
-    private static void drawArrowHead(Graphics2D g, int x1, int y1, int x2, int y2) {
-        double angle = Math.atan2(y2 - y1, x2 - x1);
-        int arrowLength = 14;
-        int sideAngle = 30;
+    /**
+     * Paints everything that reaches into {@code area} of the diagram at the given level of
+     * detail. The graphics must already be transformed so that diagram coordinates land on the
+     * target image.
+     */
+    private static void paintScene(Graphics2D g, DiagramScene scene, Rectangle area, Detail detail) {
+        configureGraphics(g);
+        g.setColor(BACKGROUND_COLOR);
+        g.fillRect(area.x, area.y, area.width, area.height);
 
-        Polygon arrowHead = new Polygon();
-        arrowHead.addPoint(x2, y2);
-        arrowHead.addPoint((int) Math.round(x2 - arrowLength * Math.cos(angle - Math.toRadians(sideAngle))),
-                (int) Math.round(y2 - arrowLength * Math.sin(angle - Math.toRadians(sideAngle))));
-        arrowHead.addPoint((int) Math.round(x2 - arrowLength * Math.cos(angle + Math.toRadians(sideAngle))),
-                (int) Math.round(y2 - arrowLength * Math.sin(angle + Math.toRadians(sideAngle))));
-        g.fillPolygon(arrowHead);
+        int[] visible = scene.index().query(area);
+        int i = 0;
+
+        // Edges are collected into a few paths per style and drawn with a handful of calls
+        DiagramGraph graph = scene.graph();
+        EdgeBatch edges = new EdgeBatch();
+        for (; i < visible.length && visible[i] < scene.firstContainmentRef(); i++) {
+            edges.addContainment(graph, visible[i]);
+        }
+        edges.paint(g, CONTAINMENT_COLOR);
+
+        int labelsFrom = i;
+        edges.reset();
+        for (; i < visible.length && visible[i] < scene.firstReference(); i++) {
+            edges.addContainmentReference(scene.route(visible[i]));
+        }
+        for (; i < visible.length && visible[i] < scene.firstNode(); i++) {
+            int reference = visible[i] - scene.firstReference();
+            edges.addReference(graph.references.dashed[reference], graph.references.isGeneralization(reference),
+                    scene.route(visible[i]));
+        }
+        edges.paint(g, EDGE_COLOR);
+
+        if (detail != Detail.BOX) {
+            g.setColor(EDGE_COLOR);
+            g.setFont(LABEL_FONT);
+            for (int k = labelsFrom; k < i; k++) {
+                drawLabel(g, scene.labels(), visible[k] - scene.firstContainmentRef());
+            }
+        }
+
+        for (; i < visible.length; i++) {
+            drawNode(g, graph, visible[i] - scene.firstNode(), scene.titleFont(), scene.bodyFont(),
+                    scene.titleMetrics(), scene.bodyMetrics(), detail);
+        }
+    }
+
+    /**
+     * Measures the nodes numbered in {@code nodes}, or all of them if it is {@code null}, on the
+     * threads of {@code pool} if there is one. A node's size depends on nothing but its own text,
+     * so the nodes are simply cut into ranges; the sizes are combined bottom-up by the layout
+     * afterwards. The metrics given are those of the calling thread.
+     */
+    private static void measureNodes(DiagramGraph graph, int[] nodes, FontMetrics titleMetrics,
+            FontMetrics bodyMetrics, Detail detail, ForkJoinPool pool) {
+        int count = nodes == null ? graph.size : nodes.length;
+        if (pool == null || count <= MeasureTask.NODES_PER_TASK) {
+            for (int i = 0; i < count; i++) {
+                measureNode(graph, nodes == null ? i : nodes[i], titleMetrics, bodyMetrics, detail);
+            }
+            return;
+        }
+        Font titleFont = titleMetrics.getFont();
+        Font bodyFont = bodyMetrics.getFont();
+        // Font metrics are not safe for concurrent use, so every worker measures with its own
+        ThreadLocal<FontMetrics[]> workerMetrics = ThreadLocal.withInitial(() -> {
+            Graphics2D scratchGraphics = new BufferedImage(1, 1, BufferedImage.TYPE_INT_ARGB).createGraphics();
+            configureGraphics(scratchGraphics);
+            try {
+                return new FontMetrics[] { scratchGraphics.getFontMetrics(titleFont),
+                        scratchGraphics.getFontMetrics(bodyFont) };
+            } finally {
+                scratchGraphics.dispose();
+            }
+        });
+        pool.invoke(new MeasureTask(graph, nodes, workerMetrics, detail, 0, count));
+    }
+
+    private static void measureNode(DiagramGraph graph, int node, FontMetrics titleMetrics, FontMetrics bodyMetrics,
+            Detail detail) {
+        // Text hidden at this level of detail is not measured at all
+        int lineCount = detail == Detail.FULL ? graph.lineCount(node) : 0;
+        if (detail == Detail.BOX) {
+            graph.width[node] = BOX_NODE_WIDTH;
+        } else {
+            graph.titleWidth[node] = TEXT_WIDTHS.width(titleMetrics, graph.titles[node]);
+            int maxLineWidth = graph.titleWidth[node];
+            for (int line = graph.lineStart[node]; line < graph.lineStart[node] + lineCount; line++) {
+                maxLineWidth = Math.max(maxLineWidth, TEXT_WIDTHS.width(bodyMetrics, graph.lines[line]));
+            }
+            graph.width[node] = maxLineWidth + H_PADDING * 2;
+        }
+
+        int titleHeight = titleMetrics.getHeight();
+        int bodyHeight = lineCount == 0 ? 0
+                : lineCount * bodyMetrics.getHeight() + (lineCount - 1) * LINE_SPACING;
+        graph.height[node] = V_PADDING * 2 + titleHeight + (lineCount == 0 ? 0 : HEADER_GAP + bodyHeight);
+    }
+
+    /** The smallest rectangle around the nodes numbered from {@code from} up to {@code to}. */
+    private static Rectangle bounds(DiagramGraph graph, int from, int to) {
+        int minX = Integer.MAX_VALUE;
+        int minY = Integer.MAX_VALUE;
+        int maxX = Integer.MIN_VALUE;
+        int maxY = Integer.MIN_VALUE;
+        for (int v = from; v < to; v++) {
+            minX = Math.min(minX, graph.x[v]);
+            minY = Math.min(minY, graph.y[v]);
+            maxX = Math.max(maxX, graph.right(v));
+            maxY = Math.max(maxY, graph.bottom(v));
+        }
+        return new Rectangle(minX, minY, maxX - minX, maxY - minY);
+    }
+
+    /**
+     * Draws the placed label of containment reference or reference {@code edge}, with the label
+     * font already set on {@code g}. Generalizations and dropped labels have no text.
+     */
+    private static void drawLabel(Graphics2D g, EdgeLabels labels, int edge) {
+        String text = labels.text(edge);
+        if (text != null) {
+            g.drawString(text, labels.x(edge), labels.baseline(edge));
+        }
+    }
+
+    /**
+     * Routes of straight edges, in the order of the containment references and the references:
+     * from side to side, except for generalizations, which run from the bottom center to the top
+     * center, or up from the top center to the bottom center when the supertype is laid out above.
+     */
+    private static int[][] straightRoutes(DiagramGraph graph) {
+        int[][] routes = new int[graph.edgeCount()][];
+        for (int edge = 0; edge < routes.length; edge++) {
+            int source = graph.edgeSource(edge);
+            int target = graph.edgeTarget(edge);
+            if (graph.isGeneralization(edge)) {
+                boolean upwards = graph.isAbove(target, source);
+                routes[edge] = new int[] { graph.centerX(source), upwards ? graph.y[source] : graph.bottom(source),
+                        graph.centerX(target), upwards ? graph.bottom(target) : graph.y[target] };
+            } else {
+                routes[edge] = new int[] { graph.right(source), graph.centerY(source),
+                        graph.x[target], graph.centerY(target) };
+            }
+        }
+        return routes;
+    }
+
+    private static void drawNode(Graphics2D g, DiagramGraph graph, int node, Font titleFont, Font bodyFont,
+            FontMetrics titleMetrics, FontMetrics bodyMetrics, Detail detail) {
+        NodeStyle style = graph.styles[node] != null ? graph.styles[node] : DEFAULT_STYLE;
+        int x = graph.x[node];
+        int y = graph.y[node];
+        int width = graph.width[node];
+        int height = graph.height[node];
+
+        if (detail == Detail.BOX) {
+            // Just the classifier color, so that the structure of the diagram stays recognizable
+            g.setColor(style.fill());
+            g.fillRect(x, y, width, height);
+            g.setColor(NODE_BORDER_COLOR);
+            g.setStroke(NODE_BORDER_STROKE);
+            g.drawRect(x, y, width, height);
+            return;
+        }
+
+        // Fill entire node with body color first (white body section for attributes)
+        g.setColor(NODE_BODY_COLOR);
+        g.fillRect(x, y, width, height);
+
+        // Draw header section with colored background
+        int titleBottom = y + V_PADDING + titleMetrics.getHeight();
+        int headerHeight = V_PADDING + titleMetrics.getHeight();
+        if (headerHeight > 0) {
+            g.setColor(style.fill());
+            g.fillRect(x, y, width, headerHeight);
+        }
+
+        // Draw border
+        g.setColor(NODE_BORDER_COLOR);
+        g.setStroke(NODE_BORDER_STROKE);
+        g.drawRect(x, y, width, height);
+
+        // Draw separator line between header and body
+        if (detail == Detail.FULL && graph.lineCount(node) != 0) {
+            g.setStroke(NODE_SEPARATOR_STROKE);
+            g.drawLine(x, titleBottom, x + width, titleBottom);
+        }
+
+        // Draw title
+        g.setFont(titleFont);
+        int titleBaseline = y + V_PADDING + titleMetrics.getAscent();
+        g.setColor(style.headerText());
+        // Center the title
+        g.drawString(graph.titles[node], x + (width - graph.titleWidth[node]) / 2, titleBaseline);
+
+        if (detail != Detail.FULL) {
+            return;
+        }
+
+        // Draw body lines (attributes)
+        g.setFont(bodyFont);
+        g.setColor(NODE_BODY_TEXT_COLOR);
+        int bodyBaseline = titleBottom + HEADER_GAP + bodyMetrics.getAscent();
+        for (int line = graph.lineStart[node]; line < graph.lineStart[node + 1]; line++) {
+            g.drawString(graph.lines[line], x + H_PADDING, bodyBaseline);
+            bodyBaseline += bodyMetrics.getHeight() + LINE_SPACING;
+        }
     }
 
-    private static void drawGeneralizationArrow(Graphics2D g, int x1, int y1, int x2, int y2) {
+    private static Polygon arrowHead(int x1, int y1, int x2, int y2) {
+        return arrowHead(x1, y1, x2, y2, new Polygon());
+    }
+
+    /** Builds the arrowhead into {@code arrowHead}, replacing its points. */
+    private static Polygon arrowHead(int x1, int y1, int x2, int y2, Polygon arrowHead) {
         double angle = Math.atan2(y2 - y1, x2 - x1);
         int arrowLength = 14;
         int sideAngle = 30;
 
-        Polygon arrowHead = new Polygon();
+        arrowHead.reset();
         arrowHead.addPoint(x2, y2);
         arrowHead.addPoint((int) Math.round(x2 - arrowLength * Math.cos(angle - Math.toRadians(sideAngle))),
                 (int) Math.round(y2 - arrowLength * Math.sin(angle - Math.toRadians(sideAngle))));
         arrowHead.addPoint((int) Math.round(x2 - arrowLength * Math.cos(angle + Math.toRadians(sideAngle))),
                 (int) Math.round(y2 - arrowLength * Math.sin(angle + Math.toRadians(sideAngle))));
-        
-        // Draw unfilled (white) triangle for generalization
-        Color originalColor = g.getColor();
-        g.setColor(Color.WHITE);
-        g.fillPolygon(arrowHead);
-        g.setColor(originalColor);
-        g.drawPolygon(arrowHead);
+        return arrowHead;
+    }
+
+    private static Polygon diamond(int x1, int y1, int x2, int y2) {
+        return diamond(x1, y1, x2, y2, new Polygon());
+    }
+
+    /** Builds the diamond into {@code diamond}, replacing its points. */
+    private static Polygon diamond(int x1, int y1, int x2, int y2, Polygon diamond) {
+        int diamondSize = 10;
+        double angle = Math.atan2(y2 - y1, x2 - x1);
+        int diamondX = (int) (x1 + diamondSize * Math.cos(angle));
+        int diamondY = (int) (y1 + diamondSize * Math.sin(angle));
+
+        diamond.reset();
+        diamond.addPoint(diamondX, diamondY);
+        diamond.addPoint((int) (diamondX + diamondSize * Math.cos(angle - Math.PI / 2)),
+                        (int) (diamondY + diamondSize * Math.sin(angle - Math.PI / 2)));
+        diamond.addPoint((int) (diamondX + diamondSize * Math.cos(angle - Math.PI)),
+                        (int) (diamondY + diamondSize * Math.sin(angle - Math.PI)));
+        diamond.addPoint((int) (diamondX + diamondSize * Math.cos(angle + Math.PI / 2)),
+                        (int) (diamondY + diamondSize * Math.sin(angle + Math.PI / 2)));
+        return diamond;
     }
 
     private static void configureGraphics(Graphics2D g) {
@@ -742,8 +1664,19 @@ public final class ModelVisualizer {
         g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
     }
 
-    private static Color lookupColor(String classifierName, Map<String, Color> colorIndex) {
-        return colorIndex.computeIfAbsent(classifierName, key -> paletteColor(colorIndex.size()));
+    private static NodeStyle lookupStyle(String classifierName, Map<String, NodeStyle> styleIndex) {
+        return styleIndex.computeIfAbsent(classifierName, key -> NodeStyle.of(paletteColor(styleIndex.size())));
+    }
+
+    /** The plan of {@code eClass}, made on first use; its style is looked up by the class name. */
+    private static ClassPlan lookupPlan(EClass eClass, Map<EClass, ClassPlan> plans, Map<String, NodeStyle> styleIndex,
+            RenderOptions options) {
+        ClassPlan plan = plans.get(eClass);
+        if (plan == null) {
+            plan = ClassPlan.of(eClass, lookupStyle(eClass.getName(), styleIndex), options);
+            plans.put(eClass, plan);
+        }
+        return plan;
     }
 
     private static Color lighten(Color color, double factor) {
@@ -780,6 +1713,17 @@ public final class ModelVisualizer {
         return new File(directory, baseName + "-diagram.png");
     }
 
+    /** The layout cache of a diagram lives next to it, for pyramids next to their directory. */
+    private static File layoutCacheFile(File output) {
+        return new File(output.getPath() + ".layout");
+    }
+
+    private static File derivePyramidDirectory(File modelFile) {
+        String baseName = stripExtension(modelFile.getName());
+        File directory = modelFile.getParentFile() != null ? modelFile.getParentFile() : new File(".");
+        return new File(directory, baseName + "-tiles");
+    }
+
     private static String stripExtension(String name) {
         int dot = name.lastIndexOf('.');
         return dot == -1 ? name : name.substring(0, dot);
@@ -798,57 +1742,3557 @@ public final class ModelVisualizer {
     private static final Color[] PALETTE = new Color[] { new Color(157, 212, 218), new Color(253, 243, 196),
             new Color(209, 224, 180), new Color(215, 205, 233), new Color(252, 219, 203), new Color(201, 229, 242) };
 
-    private static final class DiagramNode {
-        EObject eObject;
-        final List<String> lines = new ArrayList<>();
-        final List<DiagramNode> children = new ArrayList<>();
-        String title;
-        String containmentName = "";
-        DiagramNode parent;
-        Color fillColor;
-        int width;
-        int height;
-        int subtreeWidth;
-        int subtreeHeight;
-        int x;
-        int y;
+    /**
+     * The nodes and edges of a diagram in parallel arrays, indexed by node number. Nodes are
+     * numbered in pre-order, tree after tree, so the containment tree of root {@code r} is the range
+     * from {@code r} to {@code r + subtreeSizes[r]}. Body lines and children are kept in compressed
+     * rows: the lines of node {@code v} are {@code lines[lineStart[v]]} up to
+     * {@code lines[lineStart[v + 1]]}, and likewise for its children. Measuring and layout write
+     * the geometry arrays in place; nothing here refers back to the model.
+     */
+    private static final class DiagramGraph {
+        final int size;
+        final String[] titles;
+        final NodeStyle[] styles;
+        final int[] lineStart;
+        final String[] lines;
+        // -1 for the roots
+        final int[] parents;
+        final int[] childStart;
+        final int[] children;
+        final int[] subtreeSizes;
+        final int[] roots;
+        // The number of model elements, respectively classifiers, that have a node
+        final int elementCount;
+        final EdgeTable containmentRefs;
+        final EdgeTable references;
+        final int[] titleWidth;
+        final int[] width;
+        final int[] height;
+        final int[] x;
+        final int[] y;
+
+        DiagramGraph(int size, String[] titles, NodeStyle[] styles, int[] lineStart, String[] lines, int[] parents,
+                int elementCount, EdgeTable containmentRefs, EdgeTable references) {
+            this.size = size;
+            this.titles = titles;
+            this.styles = styles;
+            this.lineStart = lineStart;
+            this.lines = lines;
+            this.parents = parents;
+            this.elementCount = elementCount;
+            this.containmentRefs = containmentRefs;
+            this.references = references;
+            this.titleWidth = new int[size];
+            this.width = new int[size];
+            this.height = new int[size];
+            this.x = new int[size];
+            this.y = new int[size];
+
+            // Backwards through the pre-order numbering every child is counted before its parent
+            this.subtreeSizes = new int[size];
+            int rootCount = 0;
+            for (int v = size - 1; v >= 0; v--) {
+                subtreeSizes[v]++;
+                if (parents[v] >= 0) {
+                    subtreeSizes[parents[v]] += subtreeSizes[v];
+                } else {
+                    rootCount++;
+                }
+            }
+            this.roots = new int[rootCount];
+            this.childStart = new int[size + 1];
+            for (int v = 0, r = 0; v < size; v++) {
+                if (parents[v] >= 0) {
+                    childStart[parents[v] + 1]++;
+                } else {
+                    roots[r++] = v;
+                }
+            }
+            for (int v = 0; v < size; v++) {
+                childStart[v + 1] += childStart[v];
+            }
+            this.children = new int[size - rootCount];
+            int[] cursor = Arrays.copyOf(childStart, size);
+            for (int v = 0; v < size; v++) {
+                if (parents[v] >= 0) {
+                    children[cursor[parents[v]]++] = v;
+                }
+            }
+        }
+
+        int lineCount(int v) {
+            return lineStart[v + 1] - lineStart[v];
+        }
+
+        int childCount(int v) {
+            return childStart[v + 1] - childStart[v];
+        }
+
+        /** The number of containment references and references, which routes and labels are numbered by. */
+        int edgeCount() {
+            return containmentRefs.size() + references.size();
+        }
+
+        /** The source of containment reference or reference {@code edge}, numbered as in {@link #edgeCount()}. */
+        int edgeSource(int edge) {
+            return edge < containmentRefs.size() ? containmentRefs.source(edge)
+                    : references.source(edge - containmentRefs.size());
+        }
+
+        int edgeTarget(int edge) {
+            return edge < containmentRefs.size() ? containmentRefs.targets[edge]
+                    : references.targets[edge - containmentRefs.size()];
+        }
 
-        int getBottomCenterX() {
-            return x + width / 2;
+        String edgeLabel(int edge) {
+            return edge < containmentRefs.size() ? containmentRefs.labels[edge]
+                    : references.labels[edge - containmentRefs.size()];
         }
 
-        int getBottomCenterY() {
-            return y + height;
+        boolean isGeneralization(int edge) {
+            return edge >= containmentRefs.size() && references.isGeneralization(edge - containmentRefs.size());
         }
 
-        int getTopCenterX() {
-            return x + width / 2;
+        int right(int v) {
+            return x[v] + width[v];
         }
 
-        int getLeftCenterX() {
-            return x;
+        int bottom(int v) {
+            return y[v] + height[v];
         }
 
-        int getLeftCenterY() {
-            return y + height / 2;
+        int centerX(int v) {
+            return x[v] + width[v] / 2;
         }
 
-        int getRightCenterX() {
-            return x + width;
+        int centerY(int v) {
+            return y[v] + height[v] / 2;
         }
 
-        int getRightCenterY() {
-            return y + height / 2;
+        /** Whether node {@code upper} lies entirely above node {@code lower}. */
+        boolean isAbove(int upper, int lower) {
+            return bottom(upper) <= y[lower];
         }
     }
 
-    private record DiagramEdge(DiagramNode source, DiagramNode target, String label, boolean dashed, boolean containment) {
-        static DiagramEdge of(DiagramNode source, DiagramNode target, String label, boolean dashed) {
-            return new DiagramEdge(source, target, label == null ? "" : label, dashed, false);
+    /**
+     * Edges grouped by their source node in compressed rows: the edges leaving node {@code v} are
+     * numbered from {@code start[v]} up to {@code start[v + 1]}, in the order they were added, and
+     * edge {@code e} ends at node {@code targets[e]}.
+     */
+    private static final class EdgeTable {
+        final int[] start;
+        final int[] targets;
+        final String[] labels;
+        final boolean[] dashed;
+
+        private EdgeTable(int[] start, int[] targets, String[] labels, boolean[] dashed) {
+            this.start = start;
+            this.targets = targets;
+            this.labels = labels;
+            this.dashed = dashed;
         }
-        
-        static DiagramEdge ofContainment(DiagramNode source, DiagramNode target, String label) {
-            return new DiagramEdge(source, target, label == null ? "" : label, false, true);
+
+        int size() {
+            return targets.length;
+        }
+
+        /** The node edge {@code e} leaves, found by a binary search of {@link #start}. */
+        int source(int e) {
+            int low = 0;
+            int high = start.length - 2;
+            while (low < high) {
+                int middle = (low + high + 1) >>> 1;
+                if (start[middle] <= e) {
+                    low = middle;
+                } else {
+                    high = middle - 1;
+                }
+            }
+            return low;
+        }
+
+        /** Generalizations are the only solid edges without a label; they are drawn vertically. */
+        boolean isGeneralization(int e) {
+            return labels[e].isEmpty() && !dashed[e];
+        }
+
+        /** Edges as they are found, in growable parallel arrays, to be grouped by source once all are known. */
+        static final class Builder {
+            private int[] sources = new int[1 << 10];
+            private int[] targets = new int[1 << 10];
+            private String[] labels = new String[1 << 10];
+            private boolean[] dashed = new boolean[1 << 10];
+            private int size;
+
+            void add(int source, int target, String label, boolean isDashed) {
+                if (size == sources.length) {
+                    sources = Arrays.copyOf(sources, 2 * size);
+                    targets = Arrays.copyOf(targets, 2 * size);
+                    labels = Arrays.copyOf(labels, 2 * size);
+                    dashed = Arrays.copyOf(dashed, 2 * size);
+                }
+                sources[size] = source;
+                targets[size] = target;
+                labels[size] = label == null ? "" : label;
+                dashed[size] = isDashed;
+                size++;
+            }
+
+            void addAll(Builder edges) {
+                for (int e = 0; e < edges.size; e++) {
+                    add(edges.sources[e], edges.targets[e], edges.labels[e], edges.dashed[e]);
+                }
+            }
+
+            /** Groups the edges by source, keeping the order in which those of one source were added. */
+            EdgeTable build(int nodeCount) {
+                int[] start = new int[nodeCount + 1];
+                for (int e = 0; e < size; e++) {
+                    start[sources[e] + 1]++;
+                }
+                for (int v = 0; v < nodeCount; v++) {
+                    start[v + 1] += start[v];
+                }
+                int[] cursor = Arrays.copyOf(start, nodeCount);
+                int[] sortedTargets = new int[size];
+                String[] sortedLabels = new String[size];
+                boolean[] sortedDashed = new boolean[size];
+                for (int e = 0; e < size; e++) {
+                    int slot = cursor[sources[e]]++;
+                    sortedTargets[slot] = targets[e];
+                    sortedLabels[slot] = labels[e];
+                    sortedDashed[slot] = dashed[e];
+                }
+                return new EdgeTable(start, sortedTargets, sortedLabels, sortedDashed);
+            }
+        }
+    }
+
+    /**
+     * Collects the nodes of a diagram while the model is walked, numbered in the order they are
+     * added, which has to be pre-order. Besides what goes into the {@link DiagramGraph} it keeps
+     * what only building needs: the model element and class plan of every node, and the numbers of
+     * the elements by identity, so that cross references can be turned into edges. It is dropped
+     * with all of that once the edges are collected.
+     */
+    private static final class GraphBuilder {
+        private String[] titles = new String[1 << 10];
+        private NodeStyle[] styles = new NodeStyle[1 << 10];
+        private int[] parents = new int[1 << 10];
+        private EObject[] eObjects = new EObject[1 << 10];
+        // The plan of a model element's class; null for the classifiers of a metamodel
+        private ClassPlan[] plans = new ClassPlan[1 << 10];
+        private int size;
+        // Lines are added node after node, so every node's lines follow those of the nodes before it
+        private int[] lineStart = new int[(1 << 10) + 1];
+        private String[] lines = new String[1 << 10];
+        private int lineCount;
+        private int linesDone;
+        private final ObjectIds ids = new ObjectIds();
+
+        /**
+         * Adds a node and returns its number. {@code eObject} is found by {@link #id} from then on
+         * unless it is {@code null}, as for summaries and proxy stubs.
+         */
+        int add(EObject eObject, ClassPlan plan, String title, NodeStyle style, int parent) {
+            if (size == titles.length) {
+                titles = Arrays.copyOf(titles, 2 * size);
+                styles = Arrays.copyOf(styles, 2 * size);
+                parents = Arrays.copyOf(parents, 2 * size);
+                eObjects = Arrays.copyOf(eObjects, 2 * size);
+                plans = Arrays.copyOf(plans, 2 * size);
+            }
+            titles[size] = title;
+            styles[size] = style;
+            parents[size] = parent;
+            eObjects[size] = eObject;
+            plans[size] = plan;
+            if (eObject != null) {
+                ids.put(eObject, size);
+            }
+            return size++;
+        }
+
+        /** Gives node {@code v} its lines; nodes have to be given theirs in ascending order. */
+        void addLines(int v, List<String> nodeLines) {
+            if (lineStart.length < v + 2) {
+                lineStart = Arrays.copyOf(lineStart, Math.max(2 * lineStart.length, v + 2));
+            }
+            while (linesDone < v) {
+                lineStart[++linesDone] = lineCount;
+            }
+            if (lineCount + nodeLines.size() > lines.length) {
+                lines = Arrays.copyOf(lines, Math.max(2 * lines.length, lineCount + nodeLines.size()));
+            }
+            for (String line : nodeLines) {
+                lines[lineCount++] = line;
+            }
+            lineStart[++linesDone] = lineCount;
+        }
+
+        int size() {
+            return size;
+        }
+
+        /** The number of the node of {@code eObject}, or -1 if it has none. */
+        int id(EObject eObject) {
+            return ids.get(eObject);
+        }
+
+        /** The number of model elements, respectively classifiers, that have a node. */
+        int elementCount() {
+            return ids.size();
+        }
+
+        EObject eObject(int v) {
+            return eObjects[v];
+        }
+
+        ClassPlan plan(int v) {
+            return plans[v];
+        }
+
+        DiagramGraph build(EdgeTable.Builder containmentRefs, EdgeTable.Builder references) {
+            int[] nodeLineStart = Arrays.copyOf(lineStart, size + 1);
+            for (int v = linesDone; v < size; v++) {
+                nodeLineStart[v + 1] = lineCount;
+            }
+            return new DiagramGraph(size, Arrays.copyOf(titles, size), Arrays.copyOf(styles, size), nodeLineStart,
+                    Arrays.copyOf(lines, lineCount), Arrays.copyOf(parents, size), ids.size(),
+                    containmentRefs.build(size), references.build(size));
+        }
+    }
+
+    /**
+     * The numbers of model elements by identity, in an open-addressing table with linear probing,
+     * which takes a fraction of the memory of an {@link IdentityHashMap} of boxed numbers. Safe for
+     * concurrent reads once nothing is added anymore.
+     */
+    private static final class ObjectIds {
+        private EObject[] keys = new EObject[1 << 10];
+        private int[] values = new int[1 << 10];
+        private int size;
+
+        int get(EObject key) {
+            int mask = keys.length - 1;
+            for (int slot = slot(key, mask); keys[slot] != null; slot = (slot + 1) & mask) {
+                if (keys[slot] == key) {
+                    return values[slot];
+                }
+            }
+            return -1;
+        }
+
+        void put(EObject key, int value) {
+            if (2 * (size + 1) > keys.length) {
+                grow();
+            }
+            int mask = keys.length - 1;
+            int slot = slot(key, mask);
+            while (keys[slot] != null && keys[slot] != key) {
+                slot = (slot + 1) & mask;
+            }
+            if (keys[slot] == null) {
+                size++;
+            }
+            keys[slot] = key;
+            values[slot] = value;
+        }
+
+        int size() {
+            return size;
+        }
+
+        private void grow() {
+            EObject[] oldKeys = keys;
+            int[] oldValues = values;
+            keys = new EObject[2 * oldKeys.length];
+            values = new int[2 * oldValues.length];
+            int mask = keys.length - 1;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != null) {
+                    int slot = slot(oldKeys[i], mask);
+                    while (keys[slot] != null) {
+                        slot = (slot + 1) & mask;
+                    }
+                    keys[slot] = oldKeys[i];
+                    values[slot] = oldValues[i];
+                }
+            }
+        }
+
+        private static int slot(EObject key, int mask) {
+            return (int) ((System.identityHashCode(key) * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+        }
+    }
+
+    /** How the nodes of one classifier are painted; computed once per classifier and render. */
+    private record NodeStyle(Color fill, Color headerText) {
+        static NodeStyle of(Color fill) {
+            return new NodeStyle(fill, readableTextColor(fill));
+        }
+    }
+
+    /**
+     * What is shown of the instances of one EClass, worked out from its features once per class
+     * and render: the node title and style, the attributes with the {@code "name = "} their lines
+     * start with, the references that are not containments, and the containments with the number
+     * of children shown of each ({@code null} when none of them is limited).
+     */
+    private record ClassPlan(String title, NodeStyle style, EAttribute[] attributes, String[] linePrefixes,
+            EReference[] references, EReference[] containments, int[] childLimits) {
+        static ClassPlan of(EClass eClass, NodeStyle style, RenderOptions options) {
+            EAttribute[] attributes = eClass.getEAllAttributes().toArray(new EAttribute[0]);
+            String[] linePrefixes = new String[attributes.length];
+            for (int i = 0; i < attributes.length; i++) {
+                linePrefixes[i] = attributes[i].getName() + " = ";
+            }
+            List<EReference> references = new ArrayList<>();
+            List<EReference> containments = new ArrayList<>();
+            for (EReference reference : eClass.getEAllReferences()) {
+                if (!reference.isContainment()) {
+                    references.add(reference);
+                } else {
+                    containments.add(reference);
+                }
+            }
+            int[] childLimits = new int[containments.size()];
+            boolean limited = false;
+            for (int i = 0; i < childLimits.length; i++) {
+                EReference containment = containments.get(i);
+                childLimits[i] = containment.isMany() ? options.maxChildren(eClass, containment) : Integer.MAX_VALUE;
+                limited |= childLimits[i] != Integer.MAX_VALUE;
+            }
+            return new ClassPlan(":" + eClass.getName(), style, attributes, linePrefixes,
+                    references.toArray(new EReference[0]), containments.toArray(new EReference[0]),
+                    limited ? childLimits : null);
+        }
+    }
+
+    /**
+     * Positions the nodes of the containment tree of {@code root}, numbered in pre-order from the
+     * root on, with every node already measured. Only the relative positions matter: the tree is
+     * moved into place by its bounding box afterwards.
+     */
+    private interface LayoutEngine {
+        void layout(DiagramGraph graph, int root);
+    }
+
+    /**
+     * Gives every subtree a box as wide as the widest of its own node and its children's boxes side
+     * by side, and centers each node above its children. Wide subtrees keep their whole box to
+     * themselves, even at levels where they have few nodes.
+     */
+    private static final class SubtreeLayout {
+
+        private SubtreeLayout() {
+        }
+
+        static void layout(DiagramGraph graph, int root) {
+            int end = root + graph.subtreeSizes[root];
+            // Subtree extents by node number, relative to the root
+            int[] subtreeWidth = new int[end - root];
+            int[] subtreeHeight = new int[end - root];
+            // Backwards through the pre-order numbering every child is measured before its parent
+            for (int v = end - 1; v >= root; v--) {
+                measureSubtree(graph, v, root, subtreeWidth, subtreeHeight);
+            }
+            placeNode(graph, root, subtreeWidth[0], 0, 0);
+            // Forwards every parent is placed before its children
+            for (int v = root; v < end; v++) {
+                placeChildren(graph, v, root, subtreeWidth);
+            }
+        }
+
+        /** Computes the extent of the subtree of {@code v} from its own size and its children's subtrees. */
+        private static void measureSubtree(DiagramGraph graph, int v, int root, int[] subtreeWidth,
+                int[] subtreeHeight) {
+            int childrenWidth = 0;
+            int maxChildHeight = 0;
+            for (int k = graph.childStart[v]; k < graph.childStart[v + 1]; k++) {
+                int child = graph.children[k] - root;
+                childrenWidth += subtreeWidth[child];
+                maxChildHeight = Math.max(maxChildHeight, subtreeHeight[child]);
+            }
+            int childCount = graph.childCount(v);
+            if (childCount != 0) {
+                childrenWidth += SIBLING_SPACING * (childCount - 1);
+            }
+
+            subtreeWidth[v - root] = Math.max(graph.width[v], childrenWidth);
+            subtreeHeight[v - root] = graph.height[v];
+            if (childCount != 0) {
+                subtreeHeight[v - root] += LEVEL_SPACING + maxChildHeight;
+            }
+        }
+
+        /** Places {@code v} centered at the top of its subtree, whose left edge is at {@code x}. */
+        private static void placeNode(DiagramGraph graph, int v, int subtreeWidth, int x, int y) {
+            graph.x[v] = x + (subtreeWidth - graph.width[v]) / 2;
+            graph.y[v] = y;
+        }
+
+        /** Places the children of an already placed node side by side below it. */
+        private static void placeChildren(DiagramGraph graph, int v, int root, int[] subtreeWidth) {
+            if (graph.childCount(v) == 0) {
+                return;
+            }
+
+            // Recovers the left edge of the subtree exactly as it was passed to placeNode
+            int x = graph.x[v] - (subtreeWidth[v - root] - graph.width[v]) / 2;
+            int childX = x + (subtreeWidth[v - root] - totalChildrenWidth(graph, v, root, subtreeWidth)) / 2;
+            int childY = graph.bottom(v) + LEVEL_SPACING;
+            for (int k = graph.childStart[v]; k < graph.childStart[v + 1]; k++) {
+                int child = graph.children[k];
+                placeNode(graph, child, subtreeWidth[child - root], childX, childY);
+                childX += subtreeWidth[child - root] + SIBLING_SPACING;
+            }
+        }
+
+        private static int totalChildrenWidth(DiagramGraph graph, int v, int root, int[] subtreeWidth) {
+            if (graph.childCount(v) == 0) {
+                return 0;
+            }
+            int width = 0;
+            for (int k = graph.childStart[v]; k < graph.childStart[v + 1]; k++) {
+                width += subtreeWidth[graph.children[k] - root];
+            }
+            width += SIBLING_SPACING * (graph.childCount(v) - 1);
+            return width;
+        }
+    }
+
+    /**
+     * Walker's tidy tree in the linear-time formulation of Buchheim et al. Nodes of
+     * the same depth share a row, and each subtree is moved only as far right of its left siblings
+     * as their contours at every depth require, instead of past their whole bounding boxes.
+     *
+     * <p>The state of the algorithm lives in arrays indexed by pre-order position. Children are
+     * found from the subtree sizes, and both walks are loops instead of recursions.
+     */
+    private static final class TidyTreeLayout {
+        private final DiagramGraph graph;
+        // Positions in the arrays are node numbers less that of the root
+        private final int root;
+        private final int[] size;
+        private final int[] parent;
+        private final int[] leftSibling;
+        private final int[] lastChild;
+        private final int[] number;
+        private final int[] thread;
+        private final int[] ancestor;
+        private final double[] prelim;
+        private final double[] mod;
+        private final double[] shift;
+        private final double[] change;
+
+        private TidyTreeLayout(DiagramGraph graph, int root) {
+            int n = graph.subtreeSizes[root];
+            this.graph = graph;
+            this.root = root;
+            this.size = new int[n];
+            this.parent = new int[n];
+            this.leftSibling = new int[n];
+            this.lastChild = new int[n];
+            this.number = new int[n];
+            this.thread = new int[n];
+            this.ancestor = new int[n];
+            this.prelim = new double[n];
+            this.mod = new double[n];
+            this.shift = new double[n];
+            this.change = new double[n];
+            System.arraycopy(graph.subtreeSizes, root, size, 0, n);
+            Arrays.fill(parent, -1);
+            Arrays.fill(leftSibling, -1);
+            Arrays.fill(thread, -1);
+            for (int v = 0; v < n; v++) {
+                ancestor[v] = v;
+                int previous = -1;
+                for (int w = v + 1, k = 0; w < v + size[v]; w += size[w], k++) {
+                    parent[w] = v;
+                    number[w] = k;
+                    leftSibling[w] = previous;
+                    previous = w;
+                }
+                lastChild[v] = previous;
+            }
+        }
+
+        static void layout(DiagramGraph graph, int root) {
+            new TidyTreeLayout(graph, root).run();
+        }
+
+        private void run() {
+            int n = size.length;
+            // First walk, children before parents: a subtree is complete before it is placed next
+            // to its left siblings, which happens while its parent is visited
+            for (int v = n - 1; v >= 0; v--) {
+                if (lastChild[v] == -1) {
+                    continue;
+                }
+                int defaultAncestor = v + 1;
+                for (int w = v + 1; w < v + size[v]; w += size[w]) {
+                    placeAmongSiblings(w);
+                    defaultAncestor = apportion(w, defaultAncestor);
+                }
+                executeShifts(v);
+            }
+            placeAmongSiblings(0);
+
+            // Second walk, parents before children: accumulate the modifiers and size the rows
+            double[] modSum = new double[n];
+            int[] depth = new int[n];
+            int[] rowHeight = new int[n];
+            for (int v = 1; v < n; v++) {
+                modSum[v] = modSum[parent[v]] + mod[parent[v]];
+                depth[v] = depth[parent[v]] + 1;
+            }
+            for (int v = 0; v < n; v++) {
+                rowHeight[depth[v]] = Math.max(rowHeight[depth[v]], graph.height[root + v]);
+            }
+            int[] rowY = new int[n];
+            for (int d = 1; d < n; d++) {
+                rowY[d] = rowY[d - 1] + rowHeight[d - 1] + LEVEL_SPACING;
+            }
+            for (int v = 0; v < n; v++) {
+                graph.x[root + v] = (int) Math.round(prelim[v] + modSum[v] - graph.width[root + v] / 2.0);
+                graph.y[root + v] = rowY[depth[v]];
+            }
+        }
+
+        /** Sets the preliminary center of {@code v} from its children and its left sibling. */
+        private void placeAmongSiblings(int v) {
+            int left = leftSibling[v];
+            if (lastChild[v] == -1) {
+                prelim[v] = left == -1 ? 0 : prelim[left] + distance(left, v);
+                return;
+            }
+            double midpoint = (prelim[v + 1] + prelim[lastChild[v]]) / 2;
+            if (left == -1) {
+                prelim[v] = midpoint;
+            } else {
+                prelim[v] = prelim[left] + distance(left, v);
+                mod[v] = prelim[v] - midpoint;
+            }
+        }
+
+        /**
+         * Moves the subtree of {@code v} right until it clears the subtrees of its left siblings at
+         * every depth, spreading the shift over the siblings in between, and threads the contours.
+         */
+        private int apportion(int v, int defaultAncestor) {
+            int w = leftSibling[v];
+            if (w == -1) {
+                return defaultAncestor;
+            }
+            int innerRight = v;
+            int outerRight = v;
+            int innerLeft = w;
+            int outerLeft = parent[v] + 1;
+            double innerRightMod = mod[innerRight];
+            double outerRightMod = mod[outerRight];
+            double innerLeftMod = mod[innerLeft];
+            double outerLeftMod = mod[outerLeft];
+            while (nextRight(innerLeft) != -1 && nextLeft(innerRight) != -1) {
+                innerLeft = nextRight(innerLeft);
+                innerRight = nextLeft(innerRight);
+                outerLeft = nextLeft(outerLeft);
+                outerRight = nextRight(outerRight);
+                ancestor[outerRight] = v;
+                double overlap = (prelim[innerLeft] + innerLeftMod) - (prelim[innerRight] + innerRightMod)
+                        + distance(innerLeft, innerRight);
+                if (overlap > 0) {
+                    int leftAncestor = parent[ancestor[innerLeft]] == parent[v] ? ancestor[innerLeft] : defaultAncestor;
+                    moveSubtree(leftAncestor, v, overlap);
+                    innerRightMod += overlap;
+                    outerRightMod += overlap;
+                }
+                innerLeftMod += mod[innerLeft];
+                innerRightMod += mod[innerRight];
+                outerLeftMod += mod[outerLeft];
+                outerRightMod += mod[outerRight];
+            }
+            if (nextRight(innerLeft) != -1 && nextRight(outerRight) == -1) {
+                thread[outerRight] = nextRight(innerLeft);
+                mod[outerRight] += innerLeftMod - outerRightMod;
+            }
+            if (nextLeft(innerRight) != -1 && nextLeft(outerLeft) == -1) {
+                thread[outerLeft] = nextLeft(innerRight);
+                mod[outerLeft] += innerRightMod - outerLeftMod;
+                defaultAncestor = v;
+            }
+            return defaultAncestor;
+        }
+
+        private void moveSubtree(int left, int right, double distance) {
+            int subtrees = number[right] - number[left];
+            change[right] -= distance / subtrees;
+            shift[right] += distance;
+            change[left] += distance / subtrees;
+            prelim[right] += distance;
+            mod[right] += distance;
+        }
+
+        /** Applies the shifts recorded by apportion to the children of {@code v} in one pass. */
+        private void executeShifts(int v) {
+            double totalShift = 0;
+            double totalChange = 0;
+            for (int w = lastChild[v]; w != -1; w = leftSibling[w]) {
+                prelim[w] += totalShift;
+                mod[w] += totalShift;
+                totalChange += change[w];
+                totalShift += shift[w] + totalChange;
+            }
+        }
+
+        private int nextLeft(int v) {
+            return lastChild[v] != -1 ? v + 1 : thread[v];
+        }
+
+        private int nextRight(int v) {
+            return lastChild[v] != -1 ? lastChild[v] : thread[v];
+        }
+
+        /** Minimum distance between the centers of two neighbouring nodes of the same row. */
+        private double distance(int left, int right) {
+            return (graph.width[root + left] + graph.width[root + right]) / 2.0 + SIBLING_SPACING;
+        }
+    }
+
+    /**
+     * Layered drawing of the whole graph in the manner of Sugiyama, Tagawa and Toda. The layers
+     * follow the hierarchy: supertypes above their subtypes and containers above their contents,
+     * with cycles broken by reversing the back edges of a depth-first search. Every node goes on the
+     * layer of the longest hierarchy path leading to it (sources are moved down next to their
+     * successors), and nodes outside the hierarchy go just below the nodes referring to them, so
+     * that references cannot stretch the diagram into hundreds of layers. All edges then take part
+     * in ordering: those spanning several layers are split by virtual nodes, alternating barycenter
+     * sweeps reorder the layers to reduce crossings, and finally nodes are moved towards the centers
+     * of their neighbours as far as the spacing within their layer allows.
+     *
+     * <p>Everything but the sweeps is linear in the size of the graph. Sweeping stops once a few
+     * sweeps in a row have not reduced the number of crossings, or when the time budget runs out;
+     * either way the best order found is kept. Without any budget that is the depth-first
+     * discovery order, which already keeps related nodes close together.
+     */
+    private static final class LayeredLayout {
+        private static final int MAX_SWEEPS = 32;
+        private static final int MAX_STALE_SWEEPS = 4;
+        private static final int COORDINATE_PASSES = 4;
+        // Beyond this many virtual nodes, edges that span several layers are left out of the ordering
+        private static final int MAX_VIRTUAL_NODES = 1 << 20;
+
+        private final DiagramGraph graph;
+        private final int nodeCount;
+        private final long deadline;
+
+        // Edges between the real nodes, the hierarchy edges first; once layered, all are oriented
+        // from the upper to the lower node and those within a layer are dropped
+        private int[] from;
+        private int[] to;
+        private int hierarchyCount;
+        private int[] successorStart;
+        private int[] successors;
+        private int[] predecessorStart;
+        private int[] predecessors;
+
+        // Real nodes first, then virtual ones; segments join vertices of neighbouring layers
+        private int[] layer;
+        private int[][] layers;
+        private int[] position;
+        private int[] downStart;
+        private int[] down;
+        private int[] upStart;
+        private int[] up;
+
+        private double[] key;
+        private int[] sortBuffer;
+
+        private LayeredLayout(DiagramGraph graph, long budgetMillis) {
+            this.graph = graph;
+            this.nodeCount = graph.size;
+            this.deadline = System.nanoTime() + budgetMillis * 1_000_000L;
+        }
+
+        static void layout(DiagramGraph graph, long budgetMillis) {
+            LayeredLayout layout = new LayeredLayout(graph, budgetMillis);
+            int[] rank = layout.orient();
+            layout.assignLayers();
+            layout.splitLongEdges(rank);
+            layout.reduceCrossings();
+            layout.place();
+        }
+
+        /**
+         * Collects the edges, the hierarchy edges from supertype to subtype and from container to
+         * contents, and reverses those closing a cycle of the hierarchy. Returns the depth-first
+         * discovery rank of every node.
+         */
+        private int[] orient() {
+            int[] parents = graph.parents;
+            EdgeTable containmentRefs = graph.containmentRefs;
+            EdgeTable references = graph.references;
+            int capacity = graph.children.length + containmentRefs.size() + references.size();
+            from = new int[capacity];
+            to = new int[capacity];
+            int edgeCount = 0;
+            for (int v = 0; v < nodeCount; v++) {
+                if (parents[v] >= 0) {
+                    from[edgeCount] = parents[v];
+                    to[edgeCount] = v;
+                    edgeCount++;
+                }
+            }
+            for (int pass = 0; pass < 2; pass++) {
+                for (EdgeTable edges : List.of(containmentRefs, references)) {
+                    for (int source = 0; source < nodeCount; source++) {
+                        for (int e = edges.start[source]; e < edges.start[source + 1]; e++) {
+                            boolean generalization = edges == references && edges.isGeneralization(e);
+                            boolean hierarchy = edges != references || generalization;
+                            int target = edges.targets[e];
+                            if (hierarchy != (pass == 0) || source == target) {
+                                continue;
+                            }
+                            from[edgeCount] = generalization ? target : source;
+                            to[edgeCount] = generalization ? source : target;
+                            edgeCount++;
+                        }
+                    }
+                }
+                if (pass == 0) {
+                    hierarchyCount = edgeCount;
+                }
+            }
+            from = Arrays.copyOf(from, edgeCount);
+            to = Arrays.copyOf(to, edgeCount);
+
+            // Depth-first search with an explicit stack, starting from the sources; an edge into a
+            // node still on the stack closes a cycle and is turned around
+            int[] outStart = new int[nodeCount + 1];
+            int[] outEdges = adjacency(Arrays.copyOf(from, hierarchyCount), nodeCount, outStart);
+            int[] inDegree = new int[nodeCount];
+            for (int e = 0; e < hierarchyCount; e++) {
+                inDegree[to[e]]++;
+            }
+            int[] state = new int[nodeCount];
+            int[] rank = new int[nodeCount];
+            int[] next = new int[nodeCount];
+            int[] stack = new int[nodeCount];
+            int discovered = 0;
+            for (int pass = 0; pass < 2; pass++) {
+                for (int start = 0; start < nodeCount; start++) {
+                    if (state[start] != 0 || (pass == 0 && inDegree[start] != 0)) {
+                        continue;
+                    }
+                    int depth = 0;
+                    stack[depth++] = start;
+                    state[start] = 1;
+                    rank[start] = discovered++;
+                    next[start] = outStart[start];
+                    while (depth > 0) {
+                        int v = stack[depth - 1];
+                        if (next[v] == outStart[v + 1]) {
+                            state[v] = 2;
+                            depth--;
+                            continue;
+                        }
+                        int e = outEdges[next[v]++];
+                        int w = to[e];
+                        if (state[w] == 1) {
+                            to[e] = from[e];
+                            from[e] = w;
+                        } else if (state[w] == 0) {
+                            stack[depth++] = w;
+                            state[w] = 1;
+                            rank[w] = discovered++;
+                            next[w] = outStart[w];
+                        }
+                    }
+                }
+            }
+            return rank;
+        }
+
+        /**
+         * Longest-path layering of the hierarchy in topological order. Sources are then moved down
+         * to just above their highest successor, which shortens their edges without lengthening any
+         * other, and nodes outside the hierarchy are put below the lowest hierarchy node referring
+         * to them. Finally all edges are oriented downwards.
+         */
+        private void assignLayers() {
+            int[] hierarchyFrom = Arrays.copyOf(from, hierarchyCount);
+            int[] hierarchyTo = Arrays.copyOf(to, hierarchyCount);
+            int[] outStart = new int[nodeCount + 1];
+            int[] out = targets(adjacency(hierarchyFrom, nodeCount, outStart), hierarchyTo);
+            int[] inStart = new int[nodeCount + 1];
+            adjacency(hierarchyTo, nodeCount, inStart);
+
+            layer = new int[nodeCount];
+            int[] inDegree = new int[nodeCount];
+            for (int target : hierarchyTo) {
+                inDegree[target]++;
+            }
+            int[] order = new int[nodeCount];
+            int head = 0;
+            int tail = 0;
+            for (int v = 0; v < nodeCount; v++) {
+                if (inDegree[v] == 0) {
+                    order[tail++] = v;
+                }
+            }
+            while (head < tail) {
+                int v = order[head++];
+                for (int i = outStart[v]; i < outStart[v + 1]; i++) {
+                    int w = out[i];
+                    layer[w] = Math.max(layer[w], layer[v] + 1);
+                    if (--inDegree[w] == 0) {
+                        order[tail++] = w;
+                    }
+                }
+            }
+            for (int v = 0; v < nodeCount; v++) {
+                if (inStart[v] == inStart[v + 1] && outStart[v] < outStart[v + 1]) {
+                    int highest = Integer.MAX_VALUE;
+                    for (int i = outStart[v]; i < outStart[v + 1]; i++) {
+                        highest = Math.min(highest, layer[out[i]]);
+                    }
+                    layer[v] = highest - 1;
+                }
+            }
+            for (int e = hierarchyCount; e < from.length; e++) {
+                int source = from[e];
+                int target = to[e];
+                boolean sourceInHierarchy = inStart[source] < inStart[source + 1] || outStart[source] < outStart[source + 1];
+                boolean targetInHierarchy = inStart[target] < inStart[target + 1] || outStart[target] < outStart[target + 1];
+                if (sourceInHierarchy && !targetInHierarchy) {
+                    layer[target] = Math.max(layer[target], layer[source] + 1);
+                }
+            }
+
+            int edgeCount = 0;
+            for (int e = 0; e < from.length; e++) {
+                int upper = layer[from[e]] < layer[to[e]] ? from[e] : to[e];
+                int lower = upper == from[e] ? to[e] : from[e];
+                if (layer[upper] != layer[lower]) {
+                    from[edgeCount] = upper;
+                    to[edgeCount++] = lower;
+                }
+            }
+            from = Arrays.copyOf(from, edgeCount);
+            to = Arrays.copyOf(to, edgeCount);
+            successorStart = new int[nodeCount + 1];
+            successors = targets(adjacency(from, nodeCount, successorStart), to);
+            predecessorStart = new int[nodeCount + 1];
+            predecessors = targets(adjacency(to, nodeCount, predecessorStart), from);
+        }
+
+        /**
+         * Splits every edge into segments between neighbouring layers, with a virtual node on each
+         * layer in between, and fills the layers in discovery order. Virtual nodes follow the node
+         * their edge comes from.
+         */
+        private void splitLongEdges(int[] rank) {
+            long virtualCount = 0;
+            int layerCount = 0;
+            for (int e = 0; e < from.length; e++) {
+                virtualCount += layer[to[e]] - layer[from[e]] - 1;
+            }
+            boolean split = virtualCount <= MAX_VIRTUAL_NODES;
+            int vertexCount = nodeCount + (split ? (int) virtualCount : 0);
+            for (int v = 0; v < nodeCount; v++) {
+                layerCount = Math.max(layerCount, layer[v] + 1);
+            }
+
+            layer = Arrays.copyOf(layer, vertexCount);
+            key = new double[vertexCount];
+            for (int v = 0; v < nodeCount; v++) {
+                key[v] = rank[v];
+            }
+            int segmentCapacity = from.length + (split ? (int) virtualCount : 0);
+            int[] segmentFrom = new int[segmentCapacity];
+            int[] segmentTo = new int[segmentCapacity];
+            int segmentCount = 0;
+            int vertex = nodeCount;
+            for (int e = 0; e < from.length; e++) {
+                int upper = from[e];
+                int span = layer[to[e]] - layer[upper];
+                if (span > 1 && !split) {
+                    continue;
+                }
+                for (int step = 1; step < span; step++) {
+                    layer[vertex] = layer[upper] + 1;
+                    key[vertex] = rank[from[e]] + 0.5;
+                    segmentFrom[segmentCount] = upper;
+                    segmentTo[segmentCount++] = vertex;
+                    upper = vertex++;
+                }
+                segmentFrom[segmentCount] = upper;
+                segmentTo[segmentCount++] = to[e];
+            }
+            segmentFrom = Arrays.copyOf(segmentFrom, segmentCount);
+            segmentTo = Arrays.copyOf(segmentTo, segmentCount);
+            downStart = new int[vertexCount + 1];
+            down = targets(adjacency(segmentFrom, vertexCount, downStart), segmentTo);
+            upStart = new int[vertexCount + 1];
+            up = targets(adjacency(segmentTo, vertexCount, upStart), segmentFrom);
+
+            int[] width = new int[layerCount];
+            for (int v = 0; v < vertexCount; v++) {
+                width[layer[v]]++;
+            }
+            layers = new int[layerCount][];
+            int maxWidth = 0;
+            for (int l = 0; l < layerCount; l++) {
+                layers[l] = new int[width[l]];
+                maxWidth = Math.max(maxWidth, width[l]);
+                width[l] = 0;
+            }
+            for (int v = 0; v < vertexCount; v++) {
+                layers[layer[v]][width[layer[v]]++] = v;
+            }
+            sortBuffer = new int[maxWidth];
+            position = new int[vertexCount];
+            for (int[] row : layers) {
+                sortByKey(row);
+            }
+        }
+
+        /** Alternating downward and upward barycenter sweeps, for as long as they pay off and time allows. */
+        private void reduceCrossings() {
+            int[][] best = copyOf(layers);
+            if (outOfTime()) {
+                return;
+            }
+            long bestCrossings = crossings();
+            int stale = 0;
+            for (int sweep = 0; sweep < MAX_SWEEPS && stale < MAX_STALE_SWEEPS; sweep++) {
+                if (!sweep(sweep % 2 == 0)) {
+                    break;
+                }
+                long crossings = crossings();
+                if (crossings < bestCrossings) {
+                    bestCrossings = crossings;
+                    best = copyOf(layers);
+                    stale = 0;
+                } else {
+                    stale++;
+                }
+                if (bestCrossings == 0) {
+                    break;
+                }
+            }
+            layers = best;
+            for (int[] row : layers) {
+                for (int i = 0; i < row.length; i++) {
+                    position[row[i]] = i;
+                }
+            }
+        }
+
+        /**
+         * Sorts every layer by the mean position of its neighbours in the layer above (or below), in
+         * sweep order. Returns {@code false}, leaving the layers half sorted, when time runs out.
+         */
+        private boolean sweep(boolean downwards) {
+            int layerCount = layers.length;
+            for (int k = 1; k < layerCount; k++) {
+                if (outOfTime()) {
+                    return false;
+                }
+                int[] row = layers[downwards ? k : layerCount - 1 - k];
+                int[] start = downwards ? upStart : downStart;
+                int[] neighbours = downwards ? up : down;
+                for (int v : row) {
+                    int count = start[v + 1] - start[v];
+                    if (count == 0) {
+                        key[v] = position[v];
+                        continue;
+                    }
+                    long sum = 0;
+                    for (int i = start[v]; i < start[v + 1]; i++) {
+                        sum += position[neighbours[i]];
+                    }
+                    key[v] = (double) sum / count;
+                }
+                sortByKey(row);
+            }
+            return true;
+        }
+
+        /**
+         * Counts the crossings between every pair of neighbouring layers as the inversions among
+         * the lower ends of the segments taken in the order of their upper ends (Barth, Mutzel and
+         * Juenger), with a Fenwick tree.
+         */
+        private long crossings() {
+            int[] sequence = new int[down.length];
+            int[] tree = new int[sortBuffer.length + 1];
+            long crossings = 0;
+            for (int l = 0; l + 1 < layers.length; l++) {
+                int length = 0;
+                for (int v : layers[l]) {
+                    int begin = length;
+                    for (int i = downStart[v]; i < downStart[v + 1]; i++) {
+                        sequence[length++] = position[down[i]];
+                    }
+                    Arrays.sort(sequence, begin, length);
+                }
+                int size = layers[l + 1].length;
+                Arrays.fill(tree, 0, size + 1, 0);
+                for (int i = 0; i < length; i++) {
+                    // Segments already seen whose lower end lies further right cross this one
+                    int notGreater = 0;
+                    for (int j = sequence[i] + 1; j > 0; j -= j & -j) {
+                        notGreater += tree[j];
+                    }
+                    crossings += i - notGreater;
+                    for (int j = sequence[i] + 1; j <= size; j += j & -j) {
+                        tree[j]++;
+                    }
+                }
+            }
+            return crossings;
+        }
+
+        /**
+         * Assigns coordinates: layers become rows as high as their tallest node, and within each row
+         * the real nodes keep their order and spacing while moving towards the mean center of their
+         * neighbours, alternately those above and those below.
+         */
+        private void place() {
+            int layerCount = layers.length;
+            int[][] rows = new int[layerCount][];
+            double[] center = new double[nodeCount];
+            int rowTop = 0;
+            for (int l = 0; l < layerCount; l++) {
+                int[] row = Arrays.stream(layers[l]).filter(v -> v < nodeCount).toArray();
+                rows[l] = row;
+                double x = 0;
+                int height = 0;
+                for (int v : row) {
+                    center[v] = x + graph.width[v] / 2.0;
+                    x += graph.width[v] + SIBLING_SPACING;
+                    graph.y[v] = rowTop;
+                    height = Math.max(height, graph.height[v]);
+                }
+                rowTop += height + LEVEL_SPACING;
+            }
+
+            double[] desired = new double[sortBuffer.length];
+            double[] left = new double[sortBuffer.length];
+            for (int pass = 0; pass < COORDINATE_PASSES * 2; pass++) {
+                boolean downwards = pass % 2 == 0;
+                int[] start = downwards ? predecessorStart : successorStart;
+                int[] neighbours = downwards ? predecessors : successors;
+                for (int k = 1; k < layerCount; k++) {
+                    int[] row = rows[downwards ? k : layerCount - 1 - k];
+                    int count = row.length;
+                    if (count == 0) {
+                        continue;
+                    }
+                    for (int i = 0; i < count; i++) {
+                        int v = row[i];
+                        double sum = 0;
+                        for (int j = start[v]; j < start[v + 1]; j++) {
+                            sum += center[neighbours[j]];
+                        }
+                        desired[i] = start[v] < start[v + 1] ? sum / (start[v + 1] - start[v]) : center[v];
+                    }
+                    // The closest placements keeping the spacing when packing from the left and from
+                    // the right; their mean keeps it too
+                    left[0] = desired[0];
+                    for (int i = 1; i < count; i++) {
+                        left[i] = Math.max(desired[i], left[i - 1] + distance(row[i - 1], row[i]));
+                    }
+                    double right = desired[count - 1];
+                    center[row[count - 1]] = (left[count - 1] + right) / 2;
+                    for (int i = count - 2; i >= 0; i--) {
+                        right = Math.min(desired[i], right - distance(row[i], row[i + 1]));
+                        center[row[i]] = (left[i] + right) / 2;
+                    }
+                }
+            }
+            for (int v = 0; v < nodeCount; v++) {
+                graph.x[v] = (int) Math.round(center[v] - graph.width[v] / 2.0);
+            }
+        }
+
+        private double distance(int left, int right) {
+            return (graph.width[left] + graph.width[right]) / 2.0 + SIBLING_SPACING;
+        }
+
+        private boolean outOfTime() {
+            return System.nanoTime() - deadline >= 0;
+        }
+
+        /** Stable merge sort of {@code row} by {@link #key}, then renumbering of the positions. */
+        private void sortByKey(int[] row) {
+            int[] source = row;
+            int[] target = sortBuffer;
+            for (int width = 1; width < row.length; width *= 2) {
+                for (int low = 0; low < row.length; low += 2 * width) {
+                    int middle = Math.min(low + width, row.length);
+                    int high = Math.min(low + 2 * width, row.length);
+                    int i = low;
+                    int j = middle;
+                    for (int k = low; k < high; k++) {
+                        target[k] = j >= high || (i < middle && key[source[i]] <= key[source[j]])
+                                ? source[i++] : source[j++];
+                    }
+                }
+                int[] swap = source;
+                source = target;
+                target = swap;
+            }
+            if (source != row) {
+                System.arraycopy(source, 0, row, 0, row.length);
+            }
+            for (int i = 0; i < row.length; i++) {
+                position[row[i]] = i;
+            }
+        }
+
+        /**
+         * Groups the edge indices by {@code ends[e]} in compressed-row form: the edges of vertex
+         * {@code v} are found at {@code start[v]} (inclusive) to {@code start[v + 1]}.
+         */
+        private static int[] adjacency(int[] ends, int vertexCount, int[] start) {
+            for (int end : ends) {
+                start[end + 1]++;
+            }
+            for (int v = 0; v < vertexCount; v++) {
+                start[v + 1] += start[v];
+            }
+            int[] fill = Arrays.copyOf(start, vertexCount);
+            int[] edges = new int[ends.length];
+            for (int e = 0; e < ends.length; e++) {
+                edges[fill[ends[e]]++] = e;
+            }
+            return edges;
+        }
+
+        private static int[] targets(int[] edges, int[] ends) {
+            int[] vertices = new int[edges.length];
+            for (int i = 0; i < edges.length; i++) {
+                vertices[i] = ends[edges[i]];
+            }
+            return vertices;
+        }
+
+        private static int[][] copyOf(int[][] rows) {
+            int[][] copy = new int[rows.length][];
+            for (int i = 0; i < rows.length; i++) {
+                copy[i] = rows[i].clone();
+            }
+            return copy;
+        }
+    }
+
+    /**
+     * Routes edges as horizontal and vertical segments around the nodes. The diagram is divided
+     * into square cells, and the cells overlapped by a node are marked in an occupancy bit set,
+     * kept both row by row and column by column. Every edge is an A* search from the cell just
+     * outside the side of its source it leaves by to the cell just outside the side of its target
+     * it enters by, in which a bend costs as much as several cells.
+     *
+     * <p>The search does not step from cell to cell: it jumps along a row or column until the next
+     * cell is occupied, a neighbouring row or column changes between free and occupied (a corner
+     * to turn around) or it reaches the row or column of the goal, reading the bit sets 64 cells at
+     * a time. So a route of k cells costs O(k / 64) for scanning and O(j log j) for the j points it
+     * stops at, which are few more than its bends. A search stays within a window around its two
+     * end cells and gives up after a fixed number of points; the edge then takes the nearest free
+     * channel with a single run between its two ends, as a long edge along a row of nodes does, or
+     * failing that a route with at most three bends that ignores the nodes.
+     */
+    private static final class OrthogonalRouter {
+        private static final int CELL_SIZE = 12;
+        // Diagrams with more cells than this are routed on coarser cells
+        private static final long MAX_CELLS = 1L << 27;
+        private static final int BEND_COST = 4;
+        private static final int WINDOW_MARGIN = 64;
+        private static final int MAX_EXPANSIONS = 1 << 8;
+        private static final int TABLE_BITS = 15;
+        private static final int RIGHT = 0;
+        private static final int DOWN = 1;
+        private static final int LEFT = 2;
+        private static final int UP = 3;
+
+        private final DiagramGraph graph;
+        private final int cellSize;
+        private final int columns;
+        private final int rows;
+        // Occupied cells, at bit row * columns + column, respectively column * rows + row
+        private final long[] byRow;
+        private final long[] byColumn;
+
+        // Search states, a cell and the direction it was entered in, in an open-addressing table
+        // that is emptied by starting a new generation; the open list is a binary heap of
+        // priorities packed together with the table slot
+        private final long[] stateKeys = new long[1 << TABLE_BITS];
+        private final int[] stateGeneration = new int[1 << TABLE_BITS];
+        private final int[] stateCost = new int[1 << TABLE_BITS];
+        private final int[] stateParent = new int[1 << TABLE_BITS];
+        private final boolean[] stateClosed = new boolean[1 << TABLE_BITS];
+        private int generation;
+        private int stateCount;
+        private long[] heap = new long[1 << 10];
+        private int heapSize;
+        private int[] points = new int[64];
+        private int pointCount;
+
+        // The window of the current search
+        private int minColumn;
+        private int maxColumn;
+        private int minRow;
+        private int maxRow;
+
+        private OrthogonalRouter(DiagramGraph graph, int width, int height) {
+            this.graph = graph;
+            this.cellSize = Math.max(CELL_SIZE, (int) Math.ceil(Math.sqrt((double) width * height / MAX_CELLS)));
+            this.columns = width / cellSize + 1;
+            this.rows = height / cellSize + 1;
+            this.byRow = new long[(int) (((long) columns * rows + 63) >>> 6)];
+            this.byColumn = new long[byRow.length];
+            for (int v = 0; v < graph.size; v++) {
+                int c1 = Math.min(columns - 1, (graph.right(v) - 1) / cellSize);
+                int r1 = Math.min(rows - 1, (graph.bottom(v) - 1) / cellSize);
+                for (int r = Math.max(0, graph.y[v] / cellSize); r <= r1; r++) {
+                    for (int c = Math.max(0, graph.x[v] / cellSize); c <= c1; c++) {
+                        long cell = (long) r * columns + c;
+                        byRow[(int) (cell >>> 6)] |= 1L << cell;
+                        cell = (long) c * rows + r;
+                        byColumn[(int) (cell >>> 6)] |= 1L << cell;
+                    }
+                }
+            }
+        }
+
+        /** Shares the occupancy of {@code grid}, with search state of its own. */
+        private OrthogonalRouter(OrthogonalRouter grid) {
+            this.graph = grid.graph;
+            this.cellSize = grid.cellSize;
+            this.columns = grid.columns;
+            this.rows = grid.rows;
+            this.byRow = grid.byRow;
+            this.byColumn = grid.byColumn;
+        }
+
+        /**
+         * Routes the containment references and then the references, as polylines of alternating
+         * x and y coordinates that start and end on the borders of the nodes. Edges are routed
+         * independently of each other, so with a pool they are routed in parallel, with the same
+         * result.
+         */
+        static int[][] route(DiagramGraph graph, int width, int height, ForkJoinPool pool) {
+            OrthogonalRouter grid = new OrthogonalRouter(graph, width, height);
+            int[][] routes = new int[graph.edgeCount()][];
+            if (pool == null) {
+                for (int edge = 0; edge < routes.length; edge++) {
+                    routes[edge] = grid.route(edge);
+                }
+            } else {
+                pool.invoke(new RouteTask(grid, routes, 0, routes.length));
+            }
+            return routes;
+        }
+
+        /** Routes the containment reference or reference {@code edge} is the number of. */
+        private int[] route(int edge) {
+            return route(graph.edgeSource(edge), graph.edgeTarget(edge), graph.isGeneralization(edge));
+        }
+
+        /**
+         * Generalizations leave and enter vertically, like their straight counterparts. Other edges
+         * connect the sides facing each other, horizontally unless the two nodes overlap in x.
+         */
+        private int[] route(int source, int target, boolean vertical) {
+            int exit;
+            int entry;
+            if (vertical) {
+                exit = entry = graph.isAbove(target, source) ? UP : DOWN;
+            } else if (graph.x[target] >= graph.right(source)) {
+                exit = entry = RIGHT;
+            } else if (graph.right(target) <= graph.x[source]) {
+                exit = entry = LEFT;
+            } else if (graph.isAbove(source, target)) {
+                exit = entry = DOWN;
+            } else if (graph.isAbove(target, source)) {
+                exit = entry = UP;
+            } else {
+                // Overlapping nodes, typically an edge from a node to itself: around the corner
+                exit = RIGHT;
+                entry = DOWN;
+            }
+            int targetSide = entry ^ 2;
+            int startColumn = sideColumn(source, exit);
+            int startRow = sideRow(source, exit);
+            int goalColumn = sideColumn(target, targetSide);
+            int goalRow = sideRow(target, targetSide);
+
+            pointCount = 0;
+            addPoint(exit == RIGHT ? graph.right(source) : exit == LEFT ? graph.x[source] : center(startColumn),
+                    exit == DOWN ? graph.bottom(source) : exit == UP ? graph.y[source] : center(startRow));
+            int goal = search(startColumn, startRow, exit, goalColumn, goalRow);
+            boolean horizontalExit = (exit & 1) == 0;
+            boolean horizontalEntry = (entry & 1) == 0;
+            if (goal >= 0) {
+                addPath(goal);
+            } else if (horizontalExit != horizontalEntry
+                    || !addChannel(startColumn, startRow, goalColumn, goalRow, horizontalExit)) {
+                addPoint(center(startColumn), center(startRow));
+                if (horizontalExit && horizontalEntry) {
+                    int middle = (center(startColumn) + center(goalColumn)) / 2;
+                    addPoint(middle, center(startRow));
+                    addPoint(middle, center(goalRow));
+                } else if (!horizontalExit && !horizontalEntry) {
+                    int middle = (center(startRow) + center(goalRow)) / 2;
+                    addPoint(center(startColumn), middle);
+                    addPoint(center(goalColumn), middle);
+                } else if (horizontalExit) {
+                    addPoint(center(goalColumn), center(startRow));
+                } else {
+                    addPoint(center(startColumn), center(goalRow));
+                }
+                addPoint(center(goalColumn), center(goalRow));
+            }
+            addPoint(targetSide == RIGHT ? graph.right(target) : targetSide == LEFT ? graph.x[target] : center(goalColumn),
+                    targetSide == DOWN ? graph.bottom(target) : targetSide == UP ? graph.y[target] : center(goalRow));
+            if (pointCount == 1) {
+                addPoint(points[0] + 1, points[1]);
+            }
+            return Arrays.copyOf(points, 2 * pointCount);
+        }
+
+        /** Returns the table slot of the goal state, or -1 when the search gave up. */
+        private int search(int startColumn, int startRow, int exit, int goalColumn, int goalRow) {
+            minColumn = Math.max(0, Math.min(startColumn, goalColumn) - WINDOW_MARGIN);
+            maxColumn = Math.min(columns - 1, Math.max(startColumn, goalColumn) + WINDOW_MARGIN);
+            minRow = Math.max(0, Math.min(startRow, goalRow) - WINDOW_MARGIN);
+            maxRow = Math.min(rows - 1, Math.max(startRow, goalRow) + WINDOW_MARGIN);
+            generation++;
+            stateCount = 0;
+            heapSize = 0;
+
+            int start = state(startColumn, startRow, exit);
+            stateCost[start] = 0;
+            stateParent[start] = -1;
+            push(start, Math.abs(goalColumn - startColumn) + Math.abs(goalRow - startRow));
+            int expansions = 0;
+            while (heapSize > 0) {
+                int slot = pop();
+                if (stateClosed[slot]) {
+                    continue;
+                }
+                stateClosed[slot] = true;
+                long key = stateKeys[slot];
+                int direction = (int) (key & 3);
+                int column = (int) ((key >>> 2) % columns);
+                int row = (int) ((key >>> 2) / columns);
+                if (column == goalColumn && row == goalRow) {
+                    return slot;
+                }
+                if (++expansions > MAX_EXPANSIONS) {
+                    return -1;
+                }
+                // Straight on or a quarter turn either way, never back
+                for (int turn = -1; turn <= 1; turn++) {
+                    int next = (direction + turn) & 3;
+                    int nextColumn = column;
+                    int nextRow = row;
+                    if ((next & 1) == 0) {
+                        nextColumn = jump(byRow, columns, row, rows, column, next == RIGHT ? 1 : -1,
+                                next == RIGHT ? maxColumn : minColumn, goalColumn, row == goalRow);
+                    } else {
+                        nextRow = jump(byColumn, rows, column, columns, row, next == DOWN ? 1 : -1,
+                                next == DOWN ? maxRow : minRow, goalRow, column == goalColumn);
+                    }
+                    int distance = Math.abs(nextColumn - column) + Math.abs(nextRow - row);
+                    if (distance == 0) {
+                        continue;
+                    }
+                    int cost = stateCost[slot] + distance + (turn != 0 ? BEND_COST : 0);
+                    int nextSlot = state(nextColumn, nextRow, next);
+                    if (nextSlot < 0) {
+                        return -1;
+                    }
+                    if (!stateClosed[nextSlot] && cost < stateCost[nextSlot]) {
+                        stateCost[nextSlot] = cost;
+                        stateParent[nextSlot] = slot;
+                        push(nextSlot, cost + Math.abs(goalColumn - nextColumn) + Math.abs(goalRow - nextRow));
+                    }
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Adds the shortest free route that leaves the start cell and enters the goal cell
+         * perpendicularly to {@code horizontal} ports, with a single run in between, trying the
+         * lines between the two cells first and then those ever further outside. This finds the
+         * channel between two rows of nodes that long edges typically follow, for which the search
+         * would have to stop at every node along the way.
+         */
+        private boolean addChannel(int startColumn, int startRow, int goalColumn, int goalRow, boolean horizontal) {
+            // In terms of rows for horizontal ports; columns and rows swap places for vertical ones
+            long[] along = horizontal ? byRow : byColumn;
+            long[] across = horizontal ? byColumn : byRow;
+            int length = horizontal ? columns : rows;
+            int width = horizontal ? rows : columns;
+            int start = horizontal ? startColumn : startRow;
+            int startLine = horizontal ? startRow : startColumn;
+            int goal = horizontal ? goalColumn : goalRow;
+            int goalLine = horizontal ? goalRow : goalColumn;
+            int low = Math.min(startLine, goalLine);
+            int high = Math.max(startLine, goalLine);
+            int first = Math.max(0, low - WINDOW_MARGIN);
+            int last = Math.min(width - 1, high + WINDOW_MARGIN);
+            for (int offset = 0; offset <= high - low + 2 * WINDOW_MARGIN; offset++) {
+                // low, low + 1, ... high, then alternately below low and beyond high
+                int line = offset <= high - low ? low + offset
+                        : (offset - (high - low)) % 2 == 1 ? low - (offset - (high - low) + 1) / 2
+                        : high + (offset - (high - low)) / 2;
+                if (line < first || line > last
+                        || !isFree(along, (long) line * length, start, goal)
+                        || !isFree(across, (long) start * width, startLine, line)
+                        || !isFree(across, (long) goal * width, line, goalLine)) {
+                    continue;
+                }
+                addPoint(center(startColumn), center(startRow));
+                if (horizontal) {
+                    addPoint(center(startColumn), center(line));
+                    addPoint(center(goalColumn), center(line));
+                } else {
+                    addPoint(center(line), center(startRow));
+                    addPoint(center(line), center(goalRow));
+                }
+                addPoint(center(goalColumn), center(goalRow));
+                return true;
+            }
+            return false;
+        }
+
+        /** Whether the cells {@code from} to {@code to}, in either order, of a line are all free. */
+        private static boolean isFree(long[] set, long line, int from, int to) {
+            int last = Math.max(from, to);
+            for (int position = Math.min(from, to); position <= last; position += 64) {
+                long cells = cells(set, line + position, 1);
+                if (last - position < 63) {
+                    cells &= (1L << (last - position + 1)) - 1;
+                }
+                if (cells != 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Moves from {@code from} along line {@code line} of {@code set} (a row of the row-major or
+         * a column of the column-major bit set) in direction {@code step} and returns where to stop:
+         * before the next occupied cell or {@code limit}, at the first cell where one of the two
+         * neighbouring lines changes between free and occupied, or at {@code goal}. The goal cell
+         * itself counts as free on the goal's line.
+         */
+        private static int jump(long[] set, int length, int line, int lines, int from, int step, int limit, int goal,
+                boolean goalLine) {
+            long base = (long) line * length;
+            long before = line > 0 ? base - length : -1;
+            long after = line < lines - 1 ? base + length : -1;
+            for (int position = from + step;; position += 64 * step) {
+                int remaining = (limit - position) * step + 1;
+                if (remaining <= 0) {
+                    return position - step;
+                }
+                long blocked = cells(set, base + position, step);
+                long turns = 0;
+                if (before >= 0) {
+                    turns |= ~cells(set, before + position, step) & cells(set, before + position - step, step);
+                }
+                if (after >= 0) {
+                    turns |= ~cells(set, after + position, step) & cells(set, after + position - step, step);
+                }
+                int toGoal = (goal - position) * step;
+                if (toGoal >= 0 && toGoal < 64) {
+                    turns |= 1L << toGoal;
+                    if (goalLine) {
+                        blocked &= ~(1L << toGoal);
+                    }
+                }
+                if (remaining < 64) {
+                    blocked |= -1L << remaining;
+                }
+                int free = Long.numberOfTrailingZeros(blocked);
+                int turn = Long.numberOfTrailingZeros(turns);
+                if (turn < free) {
+                    return position + turn * step;
+                }
+                if (free < 64) {
+                    return position + (free - 1) * step;
+                }
+            }
+        }
+
+        /** The 64 bits of {@code set} from {@code index} on, towards higher or lower indices. */
+        private static long cells(long[] set, long index, int step) {
+            if (step < 0) {
+                return Long.reverse(cells(set, index - 63, 1));
+            }
+            int word = (int) (index >> 6);
+            int shift = (int) (index & 63);
+            long low = word >= 0 && word < set.length ? set[word] >>> shift : 0;
+            long high = shift != 0 && word + 1 >= 0 && word + 1 < set.length ? set[word + 1] << (64 - shift) : 0;
+            return low | high;
+        }
+
+        /** Adds the cells from the start state to {@code goal}, following the parents. */
+        private void addPath(int goal) {
+            int first = pointCount;
+            for (int slot = goal; slot >= 0; slot = stateParent[slot]) {
+                long cell = stateKeys[slot] >>> 2;
+                ensurePoints(pointCount + 1);
+                points[2 * pointCount] = center((int) (cell % columns));
+                points[2 * pointCount + 1] = center((int) (cell / columns));
+                pointCount++;
+            }
+            // Reverse into start to goal order, then drop the points that are not bends
+            for (int i = first, j = pointCount - 1; i < j; i++, j--) {
+                swap(2 * i, 2 * j);
+                swap(2 * i + 1, 2 * j + 1);
+            }
+            int end = pointCount;
+            pointCount = first;
+            for (int i = first; i < end; i++) {
+                addPoint(points[2 * i], points[2 * i + 1]);
+            }
+        }
+
+        /** Appends a point, replacing the last one when it lies on the segment towards the new one. */
+        private void addPoint(int x, int y) {
+            if (pointCount > 0 && points[2 * pointCount - 2] == x && points[2 * pointCount - 1] == y) {
+                return;
+            }
+            if (pointCount > 1) {
+                int px = points[2 * pointCount - 4];
+                int py = points[2 * pointCount - 3];
+                int lx = points[2 * pointCount - 2];
+                int ly = points[2 * pointCount - 1];
+                if ((px == lx && lx == x) || (py == ly && ly == y)) {
+                    pointCount--;
+                }
+            }
+            ensurePoints(pointCount + 1);
+            points[2 * pointCount] = x;
+            points[2 * pointCount + 1] = y;
+            pointCount++;
+        }
+
+        private void ensurePoints(int count) {
+            if (2 * count > points.length) {
+                points = Arrays.copyOf(points, Math.max(2 * count, 2 * points.length));
+            }
+        }
+
+        private void swap(int i, int j) {
+            int swap = points[i];
+            points[i] = points[j];
+            points[j] = swap;
+        }
+
+        /** The cell next to the middle of a side of {@code node}, outside of it. */
+        private int sideColumn(int node, int side) {
+            int column = side == RIGHT ? (graph.right(node) - 1) / cellSize + 1
+                    : side == LEFT ? graph.x[node] / cellSize - 1
+                    : graph.centerX(node) / cellSize;
+            return Math.max(0, Math.min(columns - 1, column));
+        }
+
+        private int sideRow(int node, int side) {
+            int row = side == DOWN ? (graph.bottom(node) - 1) / cellSize + 1
+                    : side == UP ? graph.y[node] / cellSize - 1
+                    : graph.centerY(node) / cellSize;
+            return Math.max(0, Math.min(rows - 1, row));
+        }
+
+        private int center(int cell) {
+            return cell * cellSize + cellSize / 2;
+        }
+
+        /** The table slot of a state, added unvisited if new; -1 once the table is half full. */
+        private int state(int column, int row, int direction) {
+            long key = ((long) row * columns + column) << 2 | direction;
+            int mask = (1 << TABLE_BITS) - 1;
+            int slot = (int) ((key * 0x9E3779B97F4A7C15L) >>> (64 - TABLE_BITS));
+            while (stateGeneration[slot] == generation) {
+                if (stateKeys[slot] == key) {
+                    return slot;
+                }
+                slot = (slot + 1) & mask;
+            }
+            if (++stateCount > mask >> 1) {
+                return -1;
+            }
+            stateGeneration[slot] = generation;
+            stateKeys[slot] = key;
+            stateCost[slot] = Integer.MAX_VALUE;
+            stateClosed[slot] = false;
+            return slot;
+        }
+
+        /** Queues {@code slot}; ties go to the state closer to the goal. */
+        private void push(int slot, int priority) {
+            int remaining = priority - stateCost[slot];
+            long entry = (long) priority << 36 | (long) Math.min(remaining, (1 << 19) - 1) << TABLE_BITS | slot;
+            if (heapSize == heap.length) {
+                heap = Arrays.copyOf(heap, 2 * heap.length);
+            }
+            int i = heapSize++;
+            while (i > 0 && heap[(i - 1) >> 1] > entry) {
+                heap[i] = heap[(i - 1) >> 1];
+                i = (i - 1) >> 1;
+            }
+            heap[i] = entry;
+        }
+
+        private int pop() {
+            int slot = (int) (heap[0] & ((1 << TABLE_BITS) - 1));
+            long last = heap[--heapSize];
+            int i = 0;
+            while (2 * i + 1 < heapSize) {
+                int child = 2 * i + 1;
+                if (child + 1 < heapSize && heap[child + 1] < heap[child]) {
+                    child++;
+                }
+                if (heap[child] >= last) {
+                    break;
+                }
+                heap[i] = heap[child];
+                i = child;
+            }
+            heap[i] = last;
+            return slot;
+        }
+    }
+
+    /**
+     * Collects the references of a range of model nodes, split in halves down to ranges of
+     * {@link #NODES_PER_TASK} nodes, each with its own edge and proxy buffers.
+     */
+    private static final class CrossReferenceTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private static final int NODES_PER_TASK = 1024;
+
+        private final GraphBuilder builder;
+        private final int from;
+        private final int to;
+        private final EdgeTable.Builder edges = new EdgeTable.Builder();
+        private final List<ProxyReference> proxies = new ArrayList<>();
+        private CrossReferenceTask first;
+        private CrossReferenceTask second;
+
+        CrossReferenceTask(GraphBuilder builder, int from, int to) {
+            this.builder = builder;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (split()) {
+                invokeAll(first, second);
+            } else {
+                collectRange();
+            }
+        }
+
+        /** Collects the range on the calling thread, split into the same pieces as on a pool. */
+        void collect() {
+            if (split()) {
+                first.collect();
+                second.collect();
+            } else {
+                collectRange();
+            }
+        }
+
+        private boolean split() {
+            if (to - from <= NODES_PER_TASK) {
+                return false;
+            }
+            int middle = (from + to) >>> 1;
+            first = new CrossReferenceTask(builder, from, middle);
+            second = new CrossReferenceTask(builder, middle, to);
+            return true;
+        }
+
+        private void collectRange() {
+            for (int sourceNode = from; sourceNode < to; sourceNode++) {
+                ClassPlan plan = builder.plan(sourceNode);
+                if (plan == null) {
+                    continue; // a summary of omitted children
+                }
+                EObject source = builder.eObject(sourceNode);
+                for (EReference reference : plan.references()) {
+                    Object value = source.eGet(reference, false);
+                    if (value instanceof EObject target) {
+                        add(sourceNode, reference, target);
+                    } else if (value instanceof Collection<?> collection) {
+                        for (Object element : collection) {
+                            if (element instanceof EObject target) {
+                                add(sourceNode, reference, target);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        private void add(int sourceNode, EReference reference, EObject target) {
+            if (target.eIsProxy()) {
+                proxies.add(new ProxyReference(sourceNode, reference, target));
+                return;
+            }
+            int targetNode = builder.id(target);
+            if (targetNode >= 0) {
+                edges.add(sourceNode, targetNode, reference.getName(), true);
+            }
+        }
+
+        /**
+         * Appends the edges of the range to {@code all}, in the order of the nodes, and those to the
+         * proxies of every piece after the piece's own edges. Proxies are resolved unless there are
+         * {@code proxyStubs} to point the edges at instead. Either way the edges end up grouped by
+         * their source when the graph is built.
+         */
+        void join(EdgeTable.Builder all, GraphBuilder builder, Map<String, Integer> proxyStubs) {
+            if (first != null) {
+                first.join(all, builder, proxyStubs);
+                second.join(all, builder, proxyStubs);
+                return;
+            }
+            all.addAll(edges);
+            for (ProxyReference proxy : proxies) {
+                int targetNode = proxyStubs != null
+                        ? proxyStubs.computeIfAbsent(((InternalEObject) proxy.proxy()).eProxyURI().toString(),
+                                uri -> createProxyStub(proxy.proxy(), builder))
+                        : builder.id(EcoreUtil.resolve(proxy.proxy(), builder.eObject(proxy.source())));
+                if (targetNode >= 0) {
+                    all.add(proxy.source(), targetNode, proxy.reference().getName(), true);
+                }
+            }
+        }
+    }
+
+    private static final class MeasureTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private static final int NODES_PER_TASK = 2048;
+
+        private final DiagramGraph graph;
+        // The node numbers to measure, or null for all nodes
+        private final int[] nodes;
+        private final ThreadLocal<FontMetrics[]> metrics;
+        private final Detail detail;
+        private final int from;
+        private final int to;
+
+        MeasureTask(DiagramGraph graph, int[] nodes, ThreadLocal<FontMetrics[]> metrics, Detail detail, int from,
+                int to) {
+            this.graph = graph;
+            this.nodes = nodes;
+            this.metrics = metrics;
+            this.detail = detail;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > NODES_PER_TASK) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new MeasureTask(graph, nodes, metrics, detail, from, middle),
+                        new MeasureTask(graph, nodes, metrics, detail, middle, to));
+                return;
+            }
+            FontMetrics[] titleAndBody = metrics.get();
+            for (int i = from; i < to; i++) {
+                measureNode(graph, nodes == null ? i : nodes[i], titleAndBody[0], titleAndBody[1], detail);
+            }
+        }
+    }
+
+    private static final class RouteTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private static final int EDGES_PER_TASK = 1024;
+
+        private final OrthogonalRouter grid;
+        private final int[][] routes;
+        private final int from;
+        private final int to;
+
+        RouteTask(OrthogonalRouter grid, int[][] routes, int from, int to) {
+            this.grid = grid;
+            this.routes = routes;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > EDGES_PER_TASK) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new RouteTask(grid, routes, from, middle), new RouteTask(grid, routes, middle, to));
+                return;
+            }
+            OrthogonalRouter router = new OrthogonalRouter(grid);
+            for (int edge = from; edge < to; edge++) {
+                routes[edge] = router.route(edge);
+            }
+        }
+    }
+
+    /**
+     * The labels of the containment references and references, numbered like their routes: the
+     * text drawn, which may be abbreviated, and its box as left, top, right and bottom.
+     * {@code null} text stands for an edge without a label or whose label was dropped.
+     */
+    private record EdgeLabels(String[] texts, int[] boxes, int ascent) {
+
+        static EdgeLabels none(int edges) {
+            return new EdgeLabels(new String[edges], new int[4 * edges], 0);
+        }
+
+        String text(int edge) {
+            return texts[edge];
+        }
+
+        int x(int edge) {
+            return boxes[4 * edge];
+        }
+
+        int baseline(int edge) {
+            return boxes[4 * edge + 1] + ascent;
+        }
+    }
+
+    /**
+     * Places edge labels where they overlap neither nodes nor each other. Every label tries a
+     * fixed number of slots along its route, starting at the middle segment and moving outwards:
+     * at the middle and the quarters of each segment, above and below horizontal segments and
+     * beside vertical ones. Nodes and placed labels are kept in a spatial hash of square buckets,
+     * and a slot is taken if no rectangle in the buckets it touches overlaps it. A label without a
+     * free slot is tried again with just the name of its feature, and dropped if that does not fit
+     * either. So every label costs a bounded number of lookups, and placement is linear in the
+     * number of labels.
+     */
+    private static final class LabelPlacer {
+        private static final int BUCKET_SIZE = 128;
+        private static final int GAP = 3;
+        private static final int MAX_SEGMENTS = 4;
+        // Positions along a segment in quarters of its length, the middle first
+        private static final int[] QUARTERS = { 2, 1, 3 };
+        // A slot that would have to be compared with more rectangles than this counts as taken
+        private static final int MAX_COMPARISONS = 256;
+
+        private final int height;
+
+        // Buckets in an open-addressing table from bucket coordinates to the first of their
+        // entries, which are linked lists of rectangle numbers; entry 0 marks the end of a list
+        private long[] bucketKeys = new long[1 << 12];
+        private int[] bucketHeads = new int[1 << 12];
+        private int bucketCount;
+        private int[] entryRects = new int[1 << 12];
+        private int[] entryNext = new int[1 << 12];
+        private int entryCount = 1;
+        private int[] rects = new int[1 << 12];
+        private int rectCount;
+
+        private LabelPlacer(FontMetrics metrics) {
+            this.height = metrics.getAscent() + metrics.getDescent();
+        }
+
+        /**
+         * Places the labels of the containment references and then the references, in this
+         * order, along {@code routes}.
+         */
+        static EdgeLabels place(DiagramGraph graph, int[][] routes, FontMetrics metrics) {
+            LabelPlacer placer = new LabelPlacer(metrics);
+            for (int v = 0; v < graph.size; v++) {
+                placer.add(graph.x[v], graph.y[v], graph.right(v), graph.bottom(v));
+            }
+            String[] texts = new String[routes.length];
+            int[] boxes = new int[4 * routes.length];
+            for (int edge = 0; edge < routes.length; edge++) {
+                String label = graph.edgeLabel(edge);
+                if (label.isEmpty()) {
+                    continue;
+                }
+                if (placer.place(routes[edge], TEXT_WIDTHS.width(metrics, label), boxes, 4 * edge)) {
+                    texts[edge] = label;
+                    continue;
+                }
+                // "name: Type[1]" without the type and multiplicity
+                int colon = label.indexOf(':');
+                if (colon > 0) {
+                    String name = label.substring(0, colon);
+                    if (placer.place(routes[edge], TEXT_WIDTHS.width(metrics, name), boxes, 4 * edge)) {
+                        texts[edge] = name;
+                    }
+                }
+            }
+            return new EdgeLabels(texts, boxes, metrics.getAscent());
+        }
+
+        /** Takes the first free slot for a label {@code width} wide along {@code route}, if any. */
+        private boolean place(int[] route, int width, int[] boxes, int b) {
+            int segments = route.length / 2 - 1;
+            int middle = (segments - 1) / 2;
+            for (int k = 0; k < 2 * MAX_SEGMENTS; k++) {
+                // The middle segment, then alternately the ones after and before it
+                int segment = middle + ((k & 1) == 1 ? (k + 1) / 2 : -(k / 2));
+                if (segment < 0 || segment >= segments) {
+                    continue;
+                }
+                int x1 = route[2 * segment];
+                int y1 = route[2 * segment + 1];
+                int x2 = route[2 * segment + 2];
+                int y2 = route[2 * segment + 3];
+                boolean horizontal = Math.abs(x2 - x1) >= Math.abs(y2 - y1);
+                for (int quarter : QUARTERS) {
+                    int x = x1 + (x2 - x1) * quarter / 4;
+                    int y = y1 + (y2 - y1) * quarter / 4;
+                    if (horizontal
+                            ? take(x - width / 2, y - GAP - height, width, boxes, b)
+                                    || take(x - width / 2, y + GAP, width, boxes, b)
+                            : take(x + GAP, y - height / 2, width, boxes, b)
+                                    || take(x - GAP - width, y - height / 2, width, boxes, b)) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        private boolean take(int left, int top, int width, int[] boxes, int b) {
+            if (!isFree(left, top, left + width, top + height)) {
+                return false;
+            }
+            add(left, top, left + width, top + height);
+            boxes[b] = left;
+            boxes[b + 1] = top;
+            boxes[b + 2] = left + width;
+            boxes[b + 3] = top + height;
+            return true;
+        }
+
+        private boolean isFree(int left, int top, int right, int bottom) {
+            int comparisons = 0;
+            for (int by = Math.floorDiv(top, BUCKET_SIZE); by <= Math.floorDiv(bottom - 1, BUCKET_SIZE); by++) {
+                for (int bx = Math.floorDiv(left, BUCKET_SIZE); bx <= Math.floorDiv(right - 1, BUCKET_SIZE); bx++) {
+                    int slot = bucket(bx, by, false);
+                    for (int entry = slot < 0 ? 0 : bucketHeads[slot]; entry != 0; entry = entryNext[entry]) {
+                        if (++comparisons > MAX_COMPARISONS) {
+                            return false;
+                        }
+                        int r = 4 * entryRects[entry];
+                        if (left < rects[r + 2] && rects[r] < right && top < rects[r + 3] && rects[r + 1] < bottom) {
+                            return false;
+                        }
+                    }
+                }
+            }
+            return true;
+        }
+
+        private void add(int left, int top, int right, int bottom) {
+            if (4 * rectCount + 4 > rects.length) {
+                rects = Arrays.copyOf(rects, 2 * rects.length);
+            }
+            int rect = rectCount++;
+            rects[4 * rect] = left;
+            rects[4 * rect + 1] = top;
+            rects[4 * rect + 2] = right;
+            rects[4 * rect + 3] = bottom;
+            for (int by = Math.floorDiv(top, BUCKET_SIZE); by <= Math.floorDiv(bottom - 1, BUCKET_SIZE); by++) {
+                for (int bx = Math.floorDiv(left, BUCKET_SIZE); bx <= Math.floorDiv(right - 1, BUCKET_SIZE); bx++) {
+                    int slot = bucket(bx, by, true);
+                    if (entryCount == entryRects.length) {
+                        entryRects = Arrays.copyOf(entryRects, 2 * entryRects.length);
+                        entryNext = Arrays.copyOf(entryNext, 2 * entryNext.length);
+                    }
+                    int entry = entryCount++;
+                    entryRects[entry] = rect;
+                    entryNext[entry] = bucketHeads[slot];
+                    bucketHeads[slot] = entry;
+                }
+            }
+        }
+
+        /** The table slot of a bucket; -1 if it is empty and not to be created. */
+        private int bucket(int bx, int by, boolean create) {
+            long key = (long) bx << 32 | (by & 0xFFFFFFFFL);
+            int mask = bucketKeys.length - 1;
+            int slot = (int) ((key * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+            while (bucketHeads[slot] != 0) {
+                if (bucketKeys[slot] == key) {
+                    return slot;
+                }
+                slot = (slot + 1) & mask;
+            }
+            if (!create) {
+                return -1;
+            }
+            if (2 * (bucketCount + 1) > bucketKeys.length) {
+                grow();
+                return bucket(bx, by, true);
+            }
+            // Occupied from now on, as the caller links an entry in right away
+            bucketCount++;
+            bucketKeys[slot] = key;
+            return slot;
+        }
+
+        private void grow() {
+            long[] keys = bucketKeys;
+            int[] heads = bucketHeads;
+            bucketKeys = new long[2 * keys.length];
+            bucketHeads = new int[2 * heads.length];
+            int mask = bucketKeys.length - 1;
+            for (int i = 0; i < keys.length; i++) {
+                if (heads[i] != 0) {
+                    int slot = (int) ((keys[i] * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+                    while (bucketHeads[slot] != 0) {
+                        slot = (slot + 1) & mask;
+                    }
+                    bucketKeys[slot] = keys[i];
+                    bucketHeads[slot] = heads[i];
+                }
+            }
+        }
+    }
+
+    /**
+     * Layouts of containment trees from the previous render of a diagram, kept in a small deflated
+     * binary file. Every tree is found by two hashes over its nodes in pre-order, which together with
+     * the subtree sizes determines the tree's shape: one over the text of its nodes, whose entry
+     * supplies sizes and positions without measuring anything, and one over the measured sizes,
+     * whose entry supplies the positions. Either way the tree is not laid out again.
+     *
+     * <p>The file is only used with the same layout, level of detail and font measurements it was
+     * written with, and is rewritten after every render with the trees of that render.
+     */
+    private static final class LayoutCache {
+        private static final int MAGIC = 0x4D564C43;
+        private static final int VERSION = 2;
+        // Ints per node: title width, width, height, x and y relative to the tree
+        private static final int NODE_VALUES = 5;
+        private static final String FONT_PROBE = "Model Visualizer 0123456789";
+
+        private final File file;
+        private final String key;
+        private final Detail detail;
+        private final Map<Long, CachedTree> byContent = new HashMap<>();
+        private final Map<Long, CachedTree> byStructure = new HashMap<>();
+        private final List<CachedTree> trees = new ArrayList<>();
+
+        private LayoutCache(File file, String key, Detail detail) {
+            this.file = file;
+            this.key = key;
+            this.detail = detail;
+        }
+
+        /** Reads the cache, which is empty if the file is missing, unreadable or was written differently. */
+        static LayoutCache load(File file, Layout layout, Detail detail, FontMetrics titleMetrics,
+                FontMetrics bodyMetrics) {
+            String key = layout + "/" + detail + "/" + titleMetrics.getHeight() + "/" + bodyMetrics.getHeight()
+                    + "/" + titleMetrics.stringWidth(FONT_PROBE) + "/" + bodyMetrics.stringWidth(FONT_PROBE);
+            LayoutCache cache = new LayoutCache(file, key, detail);
+            if (!file.isFile()) {
+                return cache;
+            }
+            try (DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new InflaterInputStream(new FileInputStream(file))))) {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION || !in.readUTF().equals(key)) {
+                    return cache;
+                }
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    long contentHash = in.readLong();
+                    long structureHash = in.readLong();
+                    byte[] bytes = new byte[in.readInt() * NODE_VALUES * Integer.BYTES];
+                    in.readFully(bytes);
+                    int[] values = new int[bytes.length / Integer.BYTES];
+                    ByteBuffer.wrap(bytes).asIntBuffer().get(values);
+                    CachedTree tree = new CachedTree(contentHash, structureHash, values);
+                    cache.byContent.putIfAbsent(contentHash, tree);
+                    cache.byStructure.putIfAbsent(structureHash, tree);
+                }
+            } catch (IOException | RuntimeException e) {
+                cache.byContent.clear();
+                cache.byStructure.clear();
+            }
+            return cache;
+        }
+
+        /** Gives the unmeasured tree of {@code root} the sizes and positions of a cached tree with the same text. */
+        boolean restore(DiagramGraph graph, int root, long contentHash) {
+            CachedTree cached = byContent.get(contentHash);
+            int size = graph.subtreeSizes[root];
+            if (cached == null || cached.values().length != size * NODE_VALUES) {
+                return false;
+            }
+            int[] values = cached.values();
+            for (int node = root, v = 0; node < root + size; node++, v += NODE_VALUES) {
+                graph.titleWidth[node] = values[v];
+                graph.width[node] = values[v + 1];
+                graph.height[node] = values[v + 2];
+                graph.x[node] = values[v + 3];
+                graph.y[node] = values[v + 4];
+            }
+            return true;
+        }
+
+        /** Gives the measured tree of {@code root} the positions of a cached tree whose nodes have the same sizes. */
+        boolean restoreLayout(DiagramGraph graph, int root) {
+            CachedTree cached = byStructure.get(structureHash(graph, root));
+            int size = graph.subtreeSizes[root];
+            if (cached == null || cached.values().length != size * NODE_VALUES) {
+                return false;
+            }
+            int[] values = cached.values();
+            for (int node = root, v = 0; node < root + size; node++, v += NODE_VALUES) {
+                graph.x[node] = values[v + 3];
+                graph.y[node] = values[v + 4];
+            }
+            return true;
+        }
+
+        /** Records the measured tree of {@code root}, laid out relative to its bounding box, for the next render. */
+        void add(DiagramGraph graph, int root, long contentHash) {
+            int size = graph.subtreeSizes[root];
+            int[] values = new int[size * NODE_VALUES];
+            for (int node = root, v = 0; node < root + size; node++, v += NODE_VALUES) {
+                values[v] = graph.titleWidth[node];
+                values[v + 1] = graph.width[node];
+                values[v + 2] = graph.height[node];
+                values[v + 3] = graph.x[node];
+                values[v + 4] = graph.y[node];
+            }
+            trees.add(new CachedTree(contentHash, structureHash(graph, root), values));
+        }
+
+        void save() throws IOException {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new DeflaterOutputStream(new FileOutputStream(file), new Deflater(Deflater.BEST_SPEED))))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeUTF(key);
+                out.writeInt(trees.size());
+                for (CachedTree tree : trees) {
+                    out.writeLong(tree.contentHash());
+                    out.writeLong(tree.structureHash());
+                    out.writeInt(tree.values().length / NODE_VALUES);
+                    ByteBuffer bytes = ByteBuffer.allocate(tree.values().length * Integer.BYTES);
+                    bytes.asIntBuffer().put(tree.values());
+                    out.write(bytes.array());
+                }
+            }
+        }
+
+        /** Hash of the shape of the tree of {@code root} and the text its nodes are measured by. */
+        long contentHash(DiagramGraph graph, int root) {
+            long hash = 0;
+            for (int node = root; node < root + graph.subtreeSizes[root]; node++) {
+                hash = mix(hash, graph.subtreeSizes[node]);
+                hash = mix(hash, graph.titles[node]);
+                if (detail == Detail.FULL) {
+                    hash = mix(hash, graph.lineCount(node));
+                    for (int line = graph.lineStart[node]; line < graph.lineStart[node + 1]; line++) {
+                        hash = mix(hash, graph.lines[line]);
+                    }
+                }
+            }
+            return hash;
+        }
+
+        /** Hash of the shape of the tree of {@code root} and the sizes of its nodes, all that a layout depends on. */
+        private static long structureHash(DiagramGraph graph, int root) {
+            long hash = 0;
+            for (int node = root; node < root + graph.subtreeSizes[root]; node++) {
+                hash = mix(hash, graph.subtreeSizes[node]);
+                hash = mix(hash, graph.width[node]);
+                hash = mix(hash, graph.height[node]);
+            }
+            return hash;
+        }
+
+        /**
+         * Mixes in the characters of {@code text}, four at a time, after its length. The 32-bit
+         * {@link String#hashCode()} would not do: strings with equal hash codes are easy to come
+         * by, and a tree whose text changed to one of them would get the old sizes.
+         */
+        private static long mix(long hash, String text) {
+            int length = text.length();
+            hash = mix(hash, length);
+            int i = 0;
+            for (; i + 4 <= length; i += 4) {
+                hash = mix(hash, text.charAt(i) | (long) text.charAt(i + 1) << 16
+                        | (long) text.charAt(i + 2) << 32 | (long) text.charAt(i + 3) << 48);
+            }
+            long rest = 0;
+            for (; i < length; i++) {
+                rest = rest << 16 | text.charAt(i);
+            }
+            return mix(hash, rest);
+        }
+
+        private static long mix(long hash, long value) {
+            long h = (hash ^ value) * 0x9E3779B97F4A7C15L;
+            return h ^ (h >>> 31);
+        }
+
+        private record CachedTree(long contentHash, long structureHash, int[] values) {
+        }
+    }
+
+    /**
+     * A node whose contents are being built and the contents still to visit: elements, or
+     * {@link OmittedChildren}.
+     */
+    private record ContainmentFrame(int node, Iterator<?> children) {
+    }
+
+    private record DiagramScene(DiagramGraph graph, int[][] routes, EdgeLabels labels, int width, int height,
+            Font titleFont, Font bodyFont, FontMetrics titleMetrics, FontMetrics bodyMetrics, SpatialIndex index,
+            Detail detail, IndexedPalette palette) {
+
+        // Items of the spatial index are numbered in paint order: containments first, by the number
+        // of the contained node, then containment references, references and finally nodes.
+
+        int firstContainmentRef() {
+            return graph.size;
+        }
+
+        int firstReference() {
+            return firstContainmentRef() + graph.containmentRefs.size();
+        }
+
+        int firstNode() {
+            return firstReference() + graph.references.size();
+        }
+
+        /** The route of a containment reference or reference, given by its item number. */
+        int[] route(int item) {
+            return routes[item - firstContainmentRef()];
+        }
+
+        /**
+         * The level of detail to paint at when the diagram is magnified by {@code scale}: never more
+         * than the layout was measured for, and no text that would be too small to read.
+         */
+        Detail detailAt(double scale) {
+            Detail legible = bodyMetrics.getHeight() * scale >= MIN_TEXT_HEIGHT ? Detail.FULL
+                    : titleMetrics.getHeight() * scale >= MIN_TEXT_HEIGHT ? Detail.TITLE
+                    : Detail.BOX;
+            return legible.compareTo(detail) > 0 ? legible : detail;
+        }
+    }
+
+    /** A region of the diagram and the factor it is magnified by on the output image. */
+    private record View(Rectangle viewport, double scale) {
+
+        int width() {
+            return Math.max(1, (int) Math.ceil(viewport.width * scale));
+        }
+
+        int height() {
+            return Math.max(1, (int) Math.ceil(viewport.height * scale));
+        }
+
+        /** The diagram region covered by {@code region} of the output image. */
+        Rectangle diagramArea(Rectangle region) {
+            int x = viewport.x + (int) Math.floor(region.x / scale);
+            int y = viewport.y + (int) Math.floor(region.y / scale);
+            int right = viewport.x + (int) Math.ceil((region.x + region.width) / scale) + 1;
+            int bottom = viewport.y + (int) Math.ceil((region.y + region.height) / scale) + 1;
+            return new Rectangle(x, y, right - x, bottom - y);
+        }
+    }
+
+    /**
+     * Uniform grid over the bounding boxes of everything that gets drawn. Items are numbered in
+     * paint order, so the sorted result of a query can be painted as is. Items that would cover
+     * too many cells, typically long edges, are kept in a separate list that every query scans.
+     */
+    private static final class SpatialIndex {
+        private static final int MAX_CELLS_PER_ITEM = 64;
+
+        private final int[] bounds;
+        private final int cellSize;
+        private final int columns;
+        private final int rows;
+        private final int[] cellStart;
+        private final int[] cellItems;
+        private final int[] largeItems;
+
+        /**
+         * @param bounds minX, minY, maxX (exclusive) and maxY (exclusive) of every item; items with
+         *            empty bounds, such as the containments of roots, are never found
+         */
+        private SpatialIndex(int[] bounds, int width, int height) {
+            int count = bounds.length / 4;
+            this.bounds = bounds;
+            this.cellSize = Math.max(MIN_CELL_SIZE, (int) Math.ceil(Math.sqrt((double) width * height / Math.max(1, count))));
+            this.columns = Math.max(1, (width + cellSize - 1) / cellSize);
+            this.rows = Math.max(1, (height + cellSize - 1) / cellSize);
+
+            int[] counts = new int[columns * rows];
+            int large = 0;
+            for (int item = 0; item < count; item++) {
+                if (bounds[4 * item] >= bounds[4 * item + 2]) {
+                    continue;
+                }
+                int c0 = column(bounds[4 * item]);
+                int r0 = row(bounds[4 * item + 1]);
+                int c1 = column(bounds[4 * item + 2]);
+                int r1 = row(bounds[4 * item + 3]);
+                if ((c1 - c0 + 1) * (r1 - r0 + 1) > MAX_CELLS_PER_ITEM) {
+                    large++;
+                    continue;
+                }
+                for (int r = r0; r <= r1; r++) {
+                    for (int c = c0; c <= c1; c++) {
+                        counts[r * columns + c]++;
+                    }
+                }
+            }
+
+            this.cellStart = new int[counts.length + 1];
+            for (int cell = 0; cell < counts.length; cell++) {
+                cellStart[cell + 1] = cellStart[cell] + counts[cell];
+            }
+            this.cellItems = new int[cellStart[counts.length]];
+            this.largeItems = new int[large];
+            int[] cursor = Arrays.copyOf(cellStart, counts.length);
+            large = 0;
+            for (int item = 0; item < count; item++) {
+                if (bounds[4 * item] >= bounds[4 * item + 2]) {
+                    continue;
+                }
+                int c0 = column(bounds[4 * item]);
+                int r0 = row(bounds[4 * item + 1]);
+                int c1 = column(bounds[4 * item + 2]);
+                int r1 = row(bounds[4 * item + 3]);
+                if ((c1 - c0 + 1) * (r1 - r0 + 1) > MAX_CELLS_PER_ITEM) {
+                    largeItems[large++] = item;
+                    continue;
+                }
+                for (int r = r0; r <= r1; r++) {
+                    for (int c = c0; c <= c1; c++) {
+                        cellItems[cursor[r * columns + c]++] = item;
+                    }
+                }
+            }
+        }
+
+        /**
+         * @param routes the routes of the containment references and references, in this order,
+         *            and {@code labels} their labels
+         */
+        static SpatialIndex build(DiagramGraph graph, int[][] routes, EdgeLabels labels, int width, int height) {
+            int[] bounds = new int[4 * (graph.size + routes.length + graph.size)];
+            int item = 0;
+            for (int child = 0; child < graph.size; child++) {
+                if (graph.parents[child] >= 0) {
+                    containmentBounds(graph, graph.parents[child], child, bounds, 4 * item);
+                }
+                item++;
+            }
+            for (int edge = 0; edge < routes.length; edge++) {
+                routeBounds(routes[edge], labels, edge, bounds, 4 * item++);
+            }
+            for (int v = 0; v < graph.size; v++) {
+                int b = 4 * item++;
+                bounds[b] = graph.x[v] - NODE_SLACK;
+                bounds[b + 1] = graph.y[v] - NODE_SLACK;
+                bounds[b + 2] = graph.right(v) + NODE_SLACK;
+                bounds[b + 3] = graph.bottom(v) + NODE_SLACK;
+            }
+            return new SpatialIndex(bounds, width, height);
+        }
+
+        /**
+         * Conservative bounds of anything drawn for the containment of {@code child} in
+         * {@code parent}: the end points lie on the two node boxes.
+         */
+        private static void containmentBounds(DiagramGraph graph, int parent, int child, int[] bounds, int b) {
+            bounds[b] = Math.min(graph.x[parent], graph.x[child]) - EDGE_SLACK;
+            bounds[b + 1] = Math.min(graph.y[parent], graph.y[child]) - EDGE_SLACK;
+            bounds[b + 2] = Math.max(graph.right(parent), graph.right(child)) + EDGE_SLACK;
+            bounds[b + 3] = Math.max(graph.bottom(parent), graph.bottom(child)) + EDGE_SLACK;
+        }
+
+        /** Bounds of a routed edge: its points, and the box of its label if it has one. */
+        private static void routeBounds(int[] route, EdgeLabels labels, int edge, int[] bounds, int b) {
+            int minX = route[0];
+            int minY = route[1];
+            int maxX = minX;
+            int maxY = minY;
+            for (int i = 2; i < route.length; i += 2) {
+                minX = Math.min(minX, route[i]);
+                minY = Math.min(minY, route[i + 1]);
+                maxX = Math.max(maxX, route[i]);
+                maxY = Math.max(maxY, route[i + 1]);
+            }
+            bounds[b] = minX - EDGE_SLACK;
+            bounds[b + 1] = minY - EDGE_SLACK;
+            bounds[b + 2] = maxX + EDGE_SLACK;
+            bounds[b + 3] = maxY + EDGE_SLACK;
+            if (labels.text(edge) != null) {
+                int[] boxes = labels.boxes();
+                bounds[b] = Math.min(bounds[b], boxes[4 * edge]);
+                bounds[b + 1] = Math.min(bounds[b + 1], boxes[4 * edge + 1]);
+                bounds[b + 2] = Math.max(bounds[b + 2], boxes[4 * edge + 2]);
+                bounds[b + 3] = Math.max(bounds[b + 3], boxes[4 * edge + 3]);
+            }
+        }
+
+        /** Returns the items whose bounds intersect {@code area}, in ascending (paint) order. */
+        int[] query(Rectangle area) {
+            int[] result = new int[64];
+            int size = 0;
+            int c0 = column(area.x);
+            int r0 = row(area.y);
+            int c1 = column(area.x + area.width - 1);
+            int r1 = row(area.y + area.height - 1);
+            for (int r = r0; r <= r1; r++) {
+                for (int c = c0; c <= c1; c++) {
+                    int cell = r * columns + c;
+                    for (int k = cellStart[cell]; k < cellStart[cell + 1]; k++) {
+                        int item = cellItems[k];
+                        if (intersects(item, area)) {
+                            if (size == result.length) {
+                                result = Arrays.copyOf(result, size * 2);
+                            }
+                            result[size++] = item;
+                        }
+                    }
+                }
+            }
+            for (int item : largeItems) {
+                if (intersects(item, area)) {
+                    if (size == result.length) {
+                        result = Arrays.copyOf(result, size * 2);
+                    }
+                    result[size++] = item;
+                }
+            }
+
+            // Items spanning several cells were found once per cell
+            Arrays.sort(result, 0, size);
+            int unique = 0;
+            for (int k = 0; k < size; k++) {
+                if (unique == 0 || result[unique - 1] != result[k]) {
+                    result[unique++] = result[k];
+                }
+            }
+            return Arrays.copyOf(result, unique);
+        }
+
+        private boolean intersects(int item, Rectangle area) {
+            int b = 4 * item;
+            return bounds[b] < area.x + area.width && bounds[b + 2] > area.x
+                    && bounds[b + 1] < area.y + area.height && bounds[b + 3] > area.y;
+        }
+
+        private int column(int x) {
+            return Math.max(0, Math.min(columns - 1, Math.floorDiv(x, cellSize)));
+        }
+
+        private int row(int y) {
+            return Math.max(0, Math.min(rows - 1, Math.floorDiv(y, cellSize)));
+        }
+    }
+
+    /** Rasterizes a range of tiles, splitting it in halves until a single tile is left. */
+    private static final class TileTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final BufferedImage target;
+        private final DiagramScene scene;
+        private final View view;
+        private final int top;
+        private final List<Rectangle> tiles;
+        private final int from;
+        private final int to;
+
+        TileTask(BufferedImage target, DiagramScene scene, View view, int top, List<Rectangle> tiles, int from, int to) {
+            this.target = target;
+            this.scene = scene;
+            this.view = view;
+            this.top = top;
+            this.tiles = tiles;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new TileTask(target, scene, view, top, tiles, from, middle),
+                        new TileTask(target, scene, view, top, tiles, middle, to));
+                return;
+            }
+            Rectangle tile = tiles.get(from);
+            // The subimage shares the target's pixels; tiles never overlap, so no locking is needed
+            paintRegion(target.getSubimage(tile.x, tile.y, tile.width, tile.height), scene, view, tile.x, top + tile.y);
+        }
+    }
+
+    /**
+     * Edges of one paint call, collected into a path per style: solid and dashed lines, filled
+     * arrowheads, hollow generalization arrowheads and containment diamonds. Painting a batch costs
+     * a few draw and fill calls however many edges it holds. Shapes use the non-zero winding rule,
+     * so overlapping arrowheads merge instead of cancelling out.
+     */
+    private static final class EdgeBatch {
+        private final Path2D.Float lines = new Path2D.Float(Path2D.WIND_NON_ZERO);
+        private final Path2D.Float dashedLines = new Path2D.Float(Path2D.WIND_NON_ZERO);
+        private final Path2D.Float arrowHeads = new Path2D.Float(Path2D.WIND_NON_ZERO);
+        private final Path2D.Float hollowArrowHeads = new Path2D.Float(Path2D.WIND_NON_ZERO);
+        private final Path2D.Float diamonds = new Path2D.Float(Path2D.WIND_NON_ZERO);
+        private final Polygon shape = new Polygon();
+
+        void addContainment(DiagramGraph graph, int child) {
+            int parent = graph.parents[child];
+            int x1 = graph.centerX(parent);
+            int y1 = graph.bottom(parent);
+            int x2 = graph.centerX(child);
+            int y2 = graph.y[child];
+            addLine(lines, x1, y1, x2, y2);
+            addShape(arrowHeads, arrowHead(x1, y1, x2, y2, shape));
+        }
+
+        void addContainmentReference(int[] route) {
+            addRoute(lines, route);
+            // Diamond at the source end, arrow at the target end
+            addShape(diamonds, diamond(route[0], route[1], route[2], route[3], shape));
+            addShape(arrowHeads, lastArrowHead(route));
+        }
+
+        void addReference(boolean dashed, boolean generalization, int[] route) {
+            // Generalizations are solid with a hollow arrowhead, associations dashed unless they
+            // are containments
+            addRoute(dashed ? dashedLines : lines, route);
+            addShape(generalization ? hollowArrowHeads : arrowHeads, lastArrowHead(route));
+        }
+
+        void paint(Graphics2D g, Color color) {
+            g.setColor(color);
+            g.setStroke(EDGE_STROKE);
+            g.draw(lines);
+            g.fill(diamonds);
+            g.draw(diamonds);
+            g.fill(arrowHeads);
+            g.setColor(Color.WHITE);
+            g.fill(hollowArrowHeads);
+            g.setColor(color);
+            g.draw(hollowArrowHeads);
+            g.setStroke(DASHED_EDGE_STROKE);
+            g.draw(dashedLines);
+        }
+
+        void reset() {
+            lines.reset();
+            dashedLines.reset();
+            arrowHeads.reset();
+            hollowArrowHeads.reset();
+            diamonds.reset();
+        }
+
+        private static void addLine(Path2D.Float path, int x1, int y1, int x2, int y2) {
+            path.moveTo(x1, y1);
+            path.lineTo(x2, y2);
+        }
+
+        private static void addRoute(Path2D.Float path, int[] route) {
+            path.moveTo(route[0], route[1]);
+            for (int i = 2; i < route.length; i += 2) {
+                path.lineTo(route[i], route[i + 1]);
+            }
+        }
+
+        private Polygon lastArrowHead(int[] route) {
+            int n = route.length;
+            return arrowHead(route[n - 4], route[n - 3], route[n - 2], route[n - 1], shape);
+        }
+
+        private static void addShape(Path2D.Float path, Polygon polygon) {
+            path.moveTo(polygon.xpoints[0], polygon.ypoints[0]);
+            for (int i = 1; i < polygon.npoints; i++) {
+                path.lineTo(polygon.xpoints[i], polygon.ypoints[i]);
+            }
+            path.closePath();
+        }
+    }
+
+    /** A tile of a pyramid level: {@code region} of the level's {@code view}, written to {@code file}. */
+    private record PyramidTile(View view, File file, Rectangle region) {
+    }
+
+    /** Renders and writes a range of pyramid tiles, splitting it in halves until a single tile is left. */
+    private static final class PyramidTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final DiagramScene scene;
+        private final RenderOptions options;
+        private final List<PyramidTile> tiles;
+        private final int from;
+        private final int to;
+
+        PyramidTask(DiagramScene scene, RenderOptions options, List<PyramidTile> tiles, int from, int to) {
+            this.scene = scene;
+            this.options = options;
+            this.tiles = tiles;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new PyramidTask(scene, options, tiles, from, middle),
+                        new PyramidTask(scene, options, tiles, middle, to));
+                return;
+            }
+            try {
+                writePyramidTile(scene, tiles.get(from), options);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * Widths of strings per font and rendering context. Repeated strings are answered from a
+     * bounded map; new strings made of ASCII characters are summed from a per-font advance table,
+     * which gives exactly {@link FontMetrics#stringWidth} as long as fractional metrics are off
+     * (advances are whole pixels then). Everything else falls back to the font metrics. Safe for
+     * concurrent use.
+     */
+    private static final class TextWidthCache {
+        private static final int MAX_STRINGS_PER_FONT = 1 << 16;
+
+        private final Map<FontKey, FontWidths> fonts = new ConcurrentHashMap<>();
+        private final LongAdder hits = new LongAdder();
+        private final LongAdder summed = new LongAdder();
+        private final LongAdder measured = new LongAdder();
+
+        int width(FontMetrics metrics, String text) {
+            FontWidths widths = fonts.computeIfAbsent(new FontKey(metrics.getFont(), metrics.getFontRenderContext()),
+                    key -> new FontWidths(metrics));
+            Integer cached = widths.strings.get(text);
+            if (cached != null) {
+                hits.increment();
+                return cached;
+            }
+            int width = widths.sumAscii(text);
+            if (width >= 0) {
+                summed.increment();
+            } else {
+                width = metrics.stringWidth(text);
+                measured.increment();
+            }
+            // Once full, the map keeps serving the strings it has; new ones are still summed cheaply
+            if (widths.strings.size() < MAX_STRINGS_PER_FONT) {
+                widths.strings.put(text, width);
+            }
+            return width;
+        }
+
+        String statistics() {
+            long hitCount = hits.sum();
+            long total = hitCount + summed.sum() + measured.sum();
+            return String.format(Locale.ROOT,
+                    "Text width cache: %d lookups, %d hits (%.1f%%), %d summed from advance tables, %d measured, %d fonts",
+                    total, hitCount, total == 0 ? 0.0 : 100.0 * hitCount / total, summed.sum(), measured.sum(),
+                    fonts.size());
+        }
+
+        private record FontKey(Font font, FontRenderContext context) {
+        }
+
+        private static final class FontWidths {
+            final Map<String, Integer> strings = new ConcurrentHashMap<>();
+            // Advances of the characters below 128, or null when they are not whole pixels
+            final int[] ascii;
+
+            FontWidths(FontMetrics metrics) {
+                if (metrics.getFontRenderContext().usesFractionalMetrics() || metrics.getFont().hasLayoutAttributes()) {
+                    ascii = null;
+                } else {
+                    ascii = new int[128];
+                    for (char c = 0; c < ascii.length; c++) {
+                        ascii[c] = metrics.charWidth(c);
+                    }
+                }
+            }
+
+            /** Returns the width of {@code text}, or -1 if it contains characters outside the table. */
+            int sumAscii(String text) {
+                if (ascii == null) {
+                    return -1;
+                }
+                int width = 0;
+                for (int i = 0; i < text.length(); i++) {
+                    char c = text.charAt(i);
+                    if (c >= ascii.length) {
+                        return -1;
+                    }
+                    width += ascii[c];
+                }
+                return width;
+            }
+        }
+    }
+
+    /**
+     * The colours of an indexed PNG: every colour the diagram is painted with, taken from the
+     * classifier styles, followed by a fixed ramp of shades between the colour pairs that meet at
+     * antialiased edges. Truecolor pixels are mapped onto the nearest entry.
+     */
+    private static final class IndexedPalette {
+        private static final int MAX_COLORS = 256;
+        // Shades strictly between the two ends of a ramp
+        private static final int RAMP_STEPS = 3;
+        private static final int CACHE_BITS = 12;
+
+        private final int[] colors;
+        private final IndexColorModel colorModel;
+
+        private IndexedPalette(int[] colors) {
+            this.colors = colors;
+            this.colorModel = new IndexColorModel(8, colors.length, colors, 0, false, -1, DataBuffer.TYPE_BYTE);
+        }
+
+        /** Builds the palette for nodes of the given styles, or returns {@code null} when their colours alone do not fit. */
+        static IndexedPalette of(NodeStyle[] nodeStyles) {
+            Set<NodeStyle> styles = new LinkedHashSet<>();
+            for (NodeStyle style : nodeStyles) {
+                styles.add(style != null ? style : DEFAULT_STYLE);
+            }
+
+            Set<Integer> colors = new LinkedHashSet<>();
+            for (Color color : List.of(BACKGROUND_COLOR, CONTAINMENT_COLOR, EDGE_COLOR, NODE_BODY_COLOR,
+                    NODE_BORDER_COLOR, NODE_BODY_TEXT_COLOR, Color.WHITE)) {
+                colors.add(color.getRGB() & 0xFFFFFF);
+            }
+            for (NodeStyle style : styles) {
+                colors.add(style.fill().getRGB() & 0xFFFFFF);
+                colors.add(style.headerText().getRGB() & 0xFFFFFF);
+            }
+            if (colors.size() > MAX_COLORS) {
+                return null;
+            }
+
+            // Foreground over background, most common first, for as long as there is room
+            List<Color[]> ramps = new ArrayList<>();
+            ramps.add(new Color[] { CONTAINMENT_COLOR, BACKGROUND_COLOR });
+            ramps.add(new Color[] { EDGE_COLOR, BACKGROUND_COLOR });
+            ramps.add(new Color[] { NODE_BORDER_COLOR, BACKGROUND_COLOR });
+            ramps.add(new Color[] { NODE_BODY_TEXT_COLOR, NODE_BODY_COLOR });
+            ramps.add(new Color[] { NODE_BORDER_COLOR, NODE_BODY_COLOR });
+            ramps.add(new Color[] { EDGE_COLOR, Color.WHITE });
+            for (NodeStyle style : styles) {
+                ramps.add(new Color[] { style.headerText(), style.fill() });
+                ramps.add(new Color[] { NODE_BORDER_COLOR, style.fill() });
+            }
+            for (Color[] ramp : ramps) {
+                for (int step = 1; step <= RAMP_STEPS && colors.size() < MAX_COLORS; step++) {
+                    colors.add(mix(ramp[0], ramp[1], step / (RAMP_STEPS + 1.0)));
+                }
+            }
+            return new IndexedPalette(colors.stream().mapToInt(Integer::intValue).toArray());
+        }
+
+        IndexColorModel colorModel() {
+            return colorModel;
+        }
+
+        /** Maps every pixel of {@code truecolor} onto the palette index at the same place in {@code target}. */
+        void quantize(BufferedImage truecolor, BufferedImage target) {
+            int width = truecolor.getWidth();
+            int[] pixels = ((DataBufferInt) truecolor.getRaster().getDataBuffer()).getData();
+            WritableRaster raster = target.getRaster();
+            byte[] row = new byte[width];
+            // A tile repeats a few dozen colours, so nearest matches are remembered per call
+            int[] cachedColors = new int[1 << CACHE_BITS];
+            byte[] cachedIndices = new byte[1 << CACHE_BITS];
+            Arrays.fill(cachedColors, -1);
+            for (int y = 0; y < truecolor.getHeight(); y++) {
+                int offset = y * width;
+                for (int x = 0; x < width; x++) {
+                    int rgb = pixels[offset + x] & 0xFFFFFF;
+                    int slot = (rgb * 0x9E3779B1) >>> (32 - CACHE_BITS);
+                    if (cachedColors[slot] != rgb) {
+                        cachedColors[slot] = rgb;
+                        cachedIndices[slot] = (byte) nearest(rgb);
+                    }
+                    row[x] = cachedIndices[slot];
+                }
+                raster.setDataElements(0, y, width, 1, row);
+            }
+        }
+
+        private int nearest(int rgb) {
+            int red = (rgb >> 16) & 0xFF;
+            int green = (rgb >> 8) & 0xFF;
+            int blue = rgb & 0xFF;
+            int best = 0;
+            int bestDistance = Integer.MAX_VALUE;
+            for (int i = 0; i < colors.length; i++) {
+                int dr = red - ((colors[i] >> 16) & 0xFF);
+                int dg = green - ((colors[i] >> 8) & 0xFF);
+                int db = blue - (colors[i] & 0xFF);
+                int distance = dr * dr + dg * dg + db * db;
+                if (distance < bestDistance) {
+                    best = i;
+                    bestDistance = distance;
+                }
+            }
+            return best;
+        }
+
+        private static int mix(Color from, Color to, double weight) {
+            int red = (int) Math.round(from.getRed() * (1 - weight) + to.getRed() * weight);
+            int green = (int) Math.round(from.getGreen() * (1 - weight) + to.getGreen() * weight);
+            int blue = (int) Math.round(from.getBlue() * (1 - weight) + to.getBlue() * weight);
+            return (red << 16) | (green << 8) | blue;
+        }
+    }
+
+    /** How much of each node is rendered, from most to least. */
+    public enum Detail {
+        /** Title, attribute lines and edge labels. */
+        FULL,
+        /** Titles and edge labels; attributes are neither rendered to strings nor measured. */
+        TITLE,
+        /** Colored boxes and edges only. */
+        BOX;
+
+        static Detail forNodeCount(int nodes) {
+            return nodes <= FULL_DETAIL_NODE_LIMIT ? FULL : nodes <= TITLE_DETAIL_NODE_LIMIT ? TITLE : BOX;
+        }
+    }
+
+    /** How the nodes of a diagram are arranged. */
+    public enum Layout {
+        /** Every subtree in a box as wide as its widest level, each node centered above its children. */
+        SUBTREE(SubtreeLayout::layout),
+        /** A tidy tree: depths aligned in rows, subtrees packed as closely as their outlines allow. */
+        TIDY(TidyTreeLayout::layout),
+        /**
+         * Layers following all edges, not just containment: supertypes above their subtypes, the
+         * sources of references above their targets, and the order within each layer chosen to
+         * reduce crossings. Laid out as one graph rather than tree by tree.
+         */
+        LAYERED(null);
+
+        /** Lays out one containment tree; {@code null} for layouts of the whole graph. */
+        private final LayoutEngine engine;
+
+        Layout(LayoutEngine engine) {
+            this.engine = engine;
+        }
+    }
+
+    /** How containment references and references are drawn between their nodes. */
+    public enum EdgeRouting {
+        /** A straight line from side to side, or from top to bottom for generalizations. */
+        STRAIGHT,
+        /** Horizontal and vertical segments around the nodes in the way. */
+        ORTHOGONAL
+    }
+
+    /** PNG row filters, in the order of their type codes, plus a per-row choice among them. */
+    public enum PngFilter {
+        NONE, SUB, UP, AVERAGE, PAETH,
+        /** Each row with the filter whose output has the smallest sum of absolute differences. */
+        ADAPTIVE
+    }
+
+    /**
+     * Options for {@link ModelVisualizer#render(File, File, RenderOptions)}. The defaults produce
+     * the same diagram as {@link ModelVisualizer#render(File, File)}.
+     */
+    public static final class RenderOptions {
+        private boolean streaming;
+        private int stripHeight = DEFAULT_STRIP_HEIGHT;
+        private int threads = Runtime.getRuntime().availableProcessors();
+        private int tileHeight = DEFAULT_TILE_HEIGHT;
+        private Rectangle viewport;
+        private double scale = 1.0;
+        private boolean pyramid;
+        private int pyramidTileSize = DEFAULT_PYRAMID_TILE_SIZE;
+        private Detail detail;
+        private boolean indexedColor;
+        private int deflateLevel = Deflater.DEFAULT_COMPRESSION;
+        private PngFilter pngFilter;
+        private Layout layout;
+        private long layoutBudgetMillis = DEFAULT_LAYOUT_BUDGET_MILLIS;
+        private double rootAspectRatio;
+        private boolean layoutCache;
+        private EdgeRouting edgeRouting = EdgeRouting.STRAIGHT;
+        private boolean resolveProxies = true;
+        private int maxChildren = Integer.MAX_VALUE;
+        private final Map<String, Integer> referenceMaxChildren = new HashMap<>();
+        private int maxValueElements = DEFAULT_MAX_VALUE_ELEMENTS;
+        private int maxValueLength = DEFAULT_MAX_VALUE_LENGTH;
+        private int wrapLength = DEFAULT_WRAP_LENGTH;
+        private String focus;
+        private int focusHops = DEFAULT_FOCUS_HOPS;
+
+        private RenderOptions() {
+        }
+
+        public static RenderOptions defaults() {
+            return new RenderOptions();
+        }
+
+        /**
+         * Rasterizes the diagram in horizontal strips that are encoded as they are drawn, instead of
+         * allocating one image for the whole canvas. Diagrams too large to buffer are always streamed.
+         */
+        public RenderOptions streaming(boolean streaming) {
+            this.streaming = streaming;
+            return this;
+        }
+
+        public RenderOptions stripHeight(int stripHeight) {
+            if (stripHeight < 1) {
+                throw new IllegalArgumentException("Strip height must be positive: " + stripHeight);
+            }
+            this.stripHeight = stripHeight;
+            return this;
+        }
+
+        /**
+         * Number of threads that rasterize tiles concurrently; {@code 1} paints on the calling
+         * thread. The output does not depend on this setting.
+         */
+        public RenderOptions threads(int threads) {
+            if (threads < 1) {
+                throw new IllegalArgumentException("Thread count must be positive: " + threads);
+            }
+            this.threads = threads;
+            return this;
+        }
+
+        public RenderOptions tileHeight(int tileHeight) {
+            if (tileHeight < 1) {
+                throw new IllegalArgumentException("Tile height must be positive: " + tileHeight);
+            }
+            this.tileHeight = tileHeight;
+            return this;
+        }
+
+        /**
+         * Restricts rendering to a region given in the pixel coordinates of the full diagram;
+         * {@code null} renders everything.
+         */
+        public RenderOptions viewport(Rectangle viewport) {
+            if (viewport != null && viewport.isEmpty()) {
+                throw new IllegalArgumentException("Viewport must not be empty: " + viewport);
+            }
+            this.viewport = viewport == null ? null : new Rectangle(viewport);
+            return this;
+        }
+
+        public RenderOptions scale(double scale) {
+            if (!(scale > 0) || Double.isInfinite(scale)) {
+                throw new IllegalArgumentException("Scale must be positive: " + scale);
+            }
+            this.scale = scale;
+            return this;
+        }
+
+        /**
+         * Writes a multi-resolution tile pyramid into the output directory instead of a single
+         * image, so that diagrams too large to view as one picture can be browsed by zooming.
+         */
+        public RenderOptions pyramid(boolean pyramid) {
+            this.pyramid = pyramid;
+            return this;
+        }
+
+        public RenderOptions pyramidTileSize(int pyramidTileSize) {
+            if (pyramidTileSize < 1) {
+                throw new IllegalArgumentException("Pyramid tile size must be positive: " + pyramidTileSize);
+            }
+            this.pyramidTileSize = pyramidTileSize;
+            return this;
+        }
+
+        /**
+         * Fixes the level of detail; {@code null} (the default) chooses it from the number of
+         * nodes. Raster output additionally drops text that would be too small to read at the
+         * requested scale.
+         */
+        public RenderOptions detail(Detail detail) {
+            this.detail = detail;
+            return this;
+        }
+
+        /**
+         * Writes PNGs with a palette of the diagram colours (one byte per pixel, also in memory),
+         * quantizing antialiased edges to a few fixed shades. Off by default; without it, or when a
+         * diagram has too many classifiers for 256 colours, PNGs are written in 24-bit truecolor.
+         */
+        public RenderOptions indexedColor(boolean indexedColor) {
+            this.indexedColor = indexedColor;
+            return this;
+        }
+
+        /** Deflate level of PNG output, from 0 (stored) to 9 (smallest); -1 selects zlib's default. */
+        public RenderOptions deflateLevel(int deflateLevel) {
+            if (deflateLevel < Deflater.DEFAULT_COMPRESSION || deflateLevel > Deflater.BEST_COMPRESSION) {
+                throw new IllegalArgumentException("Deflate level must be between 0 and 9: " + deflateLevel);
+            }
+            this.deflateLevel = deflateLevel;
+            return this;
+        }
+
+        /**
+         * Row filter of PNG output; {@code null} (the default) filters nothing when writing with a
+         * palette and chooses adaptively in truecolor, as the PNG specification recommends.
+         */
+        public RenderOptions pngFilter(PngFilter pngFilter) {
+            this.pngFilter = pngFilter;
+            return this;
+        }
+
+        /**
+         * Arrangement of the nodes; {@code null} (the default) lays out metamodels with
+         * {@link Layout#LAYERED} and models with {@link Layout#SUBTREE}. {@link Layout#TIDY} needs far
+         * less canvas for wide, unbalanced trees.
+         */
+        public RenderOptions layout(Layout layout) {
+            this.layout = layout;
+            return this;
+        }
+
+        /**
+         * Time the {@link Layout#LAYERED} layout may spend reordering layers to remove crossings.
+         * When it runs out, the best order found so far is kept; {@code 0} keeps the initial order.
+         */
+        public RenderOptions layoutBudgetMillis(long layoutBudgetMillis) {
+            if (layoutBudgetMillis < 0) {
+                throw new IllegalArgumentException("Layout budget must not be negative: " + layoutBudgetMillis);
+            }
+            this.layoutBudgetMillis = layoutBudgetMillis;
+            return this;
+        }
+
+        /**
+         * Width-to-height ratio the containment trees are packed to when there are several of them,
+         * tallest first; {@code 0}, the default, lines them up in a single row in model order
+         * instead. Does not apply to {@link Layout#LAYERED}, which lays out the whole graph at once.
+         */
+        public RenderOptions rootAspectRatio(double rootAspectRatio) {
+            if (!(rootAspectRatio >= 0) || Double.isInfinite(rootAspectRatio)) {
+                throw new IllegalArgumentException("Root aspect ratio must not be negative: " + rootAspectRatio);
+            }
+            this.rootAspectRatio = rootAspectRatio;
+            return this;
+        }
+
+        /**
+         * Keeps the measured sizes and positions of the containment trees in a file next to the
+         * output ({@code <output>.layout}), so that rendering an updated model again only measures
+         * and lays out the trees that changed. Off by default; does not apply to
+         * {@link Layout#LAYERED}.
+         */
+        public RenderOptions layoutCache(boolean layoutCache) {
+            this.layoutCache = layoutCache;
+            return this;
+        }
+
+        /**
+         * How references are drawn; {@link EdgeRouting#STRAIGHT} by default.
+         * {@link EdgeRouting#ORTHOGONAL} routes them around the nodes in the way.
+         */
+        public RenderOptions edgeRouting(EdgeRouting edgeRouting) {
+            this.edgeRouting = Objects.requireNonNull(edgeRouting, "edgeRouting");
+            return this;
+        }
+
+        /**
+         * Whether references to objects in other resources are followed, loading those resources
+         * into the resource set. Without it, references are read as they are stored and each object
+         * that is not in the rendered file is drawn as a stub titled with its URI, so time and memory
+         * only depend on the rendered file. Applies to models, not metamodels.
+         */
+        public RenderOptions resolveProxies(boolean resolveProxies) {
+            this.resolveProxies = resolveProxies;
+            return this;
+        }
+
+        /**
+         * Largest number of children shown per containment of a model element; the others are
+         * summed up in one node, such as {@code +9,990 more Order}, and never read. Unlimited by
+         * default.
+         */
+        public RenderOptions maxChildren(int maxChildren) {
+            if (maxChildren < 0) {
+                throw new IllegalArgumentException("Child limit must not be negative: " + maxChildren);
+            }
+            this.maxChildren = maxChildren;
+            return this;
+        }
+
+        /**
+         * Overrides {@link #maxChildren(int)} for one containment, named {@code Class.reference}
+         * after the class of the elements that contain the children, e.g. {@code Consumer.orders}.
+         */
+        public RenderOptions maxChildren(String reference, int maxChildren) {
+            Objects.requireNonNull(reference, "reference");
+            if (maxChildren < 0) {
+                throw new IllegalArgumentException("Child limit must not be negative: " + maxChildren);
+            }
+            referenceMaxChildren.put(reference, maxChildren);
+            return this;
+        }
+
+        int maxChildren(EClass eClass, EReference reference) {
+            return referenceMaxChildren.getOrDefault(eClass.getName() + "." + reference.getName(), maxChildren);
+        }
+
+        /**
+         * Largest number of values of a multi-valued attribute that are shown; a longer list ends
+         * in an ellipsis and the number of values.
+         */
+        public RenderOptions maxValueElements(int maxValueElements) {
+            if (maxValueElements < 1) {
+                throw new IllegalArgumentException("Value limit must be positive: " + maxValueElements);
+            }
+            this.maxValueElements = maxValueElements;
+            return this;
+        }
+
+        /** Length after which an attribute value is cut off with an ellipsis. */
+        public RenderOptions maxValueLength(int maxValueLength) {
+            if (maxValueLength < 1) {
+                throw new IllegalArgumentException("Value length must be positive: " + maxValueLength);
+            }
+            this.maxValueLength = maxValueLength;
+            return this;
+        }
+
+        /**
+         * Length in characters above which attribute lines are broken, preferably at a space, into
+         * indented continuation lines; {@code 0} never breaks them.
+         */
+        public RenderOptions wrapLength(int wrapLength) {
+            if (wrapLength != 0 && wrapLength <= WRAP_INDENT.length()) {
+                throw new IllegalArgumentException("Wrap length must be 0 or above " + WRAP_INDENT.length() + ": " + wrapLength);
+            }
+            this.wrapLength = wrapLength;
+            return this;
+        }
+
+        /**
+         * Renders only the neighbourhood of one element of a model, which is found without laying
+         * out the rest: the elements at most {@link #focusHops(int)} containment or reference steps
+         * away from it, in either direction. The element is selected as
+         * {@code Class.attribute=value}, such as {@code Return.id=R-1042}, or by its URI fragment;
+         * {@code null} (the default) renders the whole model.
+         */
+        public RenderOptions focus(String focus) {
+            this.focus = focus;
+            return this;
+        }
+
+        public RenderOptions focusHops(int focusHops) {
+            if (focusHops < 0) {
+                throw new IllegalArgumentException("Hop count must not be negative: " + focusHops);
+            }
+            this.focusHops = focusHops;
+            return this;
+        }
+
+        void apply(String argument) {
+            int equals = argument.indexOf('=');
+            String name = equals == -1 ? argument.substring(2) : argument.substring(2, equals);
+            String value = equals == -1 ? "" : argument.substring(equals + 1);
+            switch (name) {
+                case "streaming" -> streaming(true);
+                case "strip-height" -> stripHeight(Integer.parseInt(value));
+                case "threads" -> threads(Integer.parseInt(value));
+                case "tile-height" -> tileHeight(Integer.parseInt(value));
+                case "viewport" -> {
+                    String[] parts = value.split(",");
+                    if (parts.length != 4) {
+                        throw new IllegalArgumentException("Expected --viewport=x,y,width,height but got: " + argument);
+                    }
+                    viewport(new Rectangle(Integer.parseInt(parts[0].trim()), Integer.parseInt(parts[1].trim()),
+                            Integer.parseInt(parts[2].trim()), Integer.parseInt(parts[3].trim())));
+                }
+                case "scale" -> scale(Double.parseDouble(value));
+                case "detail" -> detail("auto".equals(value) ? null : Detail.valueOf(value.toUpperCase(Locale.ROOT)));
+                case "pyramid" -> pyramid(true);
+                case "pyramid-tile-size" -> pyramidTileSize(Integer.parseInt(value));
+                case "indexed" -> indexedColor(true);
+                case "deflate-level" -> deflateLevel(Integer.parseInt(value));
+                case "png-filter" -> pngFilter("auto".equals(value) ? null
+                        : PngFilter.valueOf(value.toUpperCase(Locale.ROOT)));
+                case "layout" -> layout("auto".equals(value) ? null : Layout.valueOf(value.toUpperCase(Locale.ROOT)));
+                case "layout-budget" -> layoutBudgetMillis(Long.parseLong(value));
+                case "pack" -> rootAspectRatio(PACKED_ROOT_ASPECT_RATIO);
+                case "root-aspect" -> rootAspectRatio(parseRatio(value));
+                case "layout-cache" -> layoutCache(true);
+                case "routing" -> edgeRouting(EdgeRouting.valueOf(value.toUpperCase(Locale.ROOT)));
+                case "no-resolve" -> resolveProxies(false);
+                case "max-children" -> {
+                    int separator = value.lastIndexOf('=');
+                    if (separator == -1) {
+                        maxChildren(Integer.parseInt(value));
+                    } else {
+                        maxChildren(value.substring(0, separator), Integer.parseInt(value.substring(separator + 1)));
+                    }
+                }
+                case "max-values" -> maxValueElements(Integer.parseInt(value));
+                case "max-value-length" -> maxValueLength(Integer.parseInt(value));
+                case "wrap" -> wrapLength(Integer.parseInt(value));
+                case "focus" -> focus(value);
+                case "hops" -> focusHops(Integer.parseInt(value));
+                default -> throw new IllegalArgumentException("Unknown option: " + argument);
+            }
+        }
+
+        /** Parses {@code row} as 0, a fraction such as {@code 16/9}, or a plain number. */
+        private static double parseRatio(String value) {
+            if ("row".equals(value)) {
+                return 0;
+            }
+            int slash = value.indexOf('/');
+            return slash == -1 ? Double.parseDouble(value)
+                    : Double.parseDouble(value.substring(0, slash)) / Double.parseDouble(value.substring(slash + 1));
+        }
+    }
+
+    /**
+     * Minimal PNG writer (8-bit truecolor or palette, no interlacing) that accepts the image a few
+     * rows at a time. Compressed data is emitted in bounded IDAT chunks, so memory use does not
+     * depend on the image size.
+     */
+    private static final class PngStripEncoder implements Closeable {
+        private static final byte[] SIGNATURE = { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n' };
+        private static final int IDAT_CHUNK_SIZE = 1 << 16;
+        private static final PngFilter[] ROW_FILTERS = { PngFilter.NONE, PngFilter.SUB, PngFilter.UP,
+                PngFilter.AVERAGE, PngFilter.PAETH };
+
+        private final DataOutputStream out;
+        private final Deflater deflater;
+        private final ByteArrayOutputStream pending = new ByteArrayOutputStream(IDAT_CHUNK_SIZE);
+        private final DeflaterOutputStream idat;
+        private final boolean indexed;
+        private final PngFilter filter;
+        private final int bytesPerPixel;
+        private final int[] pixels;
+        private byte[] raw;
+        private byte[] previous;
+        private byte[] filtered;
+        private byte[] candidate;
+        private final int width;
+        private final int height;
+        private int rowsWritten;
+
+        /**
+         * Starts a PNG of the given size. With a {@code palette} rows are taken as indices into it,
+         * otherwise as packed RGB; a {@code null} filter picks the recommended one for the format.
+         */
+        PngStripEncoder(OutputStream output, int width, int height, IndexColorModel palette, int deflateLevel,
+                PngFilter filter) throws IOException {
+            this.out = new DataOutputStream(output);
+            this.width = width;
+            this.height = height;
+            this.indexed = palette != null;
+            this.filter = filter != null ? filter : indexed ? PngFilter.NONE : PngFilter.ADAPTIVE;
+            this.bytesPerPixel = indexed ? 1 : 3;
+            this.pixels = indexed ? null : new int[width];
+            this.raw = new byte[width * bytesPerPixel];
+            this.previous = new byte[raw.length];
+            this.filtered = new byte[1 + raw.length];
+            this.candidate = new byte[1 + raw.length];
+            this.deflater = new Deflater(deflateLevel);
+            this.idat = new DeflaterOutputStream(new OutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    write(new byte[] { (byte) b }, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] data, int offset, int length) throws IOException {
+                    pending.write(data, offset, length);
+                    if (pending.size() >= IDAT_CHUNK_SIZE) {
+                        flushPending();
+                    }
+                }
+            }, deflater, IDAT_CHUNK_SIZE);
+
+            out.write(SIGNATURE);
+            ByteArrayOutputStream header = new ByteArrayOutputStream(13);
+            DataOutputStream headerData = new DataOutputStream(header);
+            headerData.writeInt(width);
+            headerData.writeInt(height);
+            headerData.writeByte(8); // bit depth
+            headerData.writeByte(indexed ? 3 : 2); // colour type: palette or truecolor
+            headerData.writeByte(0); // compression: deflate
+            headerData.writeByte(0); // filter method: adaptive
+            headerData.writeByte(0); // no interlace
+            writeChunk("IHDR", header.toByteArray(), header.size());
+
+            if (indexed) {
+                byte[] entries = new byte[palette.getMapSize() * 3];
+                for (int i = 0; i < palette.getMapSize(); i++) {
+                    entries[i * 3] = (byte) palette.getRed(i);
+                    entries[i * 3 + 1] = (byte) palette.getGreen(i);
+                    entries[i * 3 + 2] = (byte) palette.getBlue(i);
+                }
+                writeChunk("PLTE", entries, entries.length);
+            }
+        }
+
+        /**
+         * Appends the first {@code rows} rows of {@code image}, which is as wide as the PNG and
+         * indexed with its palette, respectively packed RGB when the PNG has none.
+         */
+        void writeRows(BufferedImage image, int rows) throws IOException {
+            if (rowsWritten + rows > height) {
+                throw new IllegalStateException("Image only has " + height + " rows");
+            }
+            Raster raster = image.getRaster();
+            for (int r = 0; r < rows; r++) {
+                if (indexed) {
+                    raster.getDataElements(0, r, width, 1, raw);
+                } else {
+                    raster.getDataElements(0, r, width, 1, pixels);
+                    int p = 0;
+                    for (int x = 0; x < width; x++) {
+                        int pixel = pixels[x];
+                        raw[p++] = (byte) (pixel >> 16);
+                        raw[p++] = (byte) (pixel >> 8);
+                        raw[p++] = (byte) pixel;
+                    }
+                }
+                writeRow();
+            }
+            rowsWritten += rows;
+        }
+
+        private void writeRow() throws IOException {
+            if (filter == PngFilter.ADAPTIVE) {
+                long best = Long.MAX_VALUE;
+                for (PngFilter rowFilter : ROW_FILTERS) {
+                    filterRow(rowFilter, candidate);
+                    long cost = 0;
+                    for (int i = 1; i < candidate.length; i++) {
+                        cost += Math.abs(candidate[i]);
+                    }
+                    if (cost < best) {
+                        best = cost;
+                        byte[] swap = filtered;
+                        filtered = candidate;
+                        candidate = swap;
+                    }
+                }
+            } else {
+                filterRow(filter, filtered);
+            }
+            idat.write(filtered);
+            byte[] swap = previous;
+            previous = raw;
+            raw = swap;
+        }
+
+        /** Filters the current row against the previous one into {@code into}, type byte first. */
+        private void filterRow(PngFilter rowFilter, byte[] into) {
+            into[0] = (byte) rowFilter.ordinal();
+            int bpp = bytesPerPixel;
+            switch (rowFilter) {
+                case NONE -> System.arraycopy(raw, 0, into, 1, raw.length);
+                case SUB -> {
+                    for (int i = 0; i < raw.length; i++) {
+                        into[i + 1] = (byte) (raw[i] - (i >= bpp ? raw[i - bpp] : 0));
+                    }
+                }
+                case UP -> {
+                    for (int i = 0; i < raw.length; i++) {
+                        into[i + 1] = (byte) (raw[i] - previous[i]);
+                    }
+                }
+                case AVERAGE -> {
+                    for (int i = 0; i < raw.length; i++) {
+                        int left = i >= bpp ? raw[i - bpp] & 0xFF : 0;
+                        into[i + 1] = (byte) (raw[i] - ((left + (previous[i] & 0xFF)) >>> 1));
+                    }
+                }
+                case PAETH -> {
+                    for (int i = 0; i < raw.length; i++) {
+                        int left = i >= bpp ? raw[i - bpp] & 0xFF : 0;
+                        int upLeft = i >= bpp ? previous[i - bpp] & 0xFF : 0;
+                        into[i + 1] = (byte) (raw[i] - paeth(left, previous[i] & 0xFF, upLeft));
+                    }
+                }
+                default -> throw new IllegalArgumentException("Not a row filter: " + rowFilter);
+            }
+        }
+
+        private static int paeth(int left, int up, int upLeft) {
+            int estimate = left + up - upLeft;
+            int distanceLeft = Math.abs(estimate - left);
+            int distanceUp = Math.abs(estimate - up);
+            int distanceUpLeft = Math.abs(estimate - upLeft);
+            if (distanceLeft <= distanceUp && distanceLeft <= distanceUpLeft) {
+                return left;
+            }
+            return distanceUp <= distanceUpLeft ? up : upLeft;
+        }
+
+        void finish() throws IOException {
+            if (rowsWritten != height) {
+                throw new IllegalStateException("Expected " + height + " rows but got " + rowsWritten);
+            }
+            idat.finish();
+            flushPending();
+            writeChunk("IEND", new byte[0], 0);
+            out.flush();
+        }
+
+        private void flushPending() throws IOException {
+            if (pending.size() > 0) {
+                writeChunk("IDAT", pending.toByteArray(), pending.size());
+                pending.reset();
+            }
+        }
+
+        private void writeChunk(String type, byte[] data, int length) throws IOException {
+            byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+            CRC32 crc = new CRC32();
+            crc.update(typeBytes);
+            crc.update(data, 0, length);
+            out.writeInt(length);
+            out.write(typeBytes);
+            out.write(data, 0, length);
+            out.writeInt((int) crc.getValue());
+        }
+
+        @Override
+        public void close() throws IOException {
+            deflater.end();
+            out.close();
         }
     }
 }
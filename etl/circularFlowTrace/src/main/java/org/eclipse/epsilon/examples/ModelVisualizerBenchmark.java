@@ -0,0 +1,362 @@
+package org.eclipse.epsilon.examples;
+
+import java.awt.Rectangle;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+
+import org.eclipse.emf.common.util.URI;
+import org.eclipse.emf.ecore.EAttribute;
+import org.eclipse.emf.ecore.EClass;
+import org.eclipse.emf.ecore.EClassifier;
+import org.eclipse.emf.ecore.EEnum;
+import org.eclipse.emf.ecore.EEnumLiteral;
+import org.eclipse.emf.ecore.EObject;
+import org.eclipse.emf.ecore.EPackage;
+import org.eclipse.emf.ecore.EReference;
+import org.eclipse.emf.ecore.EcoreFactory;
+import org.eclipse.emf.ecore.EcorePackage;
+import org.eclipse.emf.ecore.resource.Resource;
+import org.eclipse.emf.ecore.resource.ResourceSet;
+import org.eclipse.emf.ecore.resource.impl.ResourceSetImpl;
+import org.eclipse.emf.ecore.util.EcoreUtil;
+import org.eclipse.emf.ecore.xmi.XMLResource;
+import org.eclipse.emf.ecore.xmi.impl.XMIResourceFactoryImpl;
+
+/**
+ * Times {@link ModelVisualizer} on generated models. Each scenario writes a metamodel and a model
+ * of {@code Node}s into a temporary directory, renders it a few times after a warm-up render and
+ * prints the median wall time. Run it with the classpath of this project, for example
+ * {@code mvn compile exec:java -Dexec.mainClass=org.eclipse.epsilon.examples.ModelVisualizerBenchmark
+ * -Dexec.args="tiles 8x3x4"}.
+ *
+ * <p>Scenarios:
+ * <ul>
+ * <li>{@code tiles [shape]}: PNG output on one thread and on all processors; the two images must
+ * be identical.</li>
+ * <li>{@code text [shape]}: text width cache statistics and times of a first and a warm render,
+ * by default on 111,111 nodes.</li>
+ * <li>{@code alloc [shape]}: bytes allocated by a render on one thread, once for the whole
+ * diagram and once for a single pixel of it; the difference is what painting the diagram
+ * allocates.</li>
+ * <li>{@code deep <n>} and {@code wide <n>}: a chain of {@code n} nested nodes and {@code n}
+ * children of one root, rendered to SVG.</li>
+ * </ul>
+ * A shape {@code RxFxD} is {@code R} trees in which every node down to depth {@code D} has
+ * {@code F} children.
+ */
+public final class ModelVisualizerBenchmark {
+
+    private static final int WARMUP_RUNS = 1;
+    private static final int MEASURED_RUNS = 5;
+    private static final long SAVE_STACK_BYTES = 1L << 30;
+
+    private ModelVisualizerBenchmark() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0) {
+            System.err.println("Usage: ModelVisualizerBenchmark tiles|text|alloc [RxFxD] | deep|wide <n>");
+            return;
+        }
+        File directory = Files.createTempDirectory("visualizer-benchmark").toFile();
+        String scenario = args[0];
+        String shape = args.length > 1 ? args[1] : null;
+        try {
+            switch (scenario) {
+                case "tiles" -> tiles(directory, shape != null ? shape : "8x3x5");
+                case "text" -> text(directory, shape != null ? shape : "1x10x5");
+                case "alloc" -> alloc(directory, shape != null ? shape : "4x3x5");
+                case "deep" -> deep(directory, shape != null ? Integer.parseInt(shape) : 100_000);
+                case "wide" -> wide(directory, shape != null ? Integer.parseInt(shape) : 1_000_000);
+                default -> throw new IllegalArgumentException("Unknown scenario: " + scenario);
+            }
+        } finally {
+            for (File file : directory.listFiles()) {
+                file.delete();
+            }
+            directory.delete();
+        }
+    }
+
+    /** Single-threaded against parallel tile rasterization of the same diagram. */
+    private static void tiles(File directory, String shape) throws Exception {
+        File model = writeTrees(directory, shape);
+        int processors = Runtime.getRuntime().availableProcessors();
+        File single = new File(directory, "single.png");
+        File tiled = new File(directory, "tiled.png");
+        long singleMillis = median(model, single, ModelVisualizer.RenderOptions.defaults().threads(1));
+        long tiledMillis = median(model, tiled, ModelVisualizer.RenderOptions.defaults().threads(processors));
+        System.out.printf(Locale.ROOT, "%s, 1 thread: %d ms%n", shape, singleMillis);
+        System.out.printf(Locale.ROOT, "%s, %d threads: %d ms%n", shape, processors, tiledMillis);
+        System.out.println(Arrays.equals(Files.readAllBytes(single.toPath()), Files.readAllBytes(tiled.toPath()))
+                ? "Images are identical" : "Images differ");
+    }
+
+    /** Hit rate of the text width cache over a first render and the renders after it. */
+    private static void text(File directory, String shape) throws Exception {
+        File model = writeTrees(directory, shape);
+        File output = new File(directory, "text.svg");
+        ModelVisualizer.RenderOptions options = ModelVisualizer.RenderOptions.defaults()
+                .detail(ModelVisualizer.Detail.FULL);
+        long start = System.nanoTime();
+        ModelVisualizer.render(model, output, options);
+        System.out.printf(Locale.ROOT, "%s, first render: %d ms%n", shape, (System.nanoTime() - start) / 1_000_000);
+        System.out.println(ModelVisualizer.textWidthStatistics());
+        System.out.printf(Locale.ROOT, "%s, warm render: %d ms%n", shape, median(model, output, options));
+        System.out.println(ModelVisualizer.textWidthStatistics());
+    }
+
+    /**
+     * Bytes allocated by painting, as the difference between rendering the whole diagram and a
+     * single pixel of it. Both are written in strips, so no image of the whole diagram is held.
+     */
+    private static void alloc(File directory, String shape) throws Exception {
+        File model = writeTrees(directory, shape);
+        File output = new File(directory, "alloc.png");
+        long fullBytes = allocatedBytes(model, output,
+                ModelVisualizer.RenderOptions.defaults().threads(1).streaming(true));
+        long pixelBytes = allocatedBytes(model, output, ModelVisualizer.RenderOptions.defaults().threads(1)
+                .streaming(true).viewport(new Rectangle(0, 0, 1, 1)));
+        System.out.printf(Locale.ROOT, "%s, whole diagram: %,d bytes%n", shape, fullBytes);
+        System.out.printf(Locale.ROOT, "%s, one pixel: %,d bytes%n", shape, pixelBytes);
+        System.out.printf(Locale.ROOT, "%s, painting and encoding: %,d bytes%n", shape, fullBytes - pixelBytes);
+    }
+
+    private static void deep(File directory, int depth) throws Exception {
+        Metamodel metamodel = new Metamodel();
+        EObject root = metamodel.node("n0");
+        EObject parent = root;
+        for (int i = 1; i < depth; i++) {
+            EObject child = metamodel.node("n" + i);
+            metamodel.children(parent).add(child);
+            parent = child;
+        }
+        File model = write(directory, "deep", metamodel, List.of(root));
+        timeSvg(model, new File(directory, "deep.svg"), depth + " nested nodes");
+    }
+
+    private static void wide(File directory, int width) throws Exception {
+        Metamodel metamodel = new Metamodel();
+        EObject root = metamodel.node("root");
+        List<EObject> children = metamodel.children(root);
+        for (int i = 0; i < width; i++) {
+            children.add(metamodel.node("n" + i));
+        }
+        File model = write(directory, "wide", metamodel, List.of(root));
+        timeSvg(model, new File(directory, "wide.svg"), width + " children of one root");
+    }
+
+    /**
+     * Times one render of {@code model} to SVG, and loading the model on its own, since the render
+     * includes it and EMF's share grows with the depth of the containment.
+     */
+    private static void timeSvg(File model, File output, String description) throws Exception {
+        ResourceSet resourceSet = new ResourceSetImpl();
+        resourceSet.getResourceFactoryRegistry().getExtensionToFactoryMap().put("*", new XMIResourceFactoryImpl());
+        File metamodel = new File(model.getParentFile(), model.getName().replace(".xmi", ".ecore"));
+        EPackage ePackage = (EPackage) resourceSet.getResource(URI.createFileURI(metamodel.getAbsolutePath()), true)
+                .getContents().get(0);
+        resourceSet.getPackageRegistry().put(ePackage.getNsURI(), ePackage);
+        long start = System.nanoTime();
+        resourceSet.getResource(URI.createFileURI(model.getAbsolutePath()), true);
+        System.out.printf(Locale.ROOT, "%s, loading alone: %d ms%n", description,
+                (System.nanoTime() - start) / 1_000_000);
+
+        start = System.nanoTime();
+        try {
+            ModelVisualizer.render(model, output, ModelVisualizer.RenderOptions.defaults());
+            System.out.printf(Locale.ROOT, "%s, render: %d ms%n", description, (System.nanoTime() - start) / 1_000_000);
+        } catch (StackOverflowError e) {
+            System.out.printf(Locale.ROOT, "%s, render: StackOverflowError%n", description);
+        }
+    }
+
+    /** The median time of {@link #MEASURED_RUNS} renders after {@link #WARMUP_RUNS} warm-up renders. */
+    private static long median(File model, File output, ModelVisualizer.RenderOptions options) throws Exception {
+        for (int i = 0; i < WARMUP_RUNS; i++) {
+            ModelVisualizer.render(model, output, options);
+        }
+        long[] millis = new long[MEASURED_RUNS];
+        for (int i = 0; i < MEASURED_RUNS; i++) {
+            long start = System.nanoTime();
+            ModelVisualizer.render(model, output, options);
+            millis[i] = (System.nanoTime() - start) / 1_000_000;
+        }
+        Arrays.sort(millis);
+        return millis[MEASURED_RUNS / 2];
+    }
+
+    /** Bytes the calling thread allocates for one render, after a warm-up render. */
+    private static long allocatedBytes(File model, File output, ModelVisualizer.RenderOptions options)
+            throws Exception {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory
+                .getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        ModelVisualizer.render(model, output, options);
+        long before = threads.getThreadAllocatedBytes(thread);
+        ModelVisualizer.render(model, output, options);
+        return threads.getThreadAllocatedBytes(thread) - before;
+    }
+
+    /** Writes the trees of {@code shape} and returns the model file. */
+    private static File writeTrees(File directory, String shape) throws Exception {
+        String[] parts = shape.split("x");
+        if (parts.length != 3) {
+            throw new IllegalArgumentException("Expected a shape RxFxD but got: " + shape);
+        }
+        int roots = Integer.parseInt(parts[0]);
+        int fanout = Integer.parseInt(parts[1]);
+        int depth = Integer.parseInt(parts[2]);
+        Metamodel metamodel = new Metamodel();
+        List<EObject> rootNodes = new ArrayList<>(roots);
+        List<EObject> all = new ArrayList<>();
+        for (int r = 0; r < roots; r++) {
+            EObject root = metamodel.node("n" + r);
+            rootNodes.add(root);
+            all.add(root);
+            Deque<EObject> level = new ArrayDeque<>(List.of(root));
+            for (int d = 1; d <= depth; d++) {
+                Deque<EObject> next = new ArrayDeque<>();
+                int index = 0;
+                for (EObject parent : level) {
+                    for (int f = 0; f < fanout; f++) {
+                        EObject child = metamodel.node("n" + r + "_" + d + "_" + index++);
+                        metamodel.children(parent).add(child);
+                        next.add(child);
+                        all.add(child);
+                    }
+                }
+                level = next;
+            }
+        }
+        // Every node refers to a node of another tree, so there are references to route and label
+        for (int i = 0; i < all.size(); i++) {
+            all.get(i).eSet(metamodel.peer, all.get((int) ((i * 7919L + all.size() / 2) % all.size())));
+        }
+        System.out.printf(Locale.ROOT, "%s: %,d nodes%n", shape, all.size());
+        return write(directory, "trees", metamodel, rootNodes);
+    }
+
+    /**
+     * Saves the metamodel next to the model, where {@link ModelVisualizer} looks for it. EMF saves
+     * contents recursively, so the model is saved on a thread with a stack deep enough for long
+     * chains, and unformatted, since indenting every line by its depth makes a chain quadratic in
+     * size; only the render is meant to run on an ordinary stack.
+     */
+    private static File write(File directory, String name, Metamodel metamodel, List<EObject> roots)
+            throws Exception {
+        ResourceSet resourceSet = new ResourceSetImpl();
+        resourceSet.getResourceFactoryRegistry().getExtensionToFactoryMap().put("*", new XMIResourceFactoryImpl());
+        Resource ecore = resourceSet.createResource(URI.createFileURI(new File(directory, name + ".ecore")
+                .getAbsolutePath()));
+        ecore.getContents().add(metamodel.ePackage);
+        ecore.save(Collections.emptyMap());
+        File modelFile = new File(directory, name + ".xmi");
+        Resource model = resourceSet.createResource(URI.createFileURI(modelFile.getAbsolutePath()));
+        model.getContents().addAll(roots);
+        Throwable[] failure = new Throwable[1];
+        Thread saver = new Thread(null, () -> {
+            try {
+                model.save(Collections.singletonMap(XMLResource.OPTION_FORMATTED, Boolean.FALSE));
+            } catch (IOException | RuntimeException | Error e) {
+                failure[0] = e;
+            }
+        }, "save", SAVE_STACK_BYTES);
+        saver.start();
+        saver.join();
+        if (failure[0] != null) {
+            throw new IOException("Could not save " + modelFile, failure[0]);
+        }
+        return modelFile;
+    }
+
+    /** A metamodel of nodes with a few attributes, contained children and a reference to a peer. */
+    private static final class Metamodel {
+        final EPackage ePackage;
+        final EClass node;
+        final EAttribute key;
+        final EAttribute state;
+        final EAttribute recycled;
+        final EAttribute tags;
+        final EReference children;
+        final EReference peer;
+        final List<EEnumLiteral> states = new ArrayList<>();
+
+        Metamodel() {
+            EcoreFactory factory = EcoreFactory.eINSTANCE;
+            ePackage = factory.createEPackage();
+            ePackage.setName("bench");
+            ePackage.setNsPrefix("bench");
+            ePackage.setNsURI("http://www.eclipse.org/epsilon/examples/bench");
+
+            EEnum stateEnum = factory.createEEnum();
+            stateEnum.setName("State");
+            for (String name : List.of("ASSEMBLED", "USED", "RECYCLED")) {
+                EEnumLiteral literal = factory.createEEnumLiteral();
+                literal.setName(name);
+                literal.setValue(states.size());
+                stateEnum.getELiterals().add(literal);
+                states.add(literal);
+            }
+            ePackage.getEClassifiers().add(stateEnum);
+
+            node = factory.createEClass();
+            node.setName("Node");
+            ePackage.getEClassifiers().add(node);
+            key = attribute(factory, "key", EcorePackage.Literals.ESTRING, false);
+            state = attribute(factory, "state", stateEnum, false);
+            recycled = attribute(factory, "recycled", EcorePackage.Literals.EBOOLEAN, false);
+            tags = attribute(factory, "tags", EcorePackage.Literals.ESTRING, true);
+            children = factory.createEReference();
+            children.setName("children");
+            children.setEType(node);
+            children.setContainment(true);
+            children.setUpperBound(-1);
+            node.getEStructuralFeatures().add(children);
+            peer = factory.createEReference();
+            peer.setName("peer");
+            peer.setEType(node);
+            node.getEStructuralFeatures().add(peer);
+        }
+
+        private EAttribute attribute(EcoreFactory factory, String name, EClassifier type,
+                boolean many) {
+            EAttribute attribute = factory.createEAttribute();
+            attribute.setName(name);
+            attribute.setEType(type);
+            attribute.setUpperBound(many ? -1 : 1);
+            node.getEStructuralFeatures().add(attribute);
+            return attribute;
+        }
+
+        /** A node whose attribute values repeat across nodes, as in real models. */
+        EObject node(String keyValue) {
+            EObject eObject = EcoreUtil.create(node);
+            eObject.eSet(key, keyValue);
+            int hash = keyValue.hashCode() & 0x7fffffff;
+            eObject.eSet(state, states.get(hash % states.size()).getInstance());
+            eObject.eSet(recycled, hash % 2 == 0);
+            tags(eObject).add("tag" + hash % 10);
+            return eObject;
+        }
+
+        @SuppressWarnings("unchecked")
+        List<EObject> children(EObject eObject) {
+            return (List<EObject>) eObject.eGet(children);
+        }
+
+        @SuppressWarnings("unchecked")
+        private List<Object> tags(EObject eObject) {
+            return (List<Object>) eObject.eGet(tags);
+        }
+    }
+}
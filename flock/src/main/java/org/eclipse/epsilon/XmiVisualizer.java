@@ -6,17 +6,45 @@ import java.awt.Font;
 import java.awt.FontMetrics;
 import java.awt.Graphics2D;
 import java.awt.Polygon;
+import java.awt.Rectangle;
 import java.awt.RenderingHints;
+import java.awt.font.FontRenderContext;
+import java.awt.geom.Path2D;
 import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Comparator;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
 
 import javax.imageio.ImageIO;
 
@@ -26,9 +54,11 @@ import org.eclipse.emf.ecore.EClass;
 import org.eclipse.emf.ecore.EObject;
 import org.eclipse.emf.ecore.EPackage;
 import org.eclipse.emf.ecore.EReference;
+import org.eclipse.emf.ecore.InternalEObject;
 import org.eclipse.emf.ecore.resource.Resource;
 import org.eclipse.emf.ecore.resource.ResourceSet;
 import org.eclipse.emf.ecore.resource.impl.ResourceSetImpl;
+import org.eclipse.emf.ecore.util.EcoreUtil;
 import org.eclipse.emf.ecore.xmi.impl.XMIResourceFactoryImpl;
 
 public final class XmiVisualizer {
@@ -42,23 +72,104 @@ public final class XmiVisualizer {
     private static final int ROOT_SPACING = 90;
     private static final int MARGIN = 60;
 
+    // Edges are drawn with arrowheads around their end points;
+    // this is how far (in pixels) any of those can reach beyond the end points.
+    private static final int EDGE_SLACK = 24;
+    private static final int NODE_SLACK = 2;
+    private static final int DEFAULT_TILE_HEIGHT = 128;
+    private static final int DEFAULT_PYRAMID_TILE_SIZE = 256;
+    private static final double PACKED_ROOT_ASPECT_RATIO = 16.0 / 9.0;
+    private static final int DEFAULT_MAX_VALUE_ELEMENTS = 100;
+    private static final int DEFAULT_MAX_VALUE_LENGTH = 1_000;
+    private static final int DEFAULT_WRAP_LENGTH = 120;
+    private static final String ELLIPSIS = "...";
+    private static final String WRAP_INDENT = "    ";
+    private static final int MIN_CELL_SIZE = 128;
+
+    // Automatic level of detail: diagrams with more nodes than this lose their attribute lines,
+    // respectively their titles, and text is not drawn once it would be smaller than this many pixels.
+    private static final int FULL_DETAIL_NODE_LIMIT = 2_000;
+    private static final int TITLE_DETAIL_NODE_LIMIT = 20_000;
+    private static final int MIN_TEXT_HEIGHT = 4;
+    private static final int BOX_NODE_WIDTH = 80;
+
+    // The font Graphics2D starts out with; edge labels are derived from it.
+    private static final Font LABEL_FONT = new Font(Font.DIALOG, Font.PLAIN, 12).deriveFont(Font.PLAIN, 14f);
+
+    // Drawing resources shared by all nodes and edges, so that painting allocates none per element
+    private static final Color BACKGROUND_COLOR = new Color(0xF5, 0xF5, 0xF5);
+    private static final Color CONTAINMENT_COLOR = new Color(120, 120, 120);
+    private static final Color REFERENCE_COLOR = new Color(90, 120, 160);
+    private static final BasicStroke EDGE_STROKE = new BasicStroke(2f);
+    private static final BasicStroke DASHED_EDGE_STROKE = new BasicStroke(2f, BasicStroke.CAP_ROUND,
+            BasicStroke.JOIN_ROUND, 10f, new float[] { 10f, 10f }, 0f);
+    private static final BasicStroke NODE_BORDER_STROKE = new BasicStroke(1.8f);
+    private static final NodeStyle DEFAULT_STYLE = NodeStyle.of(new Color(232, 242, 250));
+    private static final NodeStyle PROXY_STYLE = NodeStyle.of(new Color(224, 224, 224));
+    private static final NodeStyle SUMMARY_STYLE = NodeStyle.of(new Color(240, 240, 240));
+
+    // Shared by all renders in this JVM: titles and attribute lines repeat across nodes and models
+    private static final TextWidthCache TEXT_WIDTHS = new TextWidthCache();
+
     private XmiVisualizer() {
     }
 
     public static void main(String[] args) throws Exception {
-        if (args.length < 3) {
-            System.err.println("Usage: XmiVisualizer <metamodel.ecore> <model.xmi> <diagram.png> [diagram.puml]");
+        RenderOptions options = RenderOptions.defaults();
+        List<String> files = new ArrayList<>();
+        boolean statistics = false;
+        for (String arg : args) {
+            if ("--stats".equals(arg)) {
+                statistics = true;
+            } else if (arg.startsWith("--")) {
+                options.apply(arg);
+            } else {
+                files.add(arg);
+            }
+        }
+
+        if (files.size() < 3) {
+            System.err.println("Usage: XmiVisualizer [options] <metamodel.ecore> <model.xmi> <diagram.png|diagram.svg> [diagram.puml]");
+            System.err.println("Options:");
+            System.err.println("   --threads=<n>        rasterize tiles on n threads (default: available processors)");
+            System.err.println("   --tile-height=<px>   height of a parallel tile (default " + DEFAULT_TILE_HEIGHT + ")");
+            System.err.println("   --detail=<level>     full, title or box (default: chosen from the node count)");
+            System.err.println("   --pyramid            write a deep-zoom tile pyramid into the directory given as diagram");
+            System.err.println("   --pyramid-tile-size=<px>  edge length of a pyramid tile (default " + DEFAULT_PYRAMID_TILE_SIZE + ")");
+            System.err.println("   --pack               pack the trees onto shelves close to a 16/9 rectangle instead of a single row");
+            System.err.println("   --root-aspect=<w/h>  pack the trees to this width-to-height ratio instead, or row for a single row (default)");
+            System.err.println("   --layout-cache       keep the tree layouts in <diagram>.layout, so that rendering the model");
+            System.err.println("                        again only lays out the trees that changed");
+            System.err.println("   --routing=<routing>  straight from side to side (default), or orthogonal around the nodes");
+            System.err.println("   --no-resolve         draw references into other resources as stubs instead of loading them");
+            System.err.println("   --max-children=<n>   show at most n children per containment and sum up the rest in one node");
+            System.err.println("   --max-children=<Class.reference>=<n>  the same for one containment, e.g. Consumer.orders=10");
+            System.err.println("   --max-values=<n>     show at most n values of a multi-valued attribute (default " + DEFAULT_MAX_VALUE_ELEMENTS + ")");
+            System.err.println("   --max-value-length=<chars>  cut attribute values off after this many characters (default " + DEFAULT_MAX_VALUE_LENGTH + ")");
+            System.err.println("   --wrap=<chars>       wrap attribute lines longer than this, or 0 to never wrap (default " + DEFAULT_WRAP_LENGTH + ")");
+            System.err.println("   --stats              print text measurement cache statistics");
             return;
         }
 
-        File ecoreFile = new File(args[0]);
-        File xmiFile = new File(args[1]);
-        File pngFile = new File(args[2]);
-        File plantUmlFile = args.length > 3 ? new File(args[3]) : derivePlantUmlFile(pngFile);
+        File ecoreFile = new File(files.get(0));
+        File xmiFile = new File(files.get(1));
+        File pngFile = new File(files.get(2));
+        File plantUmlFile = files.size() > 3 ? new File(files.get(3)) : derivePlantUmlFile(pngFile);
 
-        render(ecoreFile, xmiFile, pngFile, plantUmlFile);
+        render(ecoreFile, xmiFile, pngFile, plantUmlFile, options);
         System.out.println("Diagram exported to: " + pngFile.getAbsolutePath());
         System.out.println("PlantUML exported to: " + plantUmlFile.getAbsolutePath());
+        if (statistics) {
+            System.out.println(textWidthStatistics());
+        }
+    }
+
+    /**
+     * Describes how the text measurements of all renders so far were served: from the width
+     * cache, summed from a per-font advance table, or measured by the font metrics.
+     */
+    public static String textWidthStatistics() {
+        return TEXT_WIDTHS.statistics();
     }
 
     public static void render(File ecoreFile, File xmiFile, File pngFile) throws Exception {
@@ -66,10 +177,16 @@ public final class XmiVisualizer {
     }
 
     public static void render(File ecoreFile, File xmiFile, File pngFile, File plantUMLFile) throws Exception {
+        render(ecoreFile, xmiFile, pngFile, plantUMLFile, RenderOptions.defaults());
+    }
+
+    public static void render(File ecoreFile, File xmiFile, File pngFile, File plantUMLFile, RenderOptions options)
+            throws Exception {
         Objects.requireNonNull(ecoreFile, "ecoreFile");
         Objects.requireNonNull(xmiFile, "xmiFile");
         Objects.requireNonNull(pngFile, "pngFile");
         Objects.requireNonNull(plantUMLFile, "plantUMLFile");
+        Objects.requireNonNull(options, "options");
 
         ResourceSet resourceSet = new ResourceSetImpl();
         registerFactories(resourceSet);
@@ -77,18 +194,17 @@ public final class XmiVisualizer {
 
         Resource modelResource = resourceSet.getResource(URI.createFileURI(xmiFile.getAbsolutePath()), true);
 
-        Map<EObject, DiagramNode> nodeIndex = new IdentityHashMap<>();
-        Map<String, Color> colorIndex = new HashMap<>();
-        List<DiagramNode> roots = new ArrayList<>();
-        for (EObject rootObject : modelResource.getContents()) {
-            roots.add(buildNode(rootObject, nodeIndex, colorIndex));
+        ForkJoinPool pool = options.threads > 1 ? new ForkJoinPool(options.threads) : null;
+        try {
+            DiagramGraph graph = buildGraph(modelResource, options, pool);
+            Detail detail = options.detail != null ? options.detail : Detail.forNodeCount(graph.elementCount);
+            renderDiagram(graph, pngFile, options, detail, pool);
+            writePlantUml(graph, plantUMLFile);
+        } finally {
+            if (pool != null) {
+                pool.shutdown();
+            }
         }
-
-        List<DiagramEdge> containmentEdges = collectContainmentEdges(roots);
-        List<DiagramEdge> crossReferences = collectCrossReferences(nodeIndex);
-
-        renderDiagram(roots, containmentEdges, crossReferences, pngFile);
-        writePlantUml(nodeIndex.values(), containmentEdges, crossReferences, plantUMLFile);
     }
 
     private static void registerFactories(ResourceSet resourceSet) {
@@ -114,103 +230,262 @@ public final class XmiVisualizer {
         }
     }
 
-    private static DiagramNode buildNode(EObject eObject, Map<EObject, DiagramNode> index,
-            Map<String, Color> colorIndex) {
-        if (index.containsKey(eObject)) {
-            return index.get(eObject);
+    /**
+     * Builds the nodes and edges of the diagram of {@code resource}. The model elements are only
+     * tracked while this runs: the graph numbers its nodes and keeps no reference to the model.
+     */
+    private static DiagramGraph buildGraph(Resource resource, RenderOptions options, ForkJoinPool pool) {
+        GraphBuilder builder = new GraphBuilder();
+        Map<String, NodeStyle> styleIndex = new HashMap<>();
+        Map<EClass, ClassPlan> plans = new IdentityHashMap<>();
+        Map<String, String> lineTable = new HashMap<>();
+        for (EObject rootObject : resource.getContents()) {
+            buildNode(rootObject, builder, styleIndex, plans, lineTable, options);
         }
 
-        DiagramNode node = new DiagramNode();
-        node.eObject = eObject;
-        node.title = ":" + eObject.eClass().getName();
-        node.fillColor = lookupColor(eObject.eClass().getName(), colorIndex);
+        EdgeTable.Builder references = new EdgeTable.Builder();
+        // Each proxy stub is a tree of its own, after the model, so the nodes stay in pre-order
+        collectModelReferences(builder, references, options.resolveProxies ? null : new HashMap<>(), pool);
+        return builder.build(references);
+    }
 
-        for (EAttribute attribute : eObject.eClass().getEAllAttributes()) {
-            Object value = eObject.eGet(attribute);
-            if (value == null) {
+    /**
+     * Builds the nodes of {@code root} and everything it contains, walking the containment tree
+     * with an explicit stack of child iterators so that models of any depth can be built. Nodes
+     * are created in pre-order, the order classifiers are assigned their colors in. Children
+     * beyond the limits of {@code options} are only counted, into a summary node. Elements that
+     * already have a node are not built again.
+     */
+    private static void buildNode(EObject root, GraphBuilder builder, Map<String, NodeStyle> styleIndex,
+            Map<EClass, ClassPlan> plans, Map<String, String> lineTable, RenderOptions options) {
+        if (builder.id(root) >= 0) {
+            return;
+        }
+
+        int rootNode = createNode(root, -1, "", builder, styleIndex, plans, lineTable, options);
+        Deque<ContainmentFrame> stack = new ArrayDeque<>();
+        stack.push(new ContainmentFrame(rootNode, contentsToBuild(root, builder.plan(rootNode))));
+        while (!stack.isEmpty()) {
+            ContainmentFrame frame = stack.peek();
+            if (!frame.children().hasNext()) {
+                stack.pop();
                 continue;
             }
-            String rendered = renderAttributeValue(value);
-            if (rendered.isEmpty()) {
+            Object next = frame.children().next();
+            if (next instanceof OmittedChildren omitted) {
+                createSummaryNode(omitted, frame.node(), builder);
+                continue;
+            }
+            EObject child = (EObject) next;
+            if (builder.id(child) >= 0) {
                 continue;
             }
-            node.lines.add(attribute.getName() + " = " + rendered);
+            String containmentName = child.eContainmentFeature() != null ? child.eContainmentFeature().getName() : "";
+            int childNode = createNode(child, frame.node(), containmentName, builder, styleIndex, plans, lineTable,
+                    options);
+            stack.push(new ContainmentFrame(childNode, contentsToBuild(child, builder.plan(childNode))));
         }
+    }
 
-        index.put(eObject, node);
-        for (EObject child : eObject.eContents()) {
-            DiagramNode childNode = buildNode(child, index, colorIndex);
-            childNode.parent = node;
-            childNode.containmentName = child.eContainmentFeature() != null ? child.eContainmentFeature().getName() : "";
-            node.children.add(childNode);
+    /**
+     * The contents of a model element to build nodes for. A containment with more children than
+     * its limit in the plan gives its first children followed by an {@link OmittedChildren} for
+     * the rest, which are never visited.
+     */
+    private static Iterator<?> contentsToBuild(EObject eObject, ClassPlan plan) {
+        if (plan.childLimits() == null) {
+            return eObject.eContents().iterator();
+        }
+        List<Object> contents = new ArrayList<>();
+        EReference[] containments = plan.containments();
+        for (int i = 0; i < containments.length; i++) {
+            Object value = eObject.eGet(containments[i]);
+            if (value instanceof List<?> children) {
+                int shown = Math.min(children.size(), plan.childLimits()[i]);
+                for (int j = 0; j < shown; j++) {
+                    contents.add(children.get(j));
+                }
+                if (children.size() > shown) {
+                    contents.add(new OmittedChildren(containments[i], children.size() - shown));
+                }
+            } else if (value != null) {
+                contents.add(value);
+            }
         }
+        return contents.iterator();
+    }
+
+    /** The children of a containment that are left out of the diagram, by their number. */
+    private record OmittedChildren(EReference reference, int count) {
+    }
 
+    /** A node standing in for omitted children, such as {@code +9,990 more Order}. */
+    private static int createSummaryNode(OmittedChildren omitted, int parent, GraphBuilder builder) {
+        String title = String.format(Locale.ROOT, "+%,d more %s", omitted.count(),
+                omitted.reference().getEReferenceType().getName());
+        return builder.add(null, null, title, SUMMARY_STYLE, parent, omitted.reference().getName());
+    }
+
+    /**
+     * Adds the node of a model element, with a line per set attribute. Nodes are created in
+     * pre-order, so every node is given its lines after those of the nodes before it.
+     */
+    private static int createNode(EObject eObject, int parent, String containmentName, GraphBuilder builder,
+            Map<String, NodeStyle> styleIndex, Map<EClass, ClassPlan> plans, Map<String, String> lineTable,
+            RenderOptions options) {
+        ClassPlan plan = lookupPlan(eObject.eClass(), plans, styleIndex, options);
+        int node = builder.add(eObject, plan, plan.title(), plan.style(), parent, containmentName);
+
+        EAttribute[] attributes = plan.attributes();
+        List<String> lines = new ArrayList<>(attributes.length);
+        for (int i = 0; i < attributes.length; i++) {
+            Object value = eObject.eGet(attributes[i]);
+            if (value == null) {
+                continue;
+            }
+            String rendered = renderAttributeValue(value, options.maxValueElements, options.maxValueLength);
+            if (rendered.isEmpty()) {
+                continue;
+            }
+            addWrapped(plan.linePrefixes()[i] + rendered, options.wrapLength, lines, lineTable);
+        }
+        builder.addLines(node, lines);
         return node;
     }
 
-    private static String renderAttributeValue(Object value) {
-        if (value instanceof Collection<?> collection) {
-            List<String> parts = new ArrayList<>();
-            for (Object element : collection) {
-                if (element != null) {
-                    parts.add(element.toString());
-                }
+    /**
+     * Renders an attribute value in at most {@code maxLength} characters, and a collection by at
+     * most {@code maxElements} of its elements, without rendering the elements beyond either
+     * limit. A value that is cut off ends in an ellipsis, for a collection followed by its size.
+     */
+    private static String renderAttributeValue(Object value, int maxElements, int maxLength) {
+        StringBuilder text = new StringBuilder();
+        if (!(value instanceof Collection<?> collection)) {
+            return appendBounded(text, value.toString(), maxLength) ? text.toString() : text.append(ELLIPSIS).toString();
+        }
+        int shown = 0;
+        for (Object element : collection) {
+            if (element == null) {
+                continue;
             }
-            return String.join(", ", parts);
+            if (shown == maxElements || shown > 0 && !appendBounded(text, ", ", maxLength)
+                    || !appendBounded(text, element.toString(), maxLength)) {
+                return text.append(ELLIPSIS).append(String.format(Locale.ROOT, " (%,d values)", collection.size()))
+                        .toString();
+            }
+            shown++;
         }
-        return value.toString();
+        return text.toString();
     }
 
-    private static List<DiagramEdge> collectContainmentEdges(List<DiagramNode> roots) {
-        List<DiagramEdge> edges = new ArrayList<>();
-        for (DiagramNode root : roots) {
-            collectContainmentEdges(root, edges);
+    /** Appends as much of {@code part} as fits into {@code maxLength} characters; false if not all of it. */
+    private static boolean appendBounded(StringBuilder text, String part, int maxLength) {
+        int room = maxLength - text.length();
+        if (part.length() <= room) {
+            text.append(part);
+            return true;
         }
-        return edges;
+        text.append(part, 0, Math.max(room, 0));
+        return false;
     }
 
-    private static void collectContainmentEdges(DiagramNode node, List<DiagramEdge> edges) {
-        for (DiagramNode child : node.children) {
-            edges.add(DiagramEdge.of(node, child, child.containmentName, false));
-            collectContainmentEdges(child, edges);
+    /**
+     * Adds {@code line} to {@code lines}, broken into pieces of at most {@code width} characters,
+     * at a space in the second half of a piece where there is one; the pieces after the first are
+     * indented. A {@code width} of {@code 0} never breaks.
+     */
+    private static void addWrapped(String line, int width, List<String> lines, Map<String, String> lineTable) {
+        if (width == 0 || line.length() <= width) {
+            lines.add(intern(line, lineTable));
+            return;
+        }
+        int start = 0;
+        String indent = "";
+        while (line.length() - start > width - indent.length()) {
+            int limit = start + width - indent.length();
+            int end = line.lastIndexOf(' ', limit);
+            if (end <= start + (width - indent.length()) / 2) {
+                end = limit;
+            }
+            lines.add(intern(indent + line.substring(start, end), lineTable));
+            start = end;
+            while (start < line.length() && line.charAt(start) == ' ') {
+                start++;
+            }
+            indent = WRAP_INDENT;
+        }
+        if (start < line.length()) {
+            lines.add(intern(indent + line.substring(start), lineTable));
         }
     }
 
-    private static List<DiagramEdge> collectCrossReferences(Map<EObject, DiagramNode> index) {
-        List<DiagramEdge> edges = new ArrayList<>();
-        for (Map.Entry<EObject, DiagramNode> entry : index.entrySet()) {
-            EObject source = entry.getKey();
-            DiagramNode sourceNode = entry.getValue();
-            EClass eClass = source.eClass();
+    /** The equal line already in {@code lineTable}, so that nodes showing the same line share it. */
+    private static String intern(String line, Map<String, String> lineTable) {
+        String interned = lineTable.putIfAbsent(line, line);
+        return interned != null ? interned : line;
+    }
 
-            for (EReference reference : eClass.getEAllReferences()) {
-                if (reference.isContainment()) {
-                    continue;
-                }
-                Object value = source.eGet(reference);
-                if (value instanceof EObject target) {
-                    DiagramNode targetNode = index.get(target);
-                    if (targetNode != null) {
-                        edges.add(DiagramEdge.of(sourceNode, targetNode, reference.getName(), true));
-                    }
-                } else if (value instanceof Collection<?> collection) {
-                    for (Object element : collection) {
-                        if (element instanceof EObject target) {
-                            DiagramNode targetNode = index.get(target);
-                            if (targetNode != null) {
-                                edges.add(DiagramEdge.of(sourceNode, targetNode, reference.getName(), true));
-                            }
-                        }
-                    }
+    /**
+     * Adds the references between the model elements of {@code builder} to {@code edges}, in the
+     * order of their nodes. Ranges of nodes are collected on the threads of {@code pool} if there
+     * is one, each into its own buffer, and the buffers are joined in the order of the ranges, so
+     * the edges come out the same on any number of threads. Workers read references without
+     * resolving proxies, because resolving may load resources into the resource set, which is not
+     * safe to do concurrently; the proxies they find are resolved here afterwards, range by range.
+     * With {@code proxyStubs} they are not resolved at all: references to them end at a stub node
+     * per proxy URI, which is added to the builder as a root of its own and to {@code proxyStubs},
+     * so that no other resource is ever loaded. The lists of many-valued references are created
+     * before the workers start, see {@link #createReferenceLists}.
+     */
+    private static void collectModelReferences(GraphBuilder builder, EdgeTable.Builder edges,
+            Map<String, Integer> proxyStubs, ForkJoinPool pool) {
+        CrossReferenceTask task = new CrossReferenceTask(builder, 0, builder.size());
+        if (pool != null) {
+            createReferenceLists(builder);
+            pool.invoke(task);
+        } else {
+            task.collect();
+        }
+        task.join(edges, builder, proxyStubs);
+    }
+
+    /**
+     * Reads every many-valued reference of the model nodes once, on the calling thread. EMF creates
+     * the list of such a feature on its first {@code eGet} and stores it in the object without any
+     * synchronization; with the lists created before the pool starts, workers only read them.
+     */
+    private static void createReferenceLists(GraphBuilder builder) {
+        for (int node = 0; node < builder.size(); node++) {
+            ClassPlan plan = builder.plan(node);
+            if (plan == null) {
+                continue; // a summary of omitted children
+            }
+            EObject eObject = builder.eObject(node);
+            for (EReference reference : plan.references()) {
+                if (reference.isMany()) {
+                    eObject.eGet(reference, false);
                 }
             }
         }
-        return edges;
     }
 
-    private static void renderDiagram(List<DiagramNode> roots, List<DiagramEdge> containments,
-            List<DiagramEdge> references, File output) throws IOException {
-        if (roots.isEmpty()) {
+    /** A node standing in for an unresolved proxy, titled with the URI of the object it refers to. */
+    private static int createProxyStub(EObject proxy, GraphBuilder builder) {
+        return builder.add(null, null, ((InternalEObject) proxy).eProxyURI().toString(), PROXY_STYLE, -1, "");
+    }
+
+    /** A reference to a proxy, found by a worker and left for the calling thread to resolve. */
+    private record ProxyReference(int source, EReference reference, EObject proxy) {
+    }
+
+    /**
+     * Lays out and renders the diagram. Nodes are numbered in pre-order, so measuring and layout
+     * are passes over number ranges instead of recursions over the trees. Work that can be spread
+     * over threads runs on {@code pool} if there is one.
+     */
+    private static void renderDiagram(DiagramGraph graph, File output, RenderOptions options, Detail detail,
+            ForkJoinPool pool) throws IOException {
+        if (graph.size == 0) {
             throw new IllegalArgumentException("No root objects found to render.");
         }
 
@@ -223,200 +498,660 @@ public final class XmiVisualizer {
         FontMetrics titleMetrics = scratchGraphics.getFontMetrics(titleFont);
         FontMetrics bodyMetrics = scratchGraphics.getFontMetrics(bodyFont);
 
-        for (DiagramNode root : roots) {
-            measureNode(root, titleMetrics, bodyMetrics);
+        // Every tree is a contiguous range of node numbers and is laid out at the origin, unless
+        // the layout cache already knows it
+        int[] roots = graph.roots;
+        LayoutCache cache = options.layoutCache
+                ? LayoutCache.load(layoutCacheFile(output), detail, titleMetrics, bodyMetrics)
+                : null;
+        long[] contentHashes = new long[roots.length];
+        boolean[] restored = new boolean[roots.length];
+        int[] unmeasured = cache == null ? null : new int[graph.size];
+        int unmeasuredCount = 0;
+        for (int t = 0; t < roots.length && cache != null; t++) {
+            int root = roots[t];
+            contentHashes[t] = cache.contentHash(graph, root);
+            restored[t] = cache.restore(graph, root, contentHashes[t]);
+            if (!restored[t]) {
+                for (int v = root; v < root + graph.subtreeSizes[root]; v++) {
+                    unmeasured[unmeasuredCount++] = v;
+                }
+            }
+        }
+        // The nodes of all trees in parallel first, then every tree's subtrees bottom-up
+        measureNodes(graph, unmeasured == null ? null : Arrays.copyOf(unmeasured, unmeasuredCount), titleMetrics,
+                bodyMetrics, detail, pool);
+
+        List<Rectangle> boxes = new ArrayList<>(roots.length);
+        for (int t = 0; t < roots.length; t++) {
+            int root = roots[t];
+            int end = root + graph.subtreeSizes[root];
+            if (!restored[t] && (cache == null || !cache.restoreLayout(graph, root))) {
+                layoutTree(graph, root);
+            }
+            if (cache != null) {
+                cache.add(graph, root, contentHashes[t]);
+            }
+            int width = 0;
+            int height = 0;
+            for (int v = root; v < end; v++) {
+                width = Math.max(width, graph.right(v));
+                height = Math.max(height, graph.bottom(v));
+            }
+            boxes.add(new Rectangle(width, height));
+        }
+        if (cache != null) {
+            cache.save();
         }
+        packBoxes(boxes, options.rootAspectRatio);
 
         int totalWidth = 0;
-        int maxHeight = 0;
-        for (DiagramNode root : roots) {
-            totalWidth += root.subtreeWidth;
-            maxHeight = Math.max(maxHeight, root.subtreeHeight);
+        int totalHeight = 0;
+        for (int t = 0; t < roots.length; t++) {
+            Rectangle box = boxes.get(t);
+            for (int v = roots[t]; v < roots[t] + graph.subtreeSizes[roots[t]]; v++) {
+                graph.x[v] += MARGIN + box.x;
+                graph.y[v] += MARGIN + box.y;
+            }
+            totalWidth = Math.max(totalWidth, box.x + box.width);
+            totalHeight = Math.max(totalHeight, box.y + box.height);
         }
-        totalWidth += ROOT_SPACING * (roots.size() - 1);
-
         int imageWidth = totalWidth + MARGIN * 2;
-        int imageHeight = maxHeight + MARGIN * 2;
+        int imageHeight = totalHeight + MARGIN * 2;
+        FontMetrics labelMetrics = scratchGraphics.getFontMetrics(LABEL_FONT);
+        scratchGraphics.dispose();
+        int[][] routes = options.edgeRouting == EdgeRouting.ORTHOGONAL
+                ? OrthogonalRouter.route(graph, imageWidth, imageHeight, pool)
+                : straightRoutes(graph);
+        EdgeLabels labels = detail == Detail.BOX ? EdgeLabels.none(routes.length)
+                : LabelPlacer.place(graph, routes, labelMetrics);
+        SpatialIndex index = SpatialIndex.build(graph, routes, labels, imageWidth, imageHeight);
+        DiagramScene scene = new DiagramScene(graph, routes, labels, imageWidth, imageHeight, titleFont, bodyFont,
+                titleMetrics, bodyMetrics, index, detail);
+
+        if (!options.pyramid && output.getName().toLowerCase().endsWith(".svg")) {
+            writeSvg(scene, output);
+            return;
+        }
 
+        if (options.pyramid) {
+            writeTilePyramid(scene, output, options.pyramidTileSize, pool);
+            return;
+        }
         BufferedImage image = new BufferedImage(imageWidth, imageHeight, BufferedImage.TYPE_INT_ARGB);
-        Graphics2D g = image.createGraphics();
-        configureGraphics(g);
-        g.setColor(Color.decode("#F5F5F5"));
-        g.fillRect(0, 0, imageWidth, imageHeight);
+        if (pool != null) {
+            paintTiles(image, scene, options.tileHeight, pool);
+        } else {
+            paintRegion(image, scene, 1.0, 0, 0);
+        }
+        ImageIO.write(image, "PNG", output);
+    }
+
+    /**
+     * Writes the diagram as a deep-zoom pyramid into the directory {@code output}. The last level
+     * is the diagram at full resolution and every level before it is half the size of the next,
+     * down to the first one that fits in a single tile. Tiles are stored as
+     * {@code <level>/<column>_<row>.png} and described by {@code pyramid.json}.
+     *
+     * <p>Each tile is rendered on its own from the shared layout, so with a pool the tiles of all
+     * levels are painted concurrently and only one tile per worker is held in memory.
+     */
+    private static void writeTilePyramid(DiagramScene scene, File output, int tileSize, ForkJoinPool pool)
+            throws IOException {
+        int levels = 1;
+        while (Math.max(scene.width(), scene.height()) > (long) tileSize << (levels - 1)) {
+            levels++;
+        }
+
+        List<PyramidTile> tiles = new ArrayList<>();
+        StringBuilder descriptor = new StringBuilder();
+        descriptor.append("{\n  \"format\": \"png\",\n  \"tileSize\": ").append(tileSize).append(",\n  \"width\": ")
+                .append(scene.width()).append(",\n  \"height\": ").append(scene.height()).append(",\n  \"levels\": [\n");
+        for (int level = 0; level < levels; level++) {
+            double scale = 1.0 / (1L << (levels - 1 - level));
+            int width = Math.max(1, (int) Math.ceil(scene.width() * scale));
+            int height = Math.max(1, (int) Math.ceil(scene.height() * scale));
+            File directory = new File(output, String.valueOf(level));
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Cannot create tile directory " + directory);
+            }
+            for (int top = 0; top < height; top += tileSize) {
+                for (int left = 0; left < width; left += tileSize) {
+                    tiles.add(new PyramidTile(scale, new File(directory, left / tileSize + "_" + top / tileSize + ".png"),
+                            new Rectangle(left, top, Math.min(tileSize, width - left), Math.min(tileSize, height - top))));
+                }
+            }
+            descriptor.append("    { \"level\": ").append(level).append(", \"scale\": ").append(scale)
+                    .append(", \"width\": ").append(width).append(", \"height\": ").append(height)
+                    .append(", \"columns\": ").append((width + tileSize - 1) / tileSize)
+                    .append(", \"rows\": ").append((height + tileSize - 1) / tileSize)
+                    .append(level + 1 < levels ? " },\n" : " }\n");
+        }
+        descriptor.append("  ]\n}\n");
+
+        if (pool == null) {
+            for (PyramidTile tile : tiles) {
+                writePyramidTile(scene, tile);
+            }
+        } else {
+            try {
+                pool.invoke(new PyramidTask(scene, tiles, 0, tiles.size()));
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
+
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(new File(output, "pyramid.json")),
+                StandardCharsets.UTF_8)) {
+            out.write(descriptor.toString());
+        }
+    }
 
-        int cursorX = MARGIN;
-        int startY = MARGIN;
-        for (DiagramNode root : roots) {
-            layoutNode(root, cursorX, startY);
-            cursorX += root.subtreeWidth + ROOT_SPACING;
+    private static void writePyramidTile(DiagramScene scene, PyramidTile tile) throws IOException {
+        Rectangle region = tile.region();
+        BufferedImage image = new BufferedImage(region.width, region.height, BufferedImage.TYPE_INT_ARGB);
+        paintRegion(image, scene, tile.scale(), region.x, region.y);
+        ImageIO.write(image, "PNG", tile.file());
+    }
+
+    /**
+     * Writes the laid-out diagram as SVG in one pass over the scene, in the same order and with the
+     * same geometry as {@link #paintScene}. Elements go straight to the writer without building a
+     * document tree, so memory use does not grow with the size of the output.
+     */
+    private static void writeSvg(DiagramScene scene, File output) throws IOException {
+        try (Writer out = new BufferedWriter(
+                new OutputStreamWriter(new FileOutputStream(output), StandardCharsets.UTF_8), 1 << 16)) {
+            out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+            out.write("<svg xmlns=\"http://www.w3.org/2000/svg\" width=\"" + scene.width() + "\" height=\""
+                    + scene.height() + "\" viewBox=\"0 0 " + scene.width() + " " + scene.height() + "\">\n");
+            out.write("<rect width=\"100%\" height=\"100%\" fill=\"" + svgColor(BACKGROUND_COLOR) + "\"/>\n");
+
+            Color containmentColor = CONTAINMENT_COLOR;
+            out.write("<g stroke=\"" + svgColor(containmentColor) + "\" stroke-width=\"2\" fill=\""
+                    + svgColor(containmentColor) + "\">\n");
+            DiagramGraph graph = scene.graph();
+            for (int child = 0; child < graph.size; child++) {
+                int parent = graph.parents[child];
+                if (parent < 0) {
+                    continue;
+                }
+                int x1 = graph.centerX(parent);
+                int y1 = graph.bottom(parent);
+                int x2 = graph.centerX(child);
+                int y2 = graph.y[child];
+                svgLine(out, x1, y1, x2, y2);
+                svgPolygon(out, arrowHead(x1, y1, x2, y2));
+            }
+            out.write("</g>\n");
+
+            Color referenceColor = REFERENCE_COLOR;
+            out.write("<g stroke=\"" + svgColor(referenceColor) + "\" stroke-width=\"2\" stroke-dasharray=\"10 10\""
+                    + " stroke-linecap=\"round\" stroke-linejoin=\"round\">\n");
+            for (int[] route : scene.routes()) {
+                svgRoute(out, route);
+            }
+            out.write("</g>\n");
+            out.write("<g fill=\"" + svgColor(referenceColor) + "\" font-family=\"Dialog, sans-serif\" font-size=\"14\">\n");
+            for (int k = 0; k < scene.routes().length; k++) {
+                int[] route = scene.routes()[k];
+                int n = route.length;
+                svgPolygon(out, arrowHead(route[n - 4], route[n - 3], route[n - 2], route[n - 1]));
+                String text = scene.labels().text(k);
+                if (text != null) {
+                    svgText(out, scene.labels().x(k), scene.labels().baseline(k), text, "");
+                }
+            }
+            out.write("</g>\n");
+
+            FontMetrics titleMetrics = scene.titleMetrics();
+            FontMetrics bodyMetrics = scene.bodyMetrics();
+            out.write("<g font-family=\"SansSerif, sans-serif\" font-size=\"16\">\n");
+            for (int node = 0; node < graph.size; node++) {
+                NodeStyle style = graph.styles[node] != null ? graph.styles[node] : DEFAULT_STYLE;
+                Color bodyColor = style.body();
+                Color headerColor = style.header();
+                Color borderColor = style.border();
+                int x = graph.x[node];
+                int y = graph.y[node];
+                int width = graph.width[node];
+                int height = graph.height[node];
+                if (scene.detail() == Detail.BOX) {
+                    out.write("<rect x=\"" + x + "\" y=\"" + y + "\" width=\"" + width + "\" height=\""
+                            + height + "\" fill=\"" + svgColor(headerColor) + "\" stroke=\"" + svgColor(borderColor)
+                            + "\" stroke-width=\"1.8\"/>\n");
+                    continue;
+                }
+                int titleBottom = y + V_PADDING + titleMetrics.getHeight();
+                int headerHeight = Math.min(height, titleBottom - y);
+                out.write("<rect x=\"" + x + "\" y=\"" + y + "\" width=\"" + width + "\" height=\""
+                        + height + "\" fill=\"" + svgColor(bodyColor) + "\"/>\n");
+                out.write("<rect x=\"" + x + "\" y=\"" + y + "\" width=\"" + width + "\" height=\""
+                        + headerHeight + "\" fill=\"" + svgColor(headerColor) + "\"/>\n");
+                out.write("<rect x=\"" + x + "\" y=\"" + y + "\" width=\"" + width + "\" height=\""
+                        + height + "\" fill=\"none\" stroke=\"" + svgColor(borderColor) + "\" stroke-width=\"1.8\"/>\n");
+                if (scene.detail() == Detail.FULL && graph.lineCount(node) != 0) {
+                    out.write("<line x1=\"" + x + "\" y1=\"" + titleBottom + "\" x2=\"" + (x + width)
+                            + "\" y2=\"" + titleBottom + "\" stroke=\"" + svgColor(borderColor) + "\" stroke-width=\"1.8\"/>\n");
+                }
+                svgText(out, x + H_PADDING, y + V_PADDING + titleMetrics.getAscent(), graph.titles[node],
+                        " font-size=\"18\" font-weight=\"bold\" fill=\"" + svgColor(style.headerText()) + "\"");
+                if (scene.detail() != Detail.FULL) {
+                    continue;
+                }
+                String bodyText = " fill=\"" + svgColor(style.bodyText()) + "\"";
+                int bodyBaseline = titleBottom + HEADER_GAP + bodyMetrics.getAscent();
+                for (int line = graph.lineStart[node]; line < graph.lineStart[node + 1]; line++) {
+                    svgText(out, x + H_PADDING, bodyBaseline, graph.lines[line], bodyText);
+                    bodyBaseline += bodyMetrics.getHeight() + LINE_SPACING;
+                }
+            }
+            out.write("</g>\n");
+            out.write("</svg>\n");
         }
+    }
+
+    private static void svgLine(Writer out, int x1, int y1, int x2, int y2) throws IOException {
+        out.write("<line x1=\"" + x1 + "\" y1=\"" + y1 + "\" x2=\"" + x2 + "\" y2=\"" + y2 + "\"/>\n");
+    }
+
+    /** Writes a route of two points as a line, longer ones as an unfilled polyline. */
+    private static void svgRoute(Writer out, int[] route) throws IOException {
+        if (route.length == 4) {
+            svgLine(out, route[0], route[1], route[2], route[3]);
+            return;
+        }
+        out.write("<polyline points=\"");
+        for (int i = 0; i < route.length; i += 2) {
+            if (i > 0) {
+                out.write(' ');
+            }
+            out.write(route[i] + "," + route[i + 1]);
+        }
+        out.write("\" fill=\"none\"/>\n");
+    }
 
-        g.setStroke(new BasicStroke(2f));
-        g.setColor(new Color(120, 120, 120));
-        for (DiagramEdge edge : containments) {
-            drawContainment(g, edge);
+    private static void svgPolygon(Writer out, Polygon polygon) throws IOException {
+        out.write("<polygon points=\"");
+        for (int i = 0; i < polygon.npoints; i++) {
+            if (i > 0) {
+                out.write(' ');
+            }
+            out.write(polygon.xpoints[i] + "," + polygon.ypoints[i]);
         }
+        out.write("\" stroke=\"none\"/>\n");
+    }
+
+    private static void svgText(Writer out, int x, int y, String text, String attributes) throws IOException {
+        out.write("<text x=\"" + x + "\" y=\"" + y + "\"" + attributes + ">");
+        svgEscape(out, text);
+        out.write("</text>\n");
+    }
 
-        g.setStroke(new BasicStroke(2f, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND, 10f, new float[] { 10f, 10f }, 0f));
-        g.setColor(new Color(90, 120, 160));
-        for (DiagramEdge edge : references) {
-            drawReference(g, edge);
+    /**
+     * Writes {@code text} so that it can stand in element content as well as in a quoted attribute.
+     * Control characters other than tab, line feed and carriage return are not allowed in XML 1.0
+     * at all and are left out.
+     */
+    private static void svgEscape(Writer out, String text) throws IOException {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '<' -> out.write("&lt;");
+                case '>' -> out.write("&gt;");
+                case '&' -> out.write("&amp;");
+                case '"' -> out.write("&quot;");
+                case '\t', '\n', '\r' -> out.write(c);
+                default -> {
+                    if (c >= 0x20) {
+                        out.write(c);
+                    }
+                }
+            }
         }
+    }
+
+    private static String svgColor(Color color) {
+        return String.format("#%02X%02X%02X", color.getRed(), color.getGreen(), color.getBlue());
+    }
 
-        for (DiagramNode root : roots) {
-            drawNode(g, root, titleFont, bodyFont, titleMetrics, bodyMetrics);
+    /**
+     * Cuts the image into tiles that are rasterized concurrently, each through its own view of the
+     * shared pixel buffer. Tiles span the full width: the antialiasing rasterizer accumulates
+     * coverage along each scanline, so only cuts between rows keep the output identical to the
+     * sequential pass.
+     */
+    private static void paintTiles(BufferedImage image, DiagramScene scene, int tileHeight, ForkJoinPool pool) {
+        int rows = Math.max(1, Math.min(tileHeight,
+                (image.getHeight() + pool.getParallelism() - 1) / pool.getParallelism()));
+        List<Rectangle> tiles = new ArrayList<>();
+        for (int y = 0; y < image.getHeight(); y += rows) {
+            tiles.add(new Rectangle(0, y, image.getWidth(), Math.min(rows, image.getHeight() - y)));
         }
+        pool.invoke(new TileTask(image, scene, tiles, 0, tiles.size()));
+    }
 
+    /**
+     * Paints the diagram, magnified by {@code scale}, into {@code target} so that the pixel
+     * {@code (left, top)} of the scaled diagram lands on the top left corner of the target.
+     */
+    private static void paintRegion(BufferedImage target, DiagramScene scene, double scale, int left, int top) {
+        Graphics2D g = target.createGraphics();
+        g.translate(-left, -top);
+        g.scale(scale, scale);
+        int x = (int) Math.floor(left / scale);
+        int y = (int) Math.floor(top / scale);
+        int right = (int) Math.ceil((left + target.getWidth()) / scale) + 1;
+        int bottom = (int) Math.ceil((top + target.getHeight()) / scale) + 1;
+        paintScene(g, scene, new Rectangle(x, y, right - x, bottom - y), scene.detailAt(scale));
         g.dispose();
-        ImageIO.write(image, "PNG", output);
     }
 
-    private static void measureNode(DiagramNode node, FontMetrics titleMetrics, FontMetrics bodyMetrics) {
-        int titleWidth = titleMetrics.stringWidth(node.title);
-        int maxLineWidth = titleWidth;
-        for (String line : node.lines) {
-            maxLineWidth = Math.max(maxLineWidth, bodyMetrics.stringWidth(line));
+    /**
+     * Paints everything that reaches into {@code area} of the diagram at the given level of
+     * detail. The graphics must already be transformed so that diagram coordinates land on the
+     * target image.
+     */
+    private static void paintScene(Graphics2D g, DiagramScene scene, Rectangle area, Detail detail) {
+        configureGraphics(g);
+        g.setColor(BACKGROUND_COLOR);
+        g.fillRect(area.x, area.y, area.width, area.height);
+
+        int[] visible = scene.index().query(area);
+        int i = 0;
+
+        // Edges are collected into one path per style and drawn with a handful of calls
+        EdgeBatch edges = new EdgeBatch();
+        for (; i < visible.length && visible[i] < scene.firstReference(); i++) {
+            edges.addContainment(scene.graph(), visible[i]);
+        }
+        edges.paint(g, CONTAINMENT_COLOR);
+
+        int labelsFrom = i;
+        edges.reset();
+        for (; i < visible.length && visible[i] < scene.firstNode(); i++) {
+            edges.addReference(scene.route(visible[i]));
+        }
+        edges.paint(g, REFERENCE_COLOR);
+
+        if (detail != Detail.BOX) {
+            g.setColor(REFERENCE_COLOR);
+            g.setFont(LABEL_FONT);
+            for (int k = labelsFrom; k < i; k++) {
+                drawLabel(g, scene.labels(), visible[k] - scene.firstReference());
+            }
+        }
+
+        for (; i < visible.length; i++) {
+            drawNode(g, scene.graph(), visible[i] - scene.firstNode(), scene.titleFont(), scene.bodyFont(),
+                    scene.titleMetrics(), scene.bodyMetrics(), detail);
+        }
+    }
+
+    /**
+     * Measures the boxes of the nodes numbered in {@code nodes}, or of all nodes if it is
+     * {@code null}, on the threads of {@code pool} if there is one. A box depends on nothing but
+     * the node's own text, so the nodes are simply cut into ranges. The metrics given are those of
+     * the calling thread.
+     */
+    private static void measureNodes(DiagramGraph graph, int[] nodes, FontMetrics titleMetrics,
+            FontMetrics bodyMetrics, Detail detail, ForkJoinPool pool) {
+        int count = nodes == null ? graph.size : nodes.length;
+        if (pool == null || count <= MeasureTask.NODES_PER_TASK) {
+            for (int i = 0; i < count; i++) {
+                measureNode(graph, nodes == null ? i : nodes[i], titleMetrics, bodyMetrics, detail);
+            }
+            return;
+        }
+        Font titleFont = titleMetrics.getFont();
+        Font bodyFont = bodyMetrics.getFont();
+        // Font metrics are not safe for concurrent use, so every worker measures with its own
+        ThreadLocal<FontMetrics[]> workerMetrics = ThreadLocal.withInitial(() -> {
+            Graphics2D scratchGraphics = new BufferedImage(1, 1, BufferedImage.TYPE_INT_ARGB).createGraphics();
+            configureGraphics(scratchGraphics);
+            try {
+                return new FontMetrics[] { scratchGraphics.getFontMetrics(titleFont),
+                        scratchGraphics.getFontMetrics(bodyFont) };
+            } finally {
+                scratchGraphics.dispose();
+            }
+        });
+        pool.invoke(new MeasureTask(graph, nodes, workerMetrics, detail, 0, count));
+    }
+
+    private static void measureNode(DiagramGraph graph, int node, FontMetrics titleMetrics, FontMetrics bodyMetrics,
+            Detail detail) {
+        // Text hidden at this level of detail is not measured at all
+        int lineCount = detail == Detail.FULL ? graph.lineCount(node) : 0;
+        if (detail == Detail.BOX) {
+            graph.width[node] = BOX_NODE_WIDTH;
+        } else {
+            int maxLineWidth = TEXT_WIDTHS.width(titleMetrics, graph.titles[node]);
+            for (int line = graph.lineStart[node]; line < graph.lineStart[node] + lineCount; line++) {
+                maxLineWidth = Math.max(maxLineWidth, TEXT_WIDTHS.width(bodyMetrics, graph.lines[line]));
+            }
+            graph.width[node] = maxLineWidth + H_PADDING * 2;
         }
-        node.width = maxLineWidth + H_PADDING * 2;
 
         int titleHeight = titleMetrics.getHeight();
-        int bodyHeight = node.lines.isEmpty() ? 0
-                : node.lines.size() * bodyMetrics.getHeight() + (node.lines.size() - 1) * LINE_SPACING;
-        node.height = V_PADDING * 2 + titleHeight + (node.lines.isEmpty() ? 0 : HEADER_GAP + bodyHeight);
+        int bodyHeight = lineCount == 0 ? 0
+                : lineCount * bodyMetrics.getHeight() + (lineCount - 1) * LINE_SPACING;
+        graph.height[node] = V_PADDING * 2 + titleHeight + (lineCount == 0 ? 0 : HEADER_GAP + bodyHeight);
+    }
+
+    /**
+     * Lays out the measured tree of {@code root} at the origin, every node centered above its
+     * children. The extents of the subtrees are only needed here, so they are kept in arrays
+     * relative to the root for the duration of the call.
+     */
+    private static void layoutTree(DiagramGraph graph, int root) {
+        int end = root + graph.subtreeSizes[root];
+        int[] subtreeWidth = new int[end - root];
+        int[] subtreeHeight = new int[end - root];
+        // Backwards every child is measured before its parent
+        for (int v = end - 1; v >= root; v--) {
+            measureSubtree(graph, v, root, subtreeWidth, subtreeHeight);
+        }
+        placeNode(graph, root, subtreeWidth[0], 0, 0);
+        // Forwards every parent is placed before its children
+        for (int v = root; v < end; v++) {
+            placeChildren(graph, v, root, subtreeWidth);
+        }
+    }
 
+    private static void measureSubtree(DiagramGraph graph, int v, int root, int[] subtreeWidth,
+            int[] subtreeHeight) {
         int childrenWidth = 0;
         int maxChildHeight = 0;
-        for (DiagramNode child : node.children) {
-            measureNode(child, titleMetrics, bodyMetrics);
-            childrenWidth += child.subtreeWidth;
-            maxChildHeight = Math.max(maxChildHeight, child.subtreeHeight);
+        for (int k = graph.childStart[v]; k < graph.childStart[v + 1]; k++) {
+            int child = graph.children[k] - root;
+            childrenWidth += subtreeWidth[child];
+            maxChildHeight = Math.max(maxChildHeight, subtreeHeight[child]);
         }
-        if (!node.children.isEmpty()) {
-            childrenWidth += SIBLING_SPACING * (node.children.size() - 1);
+        int childCount = graph.childCount(v);
+        if (childCount != 0) {
+            childrenWidth += SIBLING_SPACING * (childCount - 1);
         }
 
-        node.subtreeWidth = Math.max(node.width, childrenWidth);
-        node.subtreeHeight = node.height;
-        if (!node.children.isEmpty()) {
-            node.subtreeHeight += LEVEL_SPACING + maxChildHeight;
+        subtreeWidth[v - root] = Math.max(graph.width[v], childrenWidth);
+        subtreeHeight[v - root] = graph.height[v];
+        if (childCount != 0) {
+            subtreeHeight[v - root] += LEVEL_SPACING + maxChildHeight;
         }
     }
 
-    private static void layoutNode(DiagramNode node, int x, int y) {
-        node.x = x + (node.subtreeWidth - node.width) / 2;
-        node.y = y;
+    private static void placeNode(DiagramGraph graph, int v, int subtreeWidth, int x, int y) {
+        graph.x[v] = x + (subtreeWidth - graph.width[v]) / 2;
+        graph.y[v] = y;
+    }
+
+    private static void placeChildren(DiagramGraph graph, int v, int root, int[] subtreeWidth) {
+        if (graph.childCount(v) == 0) {
+            return;
+        }
+
+        // The left edge of the subtree, exactly as it was passed to placeNode
+        int x = graph.x[v] - (subtreeWidth[v - root] - graph.width[v]) / 2;
+        int childX = x + (subtreeWidth[v - root] - totalChildrenWidth(graph, v, root, subtreeWidth)) / 2;
+        int childY = graph.bottom(v) + LEVEL_SPACING;
+        for (int k = graph.childStart[v]; k < graph.childStart[v + 1]; k++) {
+            int child = graph.children[k];
+            placeNode(graph, child, subtreeWidth[child - root], childX, childY);
+            childX += subtreeWidth[child - root] + SIBLING_SPACING;
+        }
+    }
 
-        if (node.children.isEmpty()) {
+    /**
+     * Places boxes of the given sizes on shelves, first fit by decreasing height, on a strip wide
+     * enough for the packing to come out at about {@code aspectRatio} (width by height). Every
+     * shelf is as high as its first and tallest box, so little more than the boxes' own area is
+     * left empty. A ratio of {@code 0} lines the boxes up in one row, in their original order.
+     */
+    private static void packBoxes(List<Rectangle> boxes, double aspectRatio) {
+        if (aspectRatio == 0) {
+            int x = 0;
+            for (Rectangle box : boxes) {
+                box.setLocation(x, 0);
+                x += box.width + ROOT_SPACING;
+            }
             return;
         }
 
-        int childX = x + (node.subtreeWidth - totalChildrenWidth(node)) / 2;
-        int childY = node.y + node.height + LEVEL_SPACING;
-        for (DiagramNode child : node.children) {
-            layoutNode(child, childX, childY);
-            childX += child.subtreeWidth + SIBLING_SPACING;
+        double area = 0;
+        int widest = 0;
+        for (Rectangle box : boxes) {
+            area += (double) (box.width + ROOT_SPACING) * (box.height + ROOT_SPACING);
+            widest = Math.max(widest, box.width);
+        }
+        double stripWidth = Math.max(widest, Math.sqrt(area * aspectRatio) - ROOT_SPACING);
+
+        List<Rectangle> byHeight = new ArrayList<>(boxes);
+        byHeight.sort(Comparator.comparingInt((Rectangle box) -> box.height).reversed());
+        int[] shelfTop = new int[boxes.size()];
+        int[] shelfUsed = new int[boxes.size()];
+        int shelves = 0;
+        int nextTop = 0;
+        for (Rectangle box : byHeight) {
+            int shelf = 0;
+            while (shelf < shelves && shelfUsed[shelf] + box.width > stripWidth) {
+                shelf++;
+            }
+            if (shelf == shelves) {
+                shelfTop[shelves++] = nextTop;
+                nextTop += box.height + ROOT_SPACING;
+            }
+            box.setLocation(shelfUsed[shelf], shelfTop[shelf]);
+            shelfUsed[shelf] += box.width + ROOT_SPACING;
         }
     }
 
-    private static int totalChildrenWidth(DiagramNode node) {
-        if (node.children.isEmpty()) {
+    private static int totalChildrenWidth(DiagramGraph graph, int v, int root, int[] subtreeWidth) {
+        if (graph.childCount(v) == 0) {
             return 0;
         }
         int width = 0;
-        for (DiagramNode child : node.children) {
-            width += child.subtreeWidth;
+        for (int k = graph.childStart[v]; k < graph.childStart[v + 1]; k++) {
+            width += subtreeWidth[graph.children[k] - root];
         }
-        width += SIBLING_SPACING * (node.children.size() - 1);
+        width += SIBLING_SPACING * (graph.childCount(v) - 1);
         return width;
     }
 
-    private static void drawContainment(Graphics2D g, DiagramEdge edge) {
-        DiagramNode parent = edge.source();
-        DiagramNode child = edge.target();
-        drawArrow(g, parent.getBottomCenterX(), parent.getBottomCenterY(), child.getTopCenterX(), child.y);
+    /** Routes of straight references, from the right side of the source to the left side of the target. */
+    private static int[][] straightRoutes(DiagramGraph graph) {
+        EdgeTable references = graph.references;
+        int[][] routes = new int[references.size()][];
+        for (int source = 0; source < graph.size; source++) {
+            for (int e = references.start[source]; e < references.start[source + 1]; e++) {
+                int target = references.targets[e];
+                routes[e] = new int[] { graph.right(source), graph.centerY(source),
+                        graph.x[target], graph.centerY(target) };
+            }
+        }
+        return routes;
     }
 
-    private static void drawReference(Graphics2D g, DiagramEdge edge) {
-        DiagramNode source = edge.source();
-        DiagramNode target = edge.target();
-        int x1 = source.getRightCenterX();
-        int y1 = source.getRightCenterY();
-        int x2 = target.getLeftCenterX();
-        int y2 = target.getLeftCenterY();
-
-        g.drawLine(x1, y1, x2, y2);
-        drawArrowHead(g, x1, y1, x2, y2);
-
-        int labelX = (x1 + x2) / 2;
-        int labelY = (y1 + y2) / 2 - 6;
-        Font original = g.getFont();
-        g.setFont(original.deriveFont(Font.PLAIN, 14f));
-        g.drawString(edge.label(), labelX, labelY);
-        g.setFont(original);
+    /**
+     * Draws the placed label of {@code reference}, with the label font already set on {@code g}.
+     * References without a label or whose label was dropped have no text.
+     */
+    private static void drawLabel(Graphics2D g, EdgeLabels labels, int reference) {
+        String text = labels.text(reference);
+        if (text != null) {
+            g.drawString(text, labels.x(reference), labels.baseline(reference));
+        }
     }
 
-    private static void drawNode(Graphics2D g, DiagramNode node, Font titleFont, Font bodyFont, FontMetrics titleMetrics,
-            FontMetrics bodyMetrics) {
-        Color base = node.fillColor != null ? node.fillColor : new Color(232, 242, 250);
-        Color bodyColor = lighten(base, 0.25);
-        Color headerColor = darken(base, 0.15);
-        Color borderColor = darken(base, 0.35);
-        Color headerTextColor = readableTextColor(headerColor);
-        Color bodyTextColor = readableTextColor(bodyColor);
+    private static void drawNode(Graphics2D g, DiagramGraph graph, int node, Font titleFont, Font bodyFont,
+            FontMetrics titleMetrics, FontMetrics bodyMetrics, Detail detail) {
+        NodeStyle style = graph.styles[node] != null ? graph.styles[node] : DEFAULT_STYLE;
+        int x = graph.x[node];
+        int y = graph.y[node];
+        int width = graph.width[node];
+        int height = graph.height[node];
+
+        if (detail == Detail.BOX) {
+            g.setColor(style.header());
+            g.fillRect(x, y, width, height);
+            g.setColor(style.border());
+            g.setStroke(NODE_BORDER_STROKE);
+            g.drawRect(x, y, width, height);
+            return;
+        }
 
-        g.setColor(bodyColor);
-        g.fillRect(node.x, node.y, node.width, node.height);
+        g.setColor(style.body());
+        g.fillRect(x, y, width, height);
 
-        int titleBottom = node.y + V_PADDING + titleMetrics.getHeight();
-        int headerHeight = Math.min(node.height, titleBottom - node.y);
+        int titleBottom = y + V_PADDING + titleMetrics.getHeight();
+        int headerHeight = Math.min(height, titleBottom - y);
         if (headerHeight > 0) {
-            g.setColor(headerColor);
-            g.fillRect(node.x, node.y, node.width, headerHeight);
+            g.setColor(style.header());
+            g.fillRect(x, y, width, headerHeight);
         }
 
-        g.setColor(borderColor);
-        g.setStroke(new BasicStroke(1.8f));
-        g.drawRect(node.x, node.y, node.width, node.height);
+        g.setColor(style.border());
+        g.setStroke(NODE_BORDER_STROKE);
+        g.drawRect(x, y, width, height);
 
-        if (!node.lines.isEmpty()) {
-            g.drawLine(node.x, titleBottom, node.x + node.width, titleBottom);
+        if (detail == Detail.FULL && graph.lineCount(node) != 0) {
+            g.drawLine(x, titleBottom, x + width, titleBottom);
         }
 
         g.setFont(titleFont);
-        int titleBaseline = node.y + V_PADDING + titleMetrics.getAscent();
-        g.setColor(headerTextColor);
-        g.drawString(node.title, node.x + H_PADDING, titleBaseline);
+        int titleBaseline = y + V_PADDING + titleMetrics.getAscent();
+        g.setColor(style.headerText());
+        g.drawString(graph.titles[node], x + H_PADDING, titleBaseline);
+
+        if (detail != Detail.FULL) {
+            return;
+        }
 
         g.setFont(bodyFont);
-        g.setColor(bodyTextColor);
+        g.setColor(style.bodyText());
         int bodyBaseline = titleBottom + HEADER_GAP + bodyMetrics.getAscent();
-        for (String line : node.lines) {
-            g.drawString(line, node.x + H_PADDING, bodyBaseline);
+        for (int line = graph.lineStart[node]; line < graph.lineStart[node + 1]; line++) {
+            g.drawString(graph.lines[line], x + H_PADDING, bodyBaseline);
             bodyBaseline += bodyMetrics.getHeight() + LINE_SPACING;
         }
-
-        for (DiagramNode child : node.children) {
-            drawNode(g, child, titleFont, bodyFont, titleMetrics, bodyMetrics);
-        }
     }
 
-    private static void drawArrow(Graphics2D g, int x1, int y1, int x2, int y2) {
-        g.drawLine(x1, y1, x2, y2);
-        drawArrowHead(g, x1, y1, x2, y2);
+    private static Polygon arrowHead(int x1, int y1, int x2, int y2) {
+        return arrowHead(x1, y1, x2, y2, new Polygon());
     }
 
-    private static void drawArrowHead(Graphics2D g, int x1, int y1, int x2, int y2) {
+    /** Builds the arrowhead into {@code arrowHead}, replacing its points. */
+    private static Polygon arrowHead(int x1, int y1, int x2, int y2, Polygon arrowHead) {
         double angle = Math.atan2(y2 - y1, x2 - x1);
         int arrowLength = 14;
         int sideAngle = 30;
 
-        Polygon arrowHead = new Polygon();
+        arrowHead.reset();
         arrowHead.addPoint(x2, y2);
         arrowHead.addPoint((int) Math.round(x2 - arrowLength * Math.cos(angle - Math.toRadians(sideAngle))),
                 (int) Math.round(y2 - arrowLength * Math.sin(angle - Math.toRadians(sideAngle))));
         arrowHead.addPoint((int) Math.round(x2 - arrowLength * Math.cos(angle + Math.toRadians(sideAngle))),
                 (int) Math.round(y2 - arrowLength * Math.sin(angle + Math.toRadians(sideAngle))));
-        g.fillPolygon(arrowHead);
+        return arrowHead;
     }
 
     private static void configureGraphics(Graphics2D g) {
@@ -424,8 +1159,19 @@ public final class XmiVisualizer {
         g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
     }
 
-    private static Color lookupColor(String classifierName, Map<String, Color> colorIndex) {
-        return colorIndex.computeIfAbsent(classifierName, _ -> paletteColor(colorIndex.size()));
+    private static NodeStyle lookupStyle(String classifierName, Map<String, NodeStyle> styleIndex) {
+        return styleIndex.computeIfAbsent(classifierName, _ -> NodeStyle.of(paletteColor(styleIndex.size())));
+    }
+
+    /** The plan of {@code eClass}, made on first use; its style is looked up by the class name. */
+    private static ClassPlan lookupPlan(EClass eClass, Map<EClass, ClassPlan> plans, Map<String, NodeStyle> styleIndex,
+            RenderOptions options) {
+        ClassPlan plan = plans.get(eClass);
+        if (plan == null) {
+            plan = ClassPlan.of(eClass, lookupStyle(eClass.getName(), styleIndex), options);
+            plans.put(eClass, plan);
+        }
+        return plan;
     }
 
     private static Color lighten(Color color, double factor) {
@@ -456,6 +1202,11 @@ public final class XmiVisualizer {
         }
     }
 
+    /** The layout cache of a diagram lives next to it, for pyramids next to their directory. */
+    private static File layoutCacheFile(File output) {
+        return new File(output.getPath() + ".layout");
+    }
+
     private static File derivePlantUmlFile(File pngFile) {
         String baseName = stripExtension(pngFile.getName());
         File directory = pngFile.getParentFile() != null ? pngFile.getParentFile() : new File(".");
@@ -467,14 +1218,17 @@ public final class XmiVisualizer {
         return dot == -1 ? name : name.substring(0, dot);
     }
 
-    private static void writePlantUml(Collection<DiagramNode> nodesCollection, List<DiagramEdge> containments,
-            List<DiagramEdge> references, File output) throws IOException {
-        List<DiagramNode> nodes = new ArrayList<>(nodesCollection);
-        nodes.sort((left, right) -> left.title.compareToIgnoreCase(right.title));
+    private static void writePlantUml(DiagramGraph graph, File output) throws IOException {
+        Integer[] nodes = new Integer[graph.size];
+        for (int v = 0; v < graph.size; v++) {
+            nodes[v] = v;
+        }
+        Arrays.sort(nodes, (left, right) -> graph.titles[left].compareToIgnoreCase(graph.titles[right]));
 
-        Map<DiagramNode, String> ids = new IdentityHashMap<>();
-        for (int i = 0; i < nodes.size(); i++) {
-            ids.put(nodes.get(i), "C" + i);
+        // Classes are named after their position in title order
+        int[] ids = new int[graph.size];
+        for (int i = 0; i < nodes.length; i++) {
+            ids[nodes[i]] = i;
         }
 
         StringBuilder sb = new StringBuilder();
@@ -483,30 +1237,35 @@ public final class XmiVisualizer {
         sb.append("skinparam classAttributeIconSize 0\n");
         sb.append("hide empty members\n");
 
-        for (DiagramNode node : nodes) {
-            sb.append("class ").append(ids.get(node)).append(" as \"")
-                    .append(node.title.replace("\"", "\\\"")).append("\\n");
-            for (String line : node.lines) {
-                sb.append(line.replace("\"", "\\\"")).append("\\n");
+        for (int node : nodes) {
+            sb.append("class C").append(ids[node]).append(" as \"")
+                    .append(graph.titles[node].replace("\"", "\\\"")).append("\\n");
+            for (int line = graph.lineStart[node]; line < graph.lineStart[node + 1]; line++) {
+                sb.append(graph.lines[line].replace("\"", "\\\"")).append("\\n");
             }
             sb.append("\" {\n}\n");
         }
 
-        for (DiagramEdge edge : containments) {
-            sb.append(ids.get(edge.source())).append(" --> ").append(ids.get(edge.target()));
-            if (!edge.label().isEmpty()) {
-                sb.append(" : ").append(edge.label());
+        for (int child = 0; child < graph.size; child++) {
+            if (graph.parents[child] < 0) {
+                continue;
+            }
+            sb.append('C').append(ids[graph.parents[child]]).append(" --> C").append(ids[child]);
+            if (!graph.containmentNames[child].isEmpty()) {
+                sb.append(" : ").append(graph.containmentNames[child]);
             }
             sb.append("\n");
         }
 
-        for (DiagramEdge edge : references) {
-            sb.append(ids.get(edge.source())).append(edge.dashed() ? " ..> " : " --> ")
-                    .append(ids.get(edge.target()));
-            if (!edge.label().isEmpty()) {
-                sb.append(" : ").append(edge.label());
+        EdgeTable references = graph.references;
+        for (int source = 0; source < graph.size; source++) {
+            for (int e = references.start[source]; e < references.start[source + 1]; e++) {
+                sb.append('C').append(ids[source]).append(" ..> C").append(ids[references.targets[e]]);
+                if (!references.labels[e].isEmpty()) {
+                    sb.append(" : ").append(references.labels[e]);
+                }
+                sb.append("\n");
             }
-            sb.append("\n");
         }
 
         sb.append("@enduml\n");
@@ -532,53 +1291,2122 @@ public final class XmiVisualizer {
     private static final Color[] PALETTE = new Color[] { new Color(157, 212, 218), new Color(253, 243, 196),
             new Color(209, 224, 180), new Color(215, 205, 233), new Color(252, 219, 203), new Color(201, 229, 242) };
 
-    private static final class DiagramNode {
-        EObject eObject;
-        final List<String> lines = new ArrayList<>();
-        final List<DiagramNode> children = new ArrayList<>();
-        String title;
-        String containmentName = "";
-        DiagramNode parent;
-        Color fillColor;
-        int width;
-        int height;
-        int subtreeWidth;
-        int subtreeHeight;
-        int x;
-        int y;
+    /**
+     * The nodes and edges of a diagram in parallel arrays, indexed by node number. Nodes are
+     * numbered in pre-order, tree after tree, so the containment tree of root {@code r} is the range
+     * from {@code r} to {@code r + subtreeSizes[r]}. Body lines and children are kept in compressed
+     * rows: the lines of node {@code v} are {@code lines[lineStart[v]]} up to
+     * {@code lines[lineStart[v + 1]]}, and likewise for its children. Measuring and layout write
+     * the geometry arrays in place; nothing here refers back to the model.
+     */
+    private static final class DiagramGraph {
+        final int size;
+        final String[] titles;
+        final NodeStyle[] styles;
+        final int[] lineStart;
+        final String[] lines;
+        // -1 for the roots
+        final int[] parents;
+        // The name of the containment every node is in, the label of the edge from its parent
+        final String[] containmentNames;
+        final int[] childStart;
+        final int[] children;
+        final int[] subtreeSizes;
+        final int[] roots;
+        // The number of model elements that have a node
+        final int elementCount;
+        final EdgeTable references;
+        final int[] width;
+        final int[] height;
+        final int[] x;
+        final int[] y;
+
+        DiagramGraph(int size, String[] titles, NodeStyle[] styles, int[] lineStart, String[] lines, int[] parents,
+                String[] containmentNames, int elementCount, EdgeTable references) {
+            this.size = size;
+            this.titles = titles;
+            this.styles = styles;
+            this.lineStart = lineStart;
+            this.lines = lines;
+            this.parents = parents;
+            this.containmentNames = containmentNames;
+            this.elementCount = elementCount;
+            this.references = references;
+            this.width = new int[size];
+            this.height = new int[size];
+            this.x = new int[size];
+            this.y = new int[size];
+
+            // Backwards through the pre-order numbering every child is counted before its parent
+            this.subtreeSizes = new int[size];
+            int rootCount = 0;
+            for (int v = size - 1; v >= 0; v--) {
+                subtreeSizes[v]++;
+                if (parents[v] >= 0) {
+                    subtreeSizes[parents[v]] += subtreeSizes[v];
+                } else {
+                    rootCount++;
+                }
+            }
+            this.roots = new int[rootCount];
+            this.childStart = new int[size + 1];
+            for (int v = 0, r = 0; v < size; v++) {
+                if (parents[v] >= 0) {
+                    childStart[parents[v] + 1]++;
+                } else {
+                    roots[r++] = v;
+                }
+            }
+            for (int v = 0; v < size; v++) {
+                childStart[v + 1] += childStart[v];
+            }
+            this.children = new int[size - rootCount];
+            int[] cursor = Arrays.copyOf(childStart, size);
+            for (int v = 0; v < size; v++) {
+                if (parents[v] >= 0) {
+                    children[cursor[parents[v]]++] = v;
+                }
+            }
+        }
+
+        int lineCount(int v) {
+            return lineStart[v + 1] - lineStart[v];
+        }
+
+        int childCount(int v) {
+            return childStart[v + 1] - childStart[v];
+        }
+
+        int right(int v) {
+            return x[v] + width[v];
+        }
+
+        int bottom(int v) {
+            return y[v] + height[v];
+        }
+
+        int centerX(int v) {
+            return x[v] + width[v] / 2;
+        }
+
+        int centerY(int v) {
+            return y[v] + height[v] / 2;
+        }
+
+        /** Whether node {@code upper} lies entirely above node {@code lower}. */
+        boolean isAbove(int upper, int lower) {
+            return bottom(upper) <= y[lower];
+        }
+    }
+
+    /**
+     * References grouped by their source node in compressed rows: the references leaving node
+     * {@code v} are numbered from {@code start[v]} up to {@code start[v + 1]}, in the order they
+     * were found, and reference {@code e} ends at node {@code targets[e]}.
+     */
+    private static final class EdgeTable {
+        final int[] start;
+        final int[] targets;
+        final String[] labels;
+
+        private EdgeTable(int[] start, int[] targets, String[] labels) {
+            this.start = start;
+            this.targets = targets;
+            this.labels = labels;
+        }
+
+        int size() {
+            return targets.length;
+        }
+
+        /** The node reference {@code e} leaves, found by a binary search of {@link #start}. */
+        int source(int e) {
+            int low = 0;
+            int high = start.length - 2;
+            while (low < high) {
+                int middle = (low + high + 1) >>> 1;
+                if (start[middle] <= e) {
+                    low = middle;
+                } else {
+                    high = middle - 1;
+                }
+            }
+            return low;
+        }
+
+        /** References as they are found, in growable parallel arrays, to be grouped by source once all are known. */
+        static final class Builder {
+            private int[] sources = new int[1 << 10];
+            private int[] targets = new int[1 << 10];
+            private String[] labels = new String[1 << 10];
+            private int size;
+
+            void add(int source, int target, String label) {
+                if (size == sources.length) {
+                    sources = Arrays.copyOf(sources, 2 * size);
+                    targets = Arrays.copyOf(targets, 2 * size);
+                    labels = Arrays.copyOf(labels, 2 * size);
+                }
+                sources[size] = source;
+                targets[size] = target;
+                labels[size] = label == null ? "" : label;
+                size++;
+            }
+
+            void addAll(Builder edges) {
+                for (int e = 0; e < edges.size; e++) {
+                    add(edges.sources[e], edges.targets[e], edges.labels[e]);
+                }
+            }
+
+            /** Groups the references by source, keeping the order in which those of one source were added. */
+            EdgeTable build(int nodeCount) {
+                int[] start = new int[nodeCount + 1];
+                for (int e = 0; e < size; e++) {
+                    start[sources[e] + 1]++;
+                }
+                for (int v = 0; v < nodeCount; v++) {
+                    start[v + 1] += start[v];
+                }
+                int[] cursor = Arrays.copyOf(start, nodeCount);
+                int[] sortedTargets = new int[size];
+                String[] sortedLabels = new String[size];
+                for (int e = 0; e < size; e++) {
+                    int slot = cursor[sources[e]]++;
+                    sortedTargets[slot] = targets[e];
+                    sortedLabels[slot] = labels[e];
+                }
+                return new EdgeTable(start, sortedTargets, sortedLabels);
+            }
+        }
+    }
 
-        int getBottomCenterX() {
-            return x + width / 2;
+    /**
+     * Collects the nodes of a diagram while the model is walked, numbered in the order they are
+     * added, which has to be pre-order. Besides what goes into the {@link DiagramGraph} it keeps
+     * what only building needs: the model element and class plan of every node, and the numbers of
+     * the elements by identity, so that cross references can be turned into edges. It is dropped
+     * with all of that once the edges are collected.
+     */
+    private static final class GraphBuilder {
+        private String[] titles = new String[1 << 10];
+        private NodeStyle[] styles = new NodeStyle[1 << 10];
+        private int[] parents = new int[1 << 10];
+        private String[] containmentNames = new String[1 << 10];
+        private EObject[] eObjects = new EObject[1 << 10];
+        // null for summaries and proxy stubs
+        private ClassPlan[] plans = new ClassPlan[1 << 10];
+        private int size;
+        // Lines are added node after node, so every node's lines follow those of the nodes before it
+        private int[] lineStart = new int[(1 << 10) + 1];
+        private String[] lines = new String[1 << 10];
+        private int lineCount;
+        private int linesDone;
+        private final ObjectIds ids = new ObjectIds();
+
+        /**
+         * Adds a node and returns its number. {@code eObject} is found by {@link #id} from then on
+         * unless it is {@code null}, as for summaries and proxy stubs.
+         */
+        int add(EObject eObject, ClassPlan plan, String title, NodeStyle style, int parent, String containmentName) {
+            if (size == titles.length) {
+                titles = Arrays.copyOf(titles, 2 * size);
+                styles = Arrays.copyOf(styles, 2 * size);
+                parents = Arrays.copyOf(parents, 2 * size);
+                containmentNames = Arrays.copyOf(containmentNames, 2 * size);
+                eObjects = Arrays.copyOf(eObjects, 2 * size);
+                plans = Arrays.copyOf(plans, 2 * size);
+            }
+            titles[size] = title;
+            styles[size] = style;
+            parents[size] = parent;
+            containmentNames[size] = containmentName == null ? "" : containmentName;
+            eObjects[size] = eObject;
+            plans[size] = plan;
+            if (eObject != null) {
+                ids.put(eObject, size);
+            }
+            return size++;
         }
 
-        int getBottomCenterY() {
-            return y + height;
+        /** Gives node {@code v} its lines; nodes have to be given theirs in ascending order. */
+        void addLines(int v, List<String> nodeLines) {
+            if (lineStart.length < v + 2) {
+                lineStart = Arrays.copyOf(lineStart, Math.max(2 * lineStart.length, v + 2));
+            }
+            while (linesDone < v) {
+                lineStart[++linesDone] = lineCount;
+            }
+            if (lineCount + nodeLines.size() > lines.length) {
+                lines = Arrays.copyOf(lines, Math.max(2 * lines.length, lineCount + nodeLines.size()));
+            }
+            for (String line : nodeLines) {
+                lines[lineCount++] = line;
+            }
+            lineStart[++linesDone] = lineCount;
         }
 
-        int getTopCenterX() {
-            return x + width / 2;
+        int size() {
+            return size;
         }
 
-        int getLeftCenterX() {
-            return x;
+        /** The number of the node of {@code eObject}, or -1 if it has none. */
+        int id(EObject eObject) {
+            return ids.get(eObject);
         }
 
-        int getLeftCenterY() {
-            return y + height / 2;
+        EObject eObject(int v) {
+            return eObjects[v];
         }
 
-        int getRightCenterX() {
-            return x + width;
+        ClassPlan plan(int v) {
+            return plans[v];
         }
 
-        int getRightCenterY() {
-            return y + height / 2;
+        DiagramGraph build(EdgeTable.Builder references) {
+            int[] nodeLineStart = Arrays.copyOf(lineStart, size + 1);
+            for (int v = linesDone; v < size; v++) {
+                nodeLineStart[v + 1] = lineCount;
+            }
+            return new DiagramGraph(size, Arrays.copyOf(titles, size), Arrays.copyOf(styles, size), nodeLineStart,
+                    Arrays.copyOf(lines, lineCount), Arrays.copyOf(parents, size),
+                    Arrays.copyOf(containmentNames, size), ids.size(), references.build(size));
         }
     }
 
-    private record DiagramEdge(DiagramNode source, DiagramNode target, String label, boolean dashed) {
-        static DiagramEdge of(DiagramNode source, DiagramNode target, String label, boolean dashed) {
-            return new DiagramEdge(source, target, label == null ? "" : label, dashed);
+    /**
+     * The numbers of model elements by identity, in an open-addressing table with linear probing,
+     * which takes a fraction of the memory of an {@link IdentityHashMap} of boxed numbers. Safe for
+     * concurrent reads once nothing is added anymore.
+     */
+    private static final class ObjectIds {
+        private EObject[] keys = new EObject[1 << 10];
+        private int[] values = new int[1 << 10];
+        private int size;
+
+        int get(EObject key) {
+            int mask = keys.length - 1;
+            for (int slot = slot(key, mask); keys[slot] != null; slot = (slot + 1) & mask) {
+                if (keys[slot] == key) {
+                    return values[slot];
+                }
+            }
+            return -1;
+        }
+
+        void put(EObject key, int value) {
+            if (2 * (size + 1) > keys.length) {
+                grow();
+            }
+            int mask = keys.length - 1;
+            int slot = slot(key, mask);
+            while (keys[slot] != null && keys[slot] != key) {
+                slot = (slot + 1) & mask;
+            }
+            if (keys[slot] == null) {
+                size++;
+            }
+            keys[slot] = key;
+            values[slot] = value;
+        }
+
+        int size() {
+            return size;
+        }
+
+        private void grow() {
+            EObject[] oldKeys = keys;
+            int[] oldValues = values;
+            keys = new EObject[2 * oldKeys.length];
+            values = new int[2 * oldValues.length];
+            int mask = keys.length - 1;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != null) {
+                    int slot = slot(oldKeys[i], mask);
+                    while (keys[slot] != null) {
+                        slot = (slot + 1) & mask;
+                    }
+                    keys[slot] = oldKeys[i];
+                    values[slot] = oldValues[i];
+                }
+            }
+        }
+
+        private static int slot(EObject key, int mask) {
+            return (int) ((System.identityHashCode(key) * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+        }
+    }
+
+    /** How the nodes of one classifier are painted; computed once per classifier and render. */
+    private record NodeStyle(Color header, Color body, Color border, Color headerText, Color bodyText) {
+        static NodeStyle of(Color base) {
+            Color header = darken(base, 0.15);
+            Color body = lighten(base, 0.25);
+            return new NodeStyle(header, body, darken(base, 0.35), readableTextColor(header), readableTextColor(body));
+        }
+    }
+
+    /**
+     * What is shown of the instances of one EClass, worked out from its features once per class
+     * and render: the node title and style, the attributes with the {@code "name = "} their lines
+     * start with, the references that are not containments, and the containments with the number
+     * of children shown of each ({@code null} when none of them is limited).
+     */
+    private record ClassPlan(String title, NodeStyle style, EAttribute[] attributes, String[] linePrefixes,
+            EReference[] references, EReference[] containments, int[] childLimits) {
+        static ClassPlan of(EClass eClass, NodeStyle style, RenderOptions options) {
+            EAttribute[] attributes = eClass.getEAllAttributes().toArray(new EAttribute[0]);
+            String[] linePrefixes = new String[attributes.length];
+            for (int i = 0; i < attributes.length; i++) {
+                linePrefixes[i] = attributes[i].getName() + " = ";
+            }
+            List<EReference> references = new ArrayList<>();
+            List<EReference> containments = new ArrayList<>();
+            for (EReference reference : eClass.getEAllReferences()) {
+                if (!reference.isContainment()) {
+                    references.add(reference);
+                } else {
+                    containments.add(reference);
+                }
+            }
+            int[] childLimits = new int[containments.size()];
+            boolean limited = false;
+            for (int i = 0; i < childLimits.length; i++) {
+                EReference containment = containments.get(i);
+                childLimits[i] = containment.isMany() ? options.maxChildren(eClass, containment) : Integer.MAX_VALUE;
+                limited |= childLimits[i] != Integer.MAX_VALUE;
+            }
+            return new ClassPlan(":" + eClass.getName(), style, attributes, linePrefixes,
+                    references.toArray(new EReference[0]), containments.toArray(new EReference[0]),
+                    limited ? childLimits : null);
+        }
+    }
+
+    /**
+     * Layouts of containment trees from the previous render of a diagram, kept in a small deflated
+     * binary file. Every tree is found by two hashes over its pre-order list, which together with
+     * the subtree sizes determines the tree's shape: one over the text of its nodes, whose entry
+     * supplies sizes and positions without measuring anything, and one over the measured sizes,
+     * whose entry supplies the positions. Either way the tree is not laid out again.
+     *
+     * <p>The file is only used with the same level of detail and font measurements it was written
+     * with, and is rewritten after every render with the trees of that render.
+     */
+    private static final class LayoutCache {
+        private static final int MAGIC = 0x58564C43;
+        private static final int VERSION = 2;
+        // Ints per node: width, height, x and y relative to the tree
+        private static final int NODE_VALUES = 4;
+        private static final String FONT_PROBE = "Xmi Visualizer 0123456789";
+
+        private final File file;
+        private final String key;
+        private final Detail detail;
+        private final Map<Long, CachedTree> byContent = new HashMap<>();
+        private final Map<Long, CachedTree> byStructure = new HashMap<>();
+        private final List<CachedTree> trees = new ArrayList<>();
+
+        private LayoutCache(File file, String key, Detail detail) {
+            this.file = file;
+            this.key = key;
+            this.detail = detail;
+        }
+
+        /** Reads the cache, which is empty if the file is missing, unreadable or was written differently. */
+        static LayoutCache load(File file, Detail detail, FontMetrics titleMetrics, FontMetrics bodyMetrics) {
+            String key = detail + "/" + titleMetrics.getHeight() + "/" + bodyMetrics.getHeight() + "/"
+                    + titleMetrics.stringWidth(FONT_PROBE) + "/" + bodyMetrics.stringWidth(FONT_PROBE);
+            LayoutCache cache = new LayoutCache(file, key, detail);
+            if (!file.isFile()) {
+                return cache;
+            }
+            try (DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new InflaterInputStream(new FileInputStream(file))))) {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION || !in.readUTF().equals(key)) {
+                    return cache;
+                }
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    long contentHash = in.readLong();
+                    long structureHash = in.readLong();
+                    byte[] bytes = new byte[in.readInt() * NODE_VALUES * Integer.BYTES];
+                    in.readFully(bytes);
+                    int[] values = new int[bytes.length / Integer.BYTES];
+                    ByteBuffer.wrap(bytes).asIntBuffer().get(values);
+                    CachedTree tree = new CachedTree(contentHash, structureHash, values);
+                    cache.byContent.putIfAbsent(contentHash, tree);
+                    cache.byStructure.putIfAbsent(structureHash, tree);
+                }
+            } catch (IOException | RuntimeException e) {
+                cache.byContent.clear();
+                cache.byStructure.clear();
+            }
+            return cache;
+        }
+
+        /** Gives the unmeasured tree of {@code root} the sizes and positions of a cached tree with the same text. */
+        boolean restore(DiagramGraph graph, int root, long contentHash) {
+            CachedTree cached = byContent.get(contentHash);
+            int size = graph.subtreeSizes[root];
+            if (cached == null || cached.values().length != size * NODE_VALUES) {
+                return false;
+            }
+            int[] values = cached.values();
+            for (int node = root, v = 0; node < root + size; node++, v += NODE_VALUES) {
+                graph.width[node] = values[v];
+                graph.height[node] = values[v + 1];
+                graph.x[node] = values[v + 2];
+                graph.y[node] = values[v + 3];
+            }
+            return true;
+        }
+
+        /** Gives the measured tree of {@code root} the positions of a cached tree whose nodes have the same sizes. */
+        boolean restoreLayout(DiagramGraph graph, int root) {
+            CachedTree cached = byStructure.get(structureHash(graph, root));
+            int size = graph.subtreeSizes[root];
+            if (cached == null || cached.values().length != size * NODE_VALUES) {
+                return false;
+            }
+            int[] values = cached.values();
+            for (int node = root, v = 0; node < root + size; node++, v += NODE_VALUES) {
+                graph.x[node] = values[v + 2];
+                graph.y[node] = values[v + 3];
+            }
+            return true;
+        }
+
+        /** Records the measured tree of {@code root}, laid out at the origin, for the next render. */
+        void add(DiagramGraph graph, int root, long contentHash) {
+            int size = graph.subtreeSizes[root];
+            int[] values = new int[size * NODE_VALUES];
+            for (int node = root, v = 0; node < root + size; node++, v += NODE_VALUES) {
+                values[v] = graph.width[node];
+                values[v + 1] = graph.height[node];
+                values[v + 2] = graph.x[node];
+                values[v + 3] = graph.y[node];
+            }
+            trees.add(new CachedTree(contentHash, structureHash(graph, root), values));
+        }
+
+        void save() throws IOException {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new DeflaterOutputStream(new FileOutputStream(file), new Deflater(Deflater.BEST_SPEED))))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeUTF(key);
+                out.writeInt(trees.size());
+                for (CachedTree tree : trees) {
+                    out.writeLong(tree.contentHash());
+                    out.writeLong(tree.structureHash());
+                    out.writeInt(tree.values().length / NODE_VALUES);
+                    ByteBuffer bytes = ByteBuffer.allocate(tree.values().length * Integer.BYTES);
+                    bytes.asIntBuffer().put(tree.values());
+                    out.write(bytes.array());
+                }
+            }
+        }
+
+        /** Hash of the shape of the tree of {@code root} and the text its nodes are measured by. */
+        long contentHash(DiagramGraph graph, int root) {
+            long hash = 0;
+            for (int node = root; node < root + graph.subtreeSizes[root]; node++) {
+                hash = mix(hash, graph.subtreeSizes[node]);
+                hash = mix(hash, graph.titles[node]);
+                if (detail == Detail.FULL) {
+                    hash = mix(hash, graph.lineCount(node));
+                    for (int line = graph.lineStart[node]; line < graph.lineStart[node + 1]; line++) {
+                        hash = mix(hash, graph.lines[line]);
+                    }
+                }
+            }
+            return hash;
+        }
+
+        /** Hash of the shape of the tree of {@code root} and the sizes of its nodes, all that the layout depends on. */
+        private static long structureHash(DiagramGraph graph, int root) {
+            long hash = 0;
+            for (int node = root; node < root + graph.subtreeSizes[root]; node++) {
+                hash = mix(hash, graph.subtreeSizes[node]);
+                hash = mix(hash, graph.width[node]);
+                hash = mix(hash, graph.height[node]);
+            }
+            return hash;
+        }
+
+        /**
+         * Mixes in the characters of {@code text}, four at a time, after its length. The 32-bit
+         * {@link String#hashCode()} would not do: strings with equal hash codes are easy to come
+         * by, and a tree whose text changed to one of them would get the old sizes.
+         */
+        private static long mix(long hash, String text) {
+            int length = text.length();
+            hash = mix(hash, length);
+            int i = 0;
+            for (; i + 4 <= length; i += 4) {
+                hash = mix(hash, text.charAt(i) | (long) text.charAt(i + 1) << 16
+                        | (long) text.charAt(i + 2) << 32 | (long) text.charAt(i + 3) << 48);
+            }
+            long rest = 0;
+            for (; i < length; i++) {
+                rest = rest << 16 | text.charAt(i);
+            }
+            return mix(hash, rest);
+        }
+
+        private static long mix(long hash, long value) {
+            long h = (hash ^ value) * 0x9E3779B97F4A7C15L;
+            return h ^ (h >>> 31);
+        }
+
+        private record CachedTree(long contentHash, long structureHash, int[] values) {
+        }
+    }
+
+    /**
+     * A node whose contents are being built and the contents still to visit: elements, or
+     * {@link OmittedChildren}.
+     */
+    private record ContainmentFrame(int node, Iterator<?> children) {
+    }
+
+    private record DiagramScene(DiagramGraph graph, int[][] routes, EdgeLabels labels, int width, int height,
+            Font titleFont, Font bodyFont, FontMetrics titleMetrics, FontMetrics bodyMetrics, SpatialIndex index,
+            Detail detail) {
+
+        // Items of the spatial index are numbered in paint order: containments first, by the number
+        // of the contained node, then references and finally nodes.
+
+        int firstReference() {
+            return graph.size;
+        }
+
+        int firstNode() {
+            return firstReference() + graph.references.size();
+        }
+
+        /** The route of a reference, given by its item number. */
+        int[] route(int item) {
+            return routes[item - firstReference()];
+        }
+
+        /**
+         * The level of detail to paint at when the diagram is magnified by {@code scale}: never more
+         * than the layout was measured for, and no text that would be too small to read.
+         */
+        Detail detailAt(double scale) {
+            Detail legible = bodyMetrics.getHeight() * scale >= MIN_TEXT_HEIGHT ? Detail.FULL
+                    : titleMetrics.getHeight() * scale >= MIN_TEXT_HEIGHT ? Detail.TITLE
+                    : Detail.BOX;
+            return legible.compareTo(detail) > 0 ? legible : detail;
+        }
+    }
+
+    /**
+     * The labels of the references, in their order: the text drawn, which may be abbreviated, and
+     * its box as left, top, right and bottom. {@code null} text stands for a reference without a
+     * label or whose label was dropped.
+     */
+    private record EdgeLabels(String[] texts, int[] boxes, int ascent) {
+
+        static EdgeLabels none(int edges) {
+            return new EdgeLabels(new String[edges], new int[4 * edges], 0);
+        }
+
+        String text(int edge) {
+            return texts[edge];
+        }
+
+        int x(int edge) {
+            return boxes[4 * edge];
+        }
+
+        int baseline(int edge) {
+            return boxes[4 * edge + 1] + ascent;
+        }
+    }
+
+    /**
+     * Places reference labels where they overlap neither nodes nor each other. Every label tries a
+     * fixed number of slots along its route, starting at the middle segment and moving outwards:
+     * at the middle and the quarters of each segment, above and below horizontal segments and
+     * beside vertical ones. Nodes and placed labels are kept in a spatial hash of square buckets,
+     * and a slot is taken if no rectangle in the buckets it touches overlaps it. A label without a
+     * free slot is tried again with just the name of its feature, and dropped if that does not fit
+     * either. So every label costs a bounded number of lookups, and placement is linear in the
+     * number of labels.
+     */
+    private static final class LabelPlacer {
+        private static final int BUCKET_SIZE = 128;
+        private static final int GAP = 3;
+        private static final int MAX_SEGMENTS = 4;
+        // Positions along a segment in quarters of its length, the middle first
+        private static final int[] QUARTERS = { 2, 1, 3 };
+        // A slot that would have to be compared with more rectangles than this counts as taken
+        private static final int MAX_COMPARISONS = 256;
+
+        private final int height;
+
+        // Buckets in an open-addressing table from bucket coordinates to the first of their
+        // entries, which are linked lists of rectangle numbers; entry 0 marks the end of a list
+        private long[] bucketKeys = new long[1 << 12];
+        private int[] bucketHeads = new int[1 << 12];
+        private int bucketCount;
+        private int[] entryRects = new int[1 << 12];
+        private int[] entryNext = new int[1 << 12];
+        private int entryCount = 1;
+        private int[] rects = new int[1 << 12];
+        private int rectCount;
+
+        private LabelPlacer(FontMetrics metrics) {
+            this.height = metrics.getAscent() + metrics.getDescent();
+        }
+
+        /** Places the labels of the references of {@code graph} along their {@code routes}. */
+        static EdgeLabels place(DiagramGraph graph, int[][] routes, FontMetrics metrics) {
+            LabelPlacer placer = new LabelPlacer(metrics);
+            for (int node = 0; node < graph.size; node++) {
+                placer.add(graph.x[node], graph.y[node], graph.right(node), graph.bottom(node));
+            }
+            String[] texts = new String[routes.length];
+            int[] boxes = new int[4 * routes.length];
+            for (int reference = 0; reference < routes.length; reference++) {
+                String label = graph.references.labels[reference];
+                if (label.isEmpty()) {
+                    continue;
+                }
+                if (placer.place(routes[reference], TEXT_WIDTHS.width(metrics, label), boxes, 4 * reference)) {
+                    texts[reference] = label;
+                    continue;
+                }
+                // "name: Type[1]" without the type and multiplicity
+                int colon = label.indexOf(':');
+                if (colon > 0) {
+                    String name = label.substring(0, colon);
+                    if (placer.place(routes[reference], TEXT_WIDTHS.width(metrics, name), boxes, 4 * reference)) {
+                        texts[reference] = name;
+                    }
+                }
+            }
+            return new EdgeLabels(texts, boxes, metrics.getAscent());
+        }
+
+        /** Takes the first free slot for a label {@code width} wide along {@code route}, if any. */
+        private boolean place(int[] route, int width, int[] boxes, int b) {
+            int segments = route.length / 2 - 1;
+            int middle = (segments - 1) / 2;
+            for (int k = 0; k < 2 * MAX_SEGMENTS; k++) {
+                // The middle segment, then alternately the ones after and before it
+                int segment = middle + ((k & 1) == 1 ? (k + 1) / 2 : -(k / 2));
+                if (segment < 0 || segment >= segments) {
+                    continue;
+                }
+                int x1 = route[2 * segment];
+                int y1 = route[2 * segment + 1];
+                int x2 = route[2 * segment + 2];
+                int y2 = route[2 * segment + 3];
+                boolean horizontal = Math.abs(x2 - x1) >= Math.abs(y2 - y1);
+                for (int quarter : QUARTERS) {
+                    int x = x1 + (x2 - x1) * quarter / 4;
+                    int y = y1 + (y2 - y1) * quarter / 4;
+                    if (horizontal
+                            ? take(x - width / 2, y - GAP - height, width, boxes, b)
+                                    || take(x - width / 2, y + GAP, width, boxes, b)
+                            : take(x + GAP, y - height / 2, width, boxes, b)
+                                    || take(x - GAP - width, y - height / 2, width, boxes, b)) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        private boolean take(int left, int top, int width, int[] boxes, int b) {
+            if (!isFree(left, top, left + width, top + height)) {
+                return false;
+            }
+            add(left, top, left + width, top + height);
+            boxes[b] = left;
+            boxes[b + 1] = top;
+            boxes[b + 2] = left + width;
+            boxes[b + 3] = top + height;
+            return true;
+        }
+
+        private boolean isFree(int left, int top, int right, int bottom) {
+            int comparisons = 0;
+            for (int by = Math.floorDiv(top, BUCKET_SIZE); by <= Math.floorDiv(bottom - 1, BUCKET_SIZE); by++) {
+                for (int bx = Math.floorDiv(left, BUCKET_SIZE); bx <= Math.floorDiv(right - 1, BUCKET_SIZE); bx++) {
+                    int slot = bucket(bx, by, false);
+                    for (int entry = slot < 0 ? 0 : bucketHeads[slot]; entry != 0; entry = entryNext[entry]) {
+                        if (++comparisons > MAX_COMPARISONS) {
+                            return false;
+                        }
+                        int r = 4 * entryRects[entry];
+                        if (left < rects[r + 2] && rects[r] < right && top < rects[r + 3] && rects[r + 1] < bottom) {
+                            return false;
+                        }
+                    }
+                }
+            }
+            return true;
+        }
+
+        private void add(int left, int top, int right, int bottom) {
+            if (4 * rectCount + 4 > rects.length) {
+                rects = Arrays.copyOf(rects, 2 * rects.length);
+            }
+            int rect = rectCount++;
+            rects[4 * rect] = left;
+            rects[4 * rect + 1] = top;
+            rects[4 * rect + 2] = right;
+            rects[4 * rect + 3] = bottom;
+            for (int by = Math.floorDiv(top, BUCKET_SIZE); by <= Math.floorDiv(bottom - 1, BUCKET_SIZE); by++) {
+                for (int bx = Math.floorDiv(left, BUCKET_SIZE); bx <= Math.floorDiv(right - 1, BUCKET_SIZE); bx++) {
+                    int slot = bucket(bx, by, true);
+                    if (entryCount == entryRects.length) {
+                        entryRects = Arrays.copyOf(entryRects, 2 * entryRects.length);
+                        entryNext = Arrays.copyOf(entryNext, 2 * entryNext.length);
+                    }
+                    int entry = entryCount++;
+                    entryRects[entry] = rect;
+                    entryNext[entry] = bucketHeads[slot];
+                    bucketHeads[slot] = entry;
+                }
+            }
+        }
+
+        /** The table slot of a bucket; -1 if it is empty and not to be created. */
+        private int bucket(int bx, int by, boolean create) {
+            long key = (long) bx << 32 | (by & 0xFFFFFFFFL);
+            int mask = bucketKeys.length - 1;
+            int slot = (int) ((key * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+            while (bucketHeads[slot] != 0) {
+                if (bucketKeys[slot] == key) {
+                    return slot;
+                }
+                slot = (slot + 1) & mask;
+            }
+            if (!create) {
+                return -1;
+            }
+            if (2 * (bucketCount + 1) > bucketKeys.length) {
+                grow();
+                return bucket(bx, by, true);
+            }
+            // Occupied from now on, as the caller links an entry in right away
+            bucketCount++;
+            bucketKeys[slot] = key;
+            return slot;
+        }
+
+        private void grow() {
+            long[] keys = bucketKeys;
+            int[] heads = bucketHeads;
+            bucketKeys = new long[2 * keys.length];
+            bucketHeads = new int[2 * heads.length];
+            int mask = bucketKeys.length - 1;
+            for (int i = 0; i < keys.length; i++) {
+                if (heads[i] != 0) {
+                    int slot = (int) ((keys[i] * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+                    while (bucketHeads[slot] != 0) {
+                        slot = (slot + 1) & mask;
+                    }
+                    bucketKeys[slot] = keys[i];
+                    bucketHeads[slot] = heads[i];
+                }
+            }
+        }
+    }
+
+    /**
+     * Uniform grid over the bounding boxes of everything that gets drawn. Items are numbered in
+     * paint order, so the sorted result of a query can be painted as is. Items that would cover
+     * too many cells, typically long edges, are kept in a separate list that every query scans.
+     */
+    private static final class SpatialIndex {
+        private static final int MAX_CELLS_PER_ITEM = 64;
+
+        private final int[] bounds;
+        private final int cellSize;
+        private final int columns;
+        private final int rows;
+        private final int[] cellStart;
+        private final int[] cellItems;
+        private final int[] largeItems;
+
+        /**
+         * @param bounds minX, minY, maxX (exclusive) and maxY (exclusive) of every item; items with
+         *            empty bounds, such as the containments of roots, are never found
+         */
+        private SpatialIndex(int[] bounds, int width, int height) {
+            int count = bounds.length / 4;
+            this.bounds = bounds;
+            this.cellSize = Math.max(MIN_CELL_SIZE, (int) Math.ceil(Math.sqrt((double) width * height / Math.max(1, count))));
+            this.columns = Math.max(1, (width + cellSize - 1) / cellSize);
+            this.rows = Math.max(1, (height + cellSize - 1) / cellSize);
+
+            int[] counts = new int[columns * rows];
+            int large = 0;
+            for (int item = 0; item < count; item++) {
+                if (bounds[4 * item] >= bounds[4 * item + 2]) {
+                    continue;
+                }
+                int c0 = column(bounds[4 * item]);
+                int r0 = row(bounds[4 * item + 1]);
+                int c1 = column(bounds[4 * item + 2]);
+                int r1 = row(bounds[4 * item + 3]);
+                if ((c1 - c0 + 1) * (r1 - r0 + 1) > MAX_CELLS_PER_ITEM) {
+                    large++;
+                    continue;
+                }
+                for (int r = r0; r <= r1; r++) {
+                    for (int c = c0; c <= c1; c++) {
+                        counts[r * columns + c]++;
+                    }
+                }
+            }
+
+            this.cellStart = new int[counts.length + 1];
+            for (int cell = 0; cell < counts.length; cell++) {
+                cellStart[cell + 1] = cellStart[cell] + counts[cell];
+            }
+            this.cellItems = new int[cellStart[counts.length]];
+            this.largeItems = new int[large];
+            int[] cursor = Arrays.copyOf(cellStart, counts.length);
+            large = 0;
+            for (int item = 0; item < count; item++) {
+                if (bounds[4 * item] >= bounds[4 * item + 2]) {
+                    continue;
+                }
+                int c0 = column(bounds[4 * item]);
+                int r0 = row(bounds[4 * item + 1]);
+                int c1 = column(bounds[4 * item + 2]);
+                int r1 = row(bounds[4 * item + 3]);
+                if ((c1 - c0 + 1) * (r1 - r0 + 1) > MAX_CELLS_PER_ITEM) {
+                    largeItems[large++] = item;
+                    continue;
+                }
+                for (int r = r0; r <= r1; r++) {
+                    for (int c = c0; c <= c1; c++) {
+                        cellItems[cursor[r * columns + c]++] = item;
+                    }
+                }
+            }
+        }
+
+        /** @param routes the routes of the references, and {@code labels} their labels */
+        static SpatialIndex build(DiagramGraph graph, int[][] routes, EdgeLabels labels, int width, int height) {
+            int[] bounds = new int[4 * (graph.size + routes.length + graph.size)];
+            int item = 0;
+            for (int child = 0; child < graph.size; child++) {
+                if (graph.parents[child] >= 0) {
+                    containmentBounds(graph, graph.parents[child], child, bounds, 4 * item);
+                }
+                item++;
+            }
+            for (int reference = 0; reference < routes.length; reference++) {
+                routeBounds(routes[reference], labels, reference, bounds, 4 * item++);
+            }
+            for (int node = 0; node < graph.size; node++) {
+                int b = 4 * item++;
+                bounds[b] = graph.x[node] - NODE_SLACK;
+                bounds[b + 1] = graph.y[node] - NODE_SLACK;
+                bounds[b + 2] = graph.right(node) + NODE_SLACK;
+                bounds[b + 3] = graph.bottom(node) + NODE_SLACK;
+            }
+            return new SpatialIndex(bounds, width, height);
+        }
+
+        /**
+         * Conservative bounds of the line and arrowhead drawn for the containment of {@code child}
+         * in {@code parent}: the end points lie on the two node boxes.
+         */
+        private static void containmentBounds(DiagramGraph graph, int parent, int child, int[] bounds, int b) {
+            bounds[b] = Math.min(graph.x[parent], graph.x[child]) - EDGE_SLACK;
+            bounds[b + 1] = Math.min(graph.y[parent], graph.y[child]) - EDGE_SLACK;
+            bounds[b + 2] = Math.max(graph.right(parent), graph.right(child)) + EDGE_SLACK;
+            bounds[b + 3] = Math.max(graph.bottom(parent), graph.bottom(child)) + EDGE_SLACK;
+        }
+
+        /** Bounds of a routed edge: its points, and the box of its label if it has one. */
+        private static void routeBounds(int[] route, EdgeLabels labels, int edge, int[] bounds, int b) {
+            int minX = route[0];
+            int minY = route[1];
+            int maxX = minX;
+            int maxY = minY;
+            for (int i = 2; i < route.length; i += 2) {
+                minX = Math.min(minX, route[i]);
+                minY = Math.min(minY, route[i + 1]);
+                maxX = Math.max(maxX, route[i]);
+                maxY = Math.max(maxY, route[i + 1]);
+            }
+            bounds[b] = minX - EDGE_SLACK;
+            bounds[b + 1] = minY - EDGE_SLACK;
+            bounds[b + 2] = maxX + EDGE_SLACK;
+            bounds[b + 3] = maxY + EDGE_SLACK;
+            if (labels.text(edge) != null) {
+                int[] boxes = labels.boxes();
+                bounds[b] = Math.min(bounds[b], boxes[4 * edge]);
+                bounds[b + 1] = Math.min(bounds[b + 1], boxes[4 * edge + 1]);
+                bounds[b + 2] = Math.max(bounds[b + 2], boxes[4 * edge + 2]);
+                bounds[b + 3] = Math.max(bounds[b + 3], boxes[4 * edge + 3]);
+            }
+        }
+
+        /** Returns the items whose bounds intersect {@code area}, in ascending (paint) order. */
+        int[] query(Rectangle area) {
+            int[] result = new int[64];
+            int size = 0;
+            int c0 = column(area.x);
+            int r0 = row(area.y);
+            int c1 = column(area.x + area.width - 1);
+            int r1 = row(area.y + area.height - 1);
+            for (int r = r0; r <= r1; r++) {
+                for (int c = c0; c <= c1; c++) {
+                    int cell = r * columns + c;
+                    for (int k = cellStart[cell]; k < cellStart[cell + 1]; k++) {
+                        int item = cellItems[k];
+                        if (intersects(item, area)) {
+                            if (size == result.length) {
+                                result = Arrays.copyOf(result, size * 2);
+                            }
+                            result[size++] = item;
+                        }
+                    }
+                }
+            }
+            for (int item : largeItems) {
+                if (intersects(item, area)) {
+                    if (size == result.length) {
+                        result = Arrays.copyOf(result, size * 2);
+                    }
+                    result[size++] = item;
+                }
+            }
+
+            // Items spanning several cells were found once per cell
+            Arrays.sort(result, 0, size);
+            int unique = 0;
+            for (int k = 0; k < size; k++) {
+                if (unique == 0 || result[unique - 1] != result[k]) {
+                    result[unique++] = result[k];
+                }
+            }
+            return Arrays.copyOf(result, unique);
+        }
+
+        private boolean intersects(int item, Rectangle area) {
+            int b = 4 * item;
+            return bounds[b] < area.x + area.width && bounds[b + 2] > area.x
+                    && bounds[b + 1] < area.y + area.height && bounds[b + 3] > area.y;
+        }
+
+        private int column(int x) {
+            return Math.max(0, Math.min(columns - 1, Math.floorDiv(x, cellSize)));
+        }
+
+        private int row(int y) {
+            return Math.max(0, Math.min(rows - 1, Math.floorDiv(y, cellSize)));
+        }
+    }
+
+    /**
+     * Routes edges as horizontal and vertical segments around the nodes. The diagram is divided
+     * into square cells, and the cells overlapped by a node are marked in an occupancy bit set,
+     * kept both row by row and column by column. Every edge is an A* search from the cell just
+     * outside the side of its source it leaves by to the cell just outside the side of its target
+     * it enters by, in which a bend costs as much as several cells.
+     *
+     * <p>The search does not step from cell to cell: it jumps along a row or column until the next
+     * cell is occupied, a neighbouring row or column changes between free and occupied (a corner
+     * to turn around) or it reaches the row or column of the goal, reading the bit sets 64 cells at
+     * a time. So a route of k cells costs O(k / 64) for scanning and O(j log j) for the j points it
+     * stops at, which are few more than its bends. A search stays within a window around its two
+     * end cells and gives up after a fixed number of points; the edge then takes the nearest free
+     * channel with a single run between its two ends, as a long edge along a row of nodes does, or
+     * failing that a route with at most three bends that ignores the nodes.
+     */
+    private static final class OrthogonalRouter {
+        private static final int CELL_SIZE = 12;
+        // Diagrams with more cells than this are routed on coarser cells
+        private static final long MAX_CELLS = 1L << 27;
+        private static final int BEND_COST = 4;
+        private static final int WINDOW_MARGIN = 64;
+        private static final int MAX_EXPANSIONS = 1 << 8;
+        private static final int TABLE_BITS = 15;
+        private static final int RIGHT = 0;
+        private static final int DOWN = 1;
+        private static final int LEFT = 2;
+        private static final int UP = 3;
+
+        private final DiagramGraph graph;
+        private final int cellSize;
+        private final int columns;
+        private final int rows;
+        // Occupied cells, at bit row * columns + column, respectively column * rows + row
+        private final long[] byRow;
+        private final long[] byColumn;
+
+        // Search states, a cell and the direction it was entered in, in an open-addressing table
+        // that is emptied by starting a new generation; the open list is a binary heap of
+        // priorities packed together with the table slot
+        private final long[] stateKeys = new long[1 << TABLE_BITS];
+        private final int[] stateGeneration = new int[1 << TABLE_BITS];
+        private final int[] stateCost = new int[1 << TABLE_BITS];
+        private final int[] stateParent = new int[1 << TABLE_BITS];
+        private final boolean[] stateClosed = new boolean[1 << TABLE_BITS];
+        private int generation;
+        private int stateCount;
+        private long[] heap = new long[1 << 10];
+        private int heapSize;
+        private int[] points = new int[64];
+        private int pointCount;
+
+        // The window of the current search
+        private int minColumn;
+        private int maxColumn;
+        private int minRow;
+        private int maxRow;
+
+        private OrthogonalRouter(DiagramGraph graph, int width, int height) {
+            this.graph = graph;
+            this.cellSize = Math.max(CELL_SIZE, (int) Math.ceil(Math.sqrt((double) width * height / MAX_CELLS)));
+            this.columns = width / cellSize + 1;
+            this.rows = height / cellSize + 1;
+            this.byRow = new long[(int) (((long) columns * rows + 63) >>> 6)];
+            this.byColumn = new long[byRow.length];
+            for (int v = 0; v < graph.size; v++) {
+                int c1 = Math.min(columns - 1, (graph.right(v) - 1) / cellSize);
+                int r1 = Math.min(rows - 1, (graph.bottom(v) - 1) / cellSize);
+                for (int r = Math.max(0, graph.y[v] / cellSize); r <= r1; r++) {
+                    for (int c = Math.max(0, graph.x[v] / cellSize); c <= c1; c++) {
+                        long cell = (long) r * columns + c;
+                        byRow[(int) (cell >>> 6)] |= 1L << cell;
+                        cell = (long) c * rows + r;
+                        byColumn[(int) (cell >>> 6)] |= 1L << cell;
+                    }
+                }
+            }
+        }
+
+        /** Shares the occupancy of {@code grid}, with search state of its own. */
+        private OrthogonalRouter(OrthogonalRouter grid) {
+            this.graph = grid.graph;
+            this.cellSize = grid.cellSize;
+            this.columns = grid.columns;
+            this.rows = grid.rows;
+            this.byRow = grid.byRow;
+            this.byColumn = grid.byColumn;
+        }
+
+        /**
+         * Routes the references, as polylines of alternating x and y coordinates that start and
+         * end on the borders of the nodes. References are routed independently of each other, so
+         * with a pool they are routed in parallel, with the same result.
+         */
+        static int[][] route(DiagramGraph graph, int width, int height, ForkJoinPool pool) {
+            OrthogonalRouter grid = new OrthogonalRouter(graph, width, height);
+            int[][] routes = new int[graph.references.size()][];
+            if (pool == null) {
+                for (int reference = 0; reference < routes.length; reference++) {
+                    routes[reference] = grid.route(reference);
+                }
+            } else {
+                pool.invoke(new RouteTask(grid, routes, 0, routes.length));
+            }
+            return routes;
+        }
+
+        /**
+         * Connects the sides of the two nodes of {@code reference} facing each other, horizontally
+         * unless the nodes overlap in x.
+         */
+        private int[] route(int reference) {
+            int source = graph.references.source(reference);
+            int target = graph.references.targets[reference];
+            int exit;
+            int entry;
+            if (graph.x[target] >= graph.right(source)) {
+                exit = entry = RIGHT;
+            } else if (graph.right(target) <= graph.x[source]) {
+                exit = entry = LEFT;
+            } else if (graph.isAbove(source, target)) {
+                exit = entry = DOWN;
+            } else if (graph.isAbove(target, source)) {
+                exit = entry = UP;
+            } else {
+                // Overlapping nodes, typically an edge from a node to itself: around the corner
+                exit = RIGHT;
+                entry = DOWN;
+            }
+            int targetSide = entry ^ 2;
+            int startColumn = sideColumn(source, exit);
+            int startRow = sideRow(source, exit);
+            int goalColumn = sideColumn(target, targetSide);
+            int goalRow = sideRow(target, targetSide);
+
+            pointCount = 0;
+            addPoint(exit == RIGHT ? graph.right(source) : exit == LEFT ? graph.x[source] : center(startColumn),
+                    exit == DOWN ? graph.bottom(source) : exit == UP ? graph.y[source] : center(startRow));
+            int goal = search(startColumn, startRow, exit, goalColumn, goalRow);
+            boolean horizontalExit = (exit & 1) == 0;
+            boolean horizontalEntry = (entry & 1) == 0;
+            if (goal >= 0) {
+                addPath(goal);
+            } else if (horizontalExit != horizontalEntry
+                    || !addChannel(startColumn, startRow, goalColumn, goalRow, horizontalExit)) {
+                addPoint(center(startColumn), center(startRow));
+                if (horizontalExit && horizontalEntry) {
+                    int middle = (center(startColumn) + center(goalColumn)) / 2;
+                    addPoint(middle, center(startRow));
+                    addPoint(middle, center(goalRow));
+                } else if (!horizontalExit && !horizontalEntry) {
+                    int middle = (center(startRow) + center(goalRow)) / 2;
+                    addPoint(center(startColumn), middle);
+                    addPoint(center(goalColumn), middle);
+                } else if (horizontalExit) {
+                    addPoint(center(goalColumn), center(startRow));
+                } else {
+                    addPoint(center(startColumn), center(goalRow));
+                }
+                addPoint(center(goalColumn), center(goalRow));
+            }
+            addPoint(targetSide == RIGHT ? graph.right(target) : targetSide == LEFT ? graph.x[target] : center(goalColumn),
+                    targetSide == DOWN ? graph.bottom(target) : targetSide == UP ? graph.y[target] : center(goalRow));
+            if (pointCount == 1) {
+                addPoint(points[0] + 1, points[1]);
+            }
+            return Arrays.copyOf(points, 2 * pointCount);
+        }
+
+        /** Returns the table slot of the goal state, or -1 when the search gave up. */
+        private int search(int startColumn, int startRow, int exit, int goalColumn, int goalRow) {
+            minColumn = Math.max(0, Math.min(startColumn, goalColumn) - WINDOW_MARGIN);
+            maxColumn = Math.min(columns - 1, Math.max(startColumn, goalColumn) + WINDOW_MARGIN);
+            minRow = Math.max(0, Math.min(startRow, goalRow) - WINDOW_MARGIN);
+            maxRow = Math.min(rows - 1, Math.max(startRow, goalRow) + WINDOW_MARGIN);
+            generation++;
+            stateCount = 0;
+            heapSize = 0;
+
+            int start = state(startColumn, startRow, exit);
+            stateCost[start] = 0;
+            stateParent[start] = -1;
+            push(start, Math.abs(goalColumn - startColumn) + Math.abs(goalRow - startRow));
+            int expansions = 0;
+            while (heapSize > 0) {
+                int slot = pop();
+                if (stateClosed[slot]) {
+                    continue;
+                }
+                stateClosed[slot] = true;
+                long key = stateKeys[slot];
+                int direction = (int) (key & 3);
+                int column = (int) ((key >>> 2) % columns);
+                int row = (int) ((key >>> 2) / columns);
+                if (column == goalColumn && row == goalRow) {
+                    return slot;
+                }
+                if (++expansions > MAX_EXPANSIONS) {
+                    return -1;
+                }
+                // Straight on or a quarter turn either way, never back
+                for (int turn = -1; turn <= 1; turn++) {
+                    int next = (direction + turn) & 3;
+                    int nextColumn = column;
+                    int nextRow = row;
+                    if ((next & 1) == 0) {
+                        nextColumn = jump(byRow, columns, row, rows, column, next == RIGHT ? 1 : -1,
+                                next == RIGHT ? maxColumn : minColumn, goalColumn, row == goalRow);
+                    } else {
+                        nextRow = jump(byColumn, rows, column, columns, row, next == DOWN ? 1 : -1,
+                                next == DOWN ? maxRow : minRow, goalRow, column == goalColumn);
+                    }
+                    int distance = Math.abs(nextColumn - column) + Math.abs(nextRow - row);
+                    if (distance == 0) {
+                        continue;
+                    }
+                    int cost = stateCost[slot] + distance + (turn != 0 ? BEND_COST : 0);
+                    int nextSlot = state(nextColumn, nextRow, next);
+                    if (nextSlot < 0) {
+                        return -1;
+                    }
+                    if (!stateClosed[nextSlot] && cost < stateCost[nextSlot]) {
+                        stateCost[nextSlot] = cost;
+                        stateParent[nextSlot] = slot;
+                        push(nextSlot, cost + Math.abs(goalColumn - nextColumn) + Math.abs(goalRow - nextRow));
+                    }
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Adds the shortest free route that leaves the start cell and enters the goal cell
+         * perpendicularly to {@code horizontal} ports, with a single run in between, trying the
+         * lines between the two cells first and then those ever further outside. This finds the
+         * channel between two rows of nodes that long edges typically follow, for which the search
+         * would have to stop at every node along the way.
+         */
+        private boolean addChannel(int startColumn, int startRow, int goalColumn, int goalRow, boolean horizontal) {
+            // In terms of rows for horizontal ports; columns and rows swap places for vertical ones
+            long[] along = horizontal ? byRow : byColumn;
+            long[] across = horizontal ? byColumn : byRow;
+            int length = horizontal ? columns : rows;
+            int width = horizontal ? rows : columns;
+            int start = horizontal ? startColumn : startRow;
+            int startLine = horizontal ? startRow : startColumn;
+            int goal = horizontal ? goalColumn : goalRow;
+            int goalLine = horizontal ? goalRow : goalColumn;
+            int low = Math.min(startLine, goalLine);
+            int high = Math.max(startLine, goalLine);
+            int first = Math.max(0, low - WINDOW_MARGIN);
+            int last = Math.min(width - 1, high + WINDOW_MARGIN);
+            for (int offset = 0; offset <= high - low + 2 * WINDOW_MARGIN; offset++) {
+                // low, low + 1, ... high, then alternately below low and beyond high
+                int line = offset <= high - low ? low + offset
+                        : (offset - (high - low)) % 2 == 1 ? low - (offset - (high - low) + 1) / 2
+                        : high + (offset - (high - low)) / 2;
+                if (line < first || line > last
+                        || !isFree(along, (long) line * length, start, goal)
+                        || !isFree(across, (long) start * width, startLine, line)
+                        || !isFree(across, (long) goal * width, line, goalLine)) {
+                    continue;
+                }
+                addPoint(center(startColumn), center(startRow));
+                if (horizontal) {
+                    addPoint(center(startColumn), center(line));
+                    addPoint(center(goalColumn), center(line));
+                } else {
+                    addPoint(center(line), center(startRow));
+                    addPoint(center(line), center(goalRow));
+                }
+                addPoint(center(goalColumn), center(goalRow));
+                return true;
+            }
+            return false;
+        }
+
+        /** Whether the cells {@code from} to {@code to}, in either order, of a line are all free. */
+        private static boolean isFree(long[] set, long line, int from, int to) {
+            int last = Math.max(from, to);
+            for (int position = Math.min(from, to); position <= last; position += 64) {
+                long cells = cells(set, line + position, 1);
+                if (last - position < 63) {
+                    cells &= (1L << (last - position + 1)) - 1;
+                }
+                if (cells != 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Moves from {@code from} along line {@code line} of {@code set} (a row of the row-major or
+         * a column of the column-major bit set) in direction {@code step} and returns where to stop:
+         * before the next occupied cell or {@code limit}, at the first cell where one of the two
+         * neighbouring lines changes between free and occupied, or at {@code goal}. The goal cell
+         * itself counts as free on the goal's line.
+         */
+        private static int jump(long[] set, int length, int line, int lines, int from, int step, int limit, int goal,
+                boolean goalLine) {
+            long base = (long) line * length;
+            long before = line > 0 ? base - length : -1;
+            long after = line < lines - 1 ? base + length : -1;
+            for (int position = from + step;; position += 64 * step) {
+                int remaining = (limit - position) * step + 1;
+                if (remaining <= 0) {
+                    return position - step;
+                }
+                long blocked = cells(set, base + position, step);
+                long turns = 0;
+                if (before >= 0) {
+                    turns |= ~cells(set, before + position, step) & cells(set, before + position - step, step);
+                }
+                if (after >= 0) {
+                    turns |= ~cells(set, after + position, step) & cells(set, after + position - step, step);
+                }
+                int toGoal = (goal - position) * step;
+                if (toGoal >= 0 && toGoal < 64) {
+                    turns |= 1L << toGoal;
+                    if (goalLine) {
+                        blocked &= ~(1L << toGoal);
+                    }
+                }
+                if (remaining < 64) {
+                    blocked |= -1L << remaining;
+                }
+                int free = Long.numberOfTrailingZeros(blocked);
+                int turn = Long.numberOfTrailingZeros(turns);
+                if (turn < free) {
+                    return position + turn * step;
+                }
+                if (free < 64) {
+                    return position + (free - 1) * step;
+                }
+            }
+        }
+
+        /** The 64 bits of {@code set} from {@code index} on, towards higher or lower indices. */
+        private static long cells(long[] set, long index, int step) {
+            if (step < 0) {
+                return Long.reverse(cells(set, index - 63, 1));
+            }
+            int word = (int) (index >> 6);
+            int shift = (int) (index & 63);
+            long low = word >= 0 && word < set.length ? set[word] >>> shift : 0;
+            long high = shift != 0 && word + 1 >= 0 && word + 1 < set.length ? set[word + 1] << (64 - shift) : 0;
+            return low | high;
+        }
+
+        /** Adds the cells from the start state to {@code goal}, following the parents. */
+        private void addPath(int goal) {
+            int first = pointCount;
+            for (int slot = goal; slot >= 0; slot = stateParent[slot]) {
+                long cell = stateKeys[slot] >>> 2;
+                ensurePoints(pointCount + 1);
+                points[2 * pointCount] = center((int) (cell % columns));
+                points[2 * pointCount + 1] = center((int) (cell / columns));
+                pointCount++;
+            }
+            // Reverse into start to goal order, then drop the points that are not bends
+            for (int i = first, j = pointCount - 1; i < j; i++, j--) {
+                swap(2 * i, 2 * j);
+                swap(2 * i + 1, 2 * j + 1);
+            }
+            int end = pointCount;
+            pointCount = first;
+            for (int i = first; i < end; i++) {
+                addPoint(points[2 * i], points[2 * i + 1]);
+            }
+        }
+
+        /** Appends a point, replacing the last one when it lies on the segment towards the new one. */
+        private void addPoint(int x, int y) {
+            if (pointCount > 0 && points[2 * pointCount - 2] == x && points[2 * pointCount - 1] == y) {
+                return;
+            }
+            if (pointCount > 1) {
+                int px = points[2 * pointCount - 4];
+                int py = points[2 * pointCount - 3];
+                int lx = points[2 * pointCount - 2];
+                int ly = points[2 * pointCount - 1];
+                if ((px == lx && lx == x) || (py == ly && ly == y)) {
+                    pointCount--;
+                }
+            }
+            ensurePoints(pointCount + 1);
+            points[2 * pointCount] = x;
+            points[2 * pointCount + 1] = y;
+            pointCount++;
+        }
+
+        private void ensurePoints(int count) {
+            if (2 * count > points.length) {
+                points = Arrays.copyOf(points, Math.max(2 * count, 2 * points.length));
+            }
+        }
+
+        private void swap(int i, int j) {
+            int swap = points[i];
+            points[i] = points[j];
+            points[j] = swap;
+        }
+
+        /** The cell next to the middle of a side of {@code node}, outside of it. */
+        private int sideColumn(int node, int side) {
+            int column = side == RIGHT ? (graph.right(node) - 1) / cellSize + 1
+                    : side == LEFT ? graph.x[node] / cellSize - 1
+                    : graph.centerX(node) / cellSize;
+            return Math.max(0, Math.min(columns - 1, column));
+        }
+
+        private int sideRow(int node, int side) {
+            int row = side == DOWN ? (graph.bottom(node) - 1) / cellSize + 1
+                    : side == UP ? graph.y[node] / cellSize - 1
+                    : graph.centerY(node) / cellSize;
+            return Math.max(0, Math.min(rows - 1, row));
+        }
+
+        private int center(int cell) {
+            return cell * cellSize + cellSize / 2;
+        }
+
+        /** The table slot of a state, added unvisited if new; -1 once the table is half full. */
+        private int state(int column, int row, int direction) {
+            long key = ((long) row * columns + column) << 2 | direction;
+            int mask = (1 << TABLE_BITS) - 1;
+            int slot = (int) ((key * 0x9E3779B97F4A7C15L) >>> (64 - TABLE_BITS));
+            while (stateGeneration[slot] == generation) {
+                if (stateKeys[slot] == key) {
+                    return slot;
+                }
+                slot = (slot + 1) & mask;
+            }
+            if (++stateCount > mask >> 1) {
+                return -1;
+            }
+            stateGeneration[slot] = generation;
+            stateKeys[slot] = key;
+            stateCost[slot] = Integer.MAX_VALUE;
+            stateClosed[slot] = false;
+            return slot;
+        }
+
+        /** Queues {@code slot}; ties go to the state closer to the goal. */
+        private void push(int slot, int priority) {
+            int remaining = priority - stateCost[slot];
+            long entry = (long) priority << 36 | (long) Math.min(remaining, (1 << 19) - 1) << TABLE_BITS | slot;
+            if (heapSize == heap.length) {
+                heap = Arrays.copyOf(heap, 2 * heap.length);
+            }
+            int i = heapSize++;
+            while (i > 0 && heap[(i - 1) >> 1] > entry) {
+                heap[i] = heap[(i - 1) >> 1];
+                i = (i - 1) >> 1;
+            }
+            heap[i] = entry;
+        }
+
+        private int pop() {
+            int slot = (int) (heap[0] & ((1 << TABLE_BITS) - 1));
+            long last = heap[--heapSize];
+            int i = 0;
+            while (2 * i + 1 < heapSize) {
+                int child = 2 * i + 1;
+                if (child + 1 < heapSize && heap[child + 1] < heap[child]) {
+                    child++;
+                }
+                if (heap[child] >= last) {
+                    break;
+                }
+                heap[i] = heap[child];
+                i = child;
+            }
+            heap[i] = last;
+            return slot;
+        }
+    }
+
+    /**
+     * Collects the references of a range of model nodes, split in halves down to ranges of
+     * {@link #NODES_PER_TASK} nodes, each with its own edge and proxy buffers.
+     */
+    private static final class CrossReferenceTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private static final int NODES_PER_TASK = 1024;
+
+        private final GraphBuilder builder;
+        private final int from;
+        private final int to;
+        private final EdgeTable.Builder edges = new EdgeTable.Builder();
+        private final List<ProxyReference> proxies = new ArrayList<>();
+        private CrossReferenceTask first;
+        private CrossReferenceTask second;
+
+        CrossReferenceTask(GraphBuilder builder, int from, int to) {
+            this.builder = builder;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (split()) {
+                invokeAll(first, second);
+            } else {
+                collectRange();
+            }
+        }
+
+        /** Collects the range on the calling thread, split into the same pieces as on a pool. */
+        void collect() {
+            if (split()) {
+                first.collect();
+                second.collect();
+            } else {
+                collectRange();
+            }
+        }
+
+        private boolean split() {
+            if (to - from <= NODES_PER_TASK) {
+                return false;
+            }
+            int middle = (from + to) >>> 1;
+            first = new CrossReferenceTask(builder, from, middle);
+            second = new CrossReferenceTask(builder, middle, to);
+            return true;
+        }
+
+        private void collectRange() {
+            for (int sourceNode = from; sourceNode < to; sourceNode++) {
+                ClassPlan plan = builder.plan(sourceNode);
+                if (plan == null) {
+                    continue; // a summary of omitted children
+                }
+                EObject source = builder.eObject(sourceNode);
+                for (EReference reference : plan.references()) {
+                    Object value = source.eGet(reference, false);
+                    if (value instanceof EObject target) {
+                        add(sourceNode, reference, target);
+                    } else if (value instanceof Collection<?> collection) {
+                        for (Object element : collection) {
+                            if (element instanceof EObject target) {
+                                add(sourceNode, reference, target);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        private void add(int sourceNode, EReference reference, EObject target) {
+            if (target.eIsProxy()) {
+                proxies.add(new ProxyReference(sourceNode, reference, target));
+                return;
+            }
+            int targetNode = builder.id(target);
+            if (targetNode >= 0) {
+                edges.add(sourceNode, targetNode, reference.getName());
+            }
+        }
+
+        /**
+         * Appends the edges of the range to {@code all}, in the order of the nodes, and those to the
+         * proxies of every piece after the piece's own edges. Proxies are resolved unless there are
+         * {@code proxyStubs} to point the edges at instead. Either way the edges end up grouped by
+         * their source when the graph is built.
+         */
+        void join(EdgeTable.Builder all, GraphBuilder builder, Map<String, Integer> proxyStubs) {
+            if (first != null) {
+                first.join(all, builder, proxyStubs);
+                second.join(all, builder, proxyStubs);
+                return;
+            }
+            all.addAll(edges);
+            for (ProxyReference proxy : proxies) {
+                int targetNode = proxyStubs != null
+                        ? proxyStubs.computeIfAbsent(((InternalEObject) proxy.proxy()).eProxyURI().toString(),
+                                _ -> createProxyStub(proxy.proxy(), builder))
+                        : builder.id(EcoreUtil.resolve(proxy.proxy(), builder.eObject(proxy.source())));
+                if (targetNode >= 0) {
+                    all.add(proxy.source(), targetNode, proxy.reference().getName());
+                }
+            }
+        }
+    }
+
+    private static final class MeasureTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private static final int NODES_PER_TASK = 2048;
+
+        private final DiagramGraph graph;
+        // The node numbers to measure, or null for all nodes
+        private final int[] nodes;
+        private final ThreadLocal<FontMetrics[]> metrics;
+        private final Detail detail;
+        private final int from;
+        private final int to;
+
+        MeasureTask(DiagramGraph graph, int[] nodes, ThreadLocal<FontMetrics[]> metrics, Detail detail, int from,
+                int to) {
+            this.graph = graph;
+            this.nodes = nodes;
+            this.metrics = metrics;
+            this.detail = detail;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > NODES_PER_TASK) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new MeasureTask(graph, nodes, metrics, detail, from, middle),
+                        new MeasureTask(graph, nodes, metrics, detail, middle, to));
+                return;
+            }
+            FontMetrics[] titleAndBody = metrics.get();
+            for (int i = from; i < to; i++) {
+                measureNode(graph, nodes == null ? i : nodes[i], titleAndBody[0], titleAndBody[1], detail);
+            }
+        }
+    }
+
+    private static final class RouteTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private static final int EDGES_PER_TASK = 1024;
+
+        private final OrthogonalRouter grid;
+        private final int[][] routes;
+        private final int from;
+        private final int to;
+
+        RouteTask(OrthogonalRouter grid, int[][] routes, int from, int to) {
+            this.grid = grid;
+            this.routes = routes;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > EDGES_PER_TASK) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new RouteTask(grid, routes, from, middle), new RouteTask(grid, routes, middle, to));
+                return;
+            }
+            OrthogonalRouter router = new OrthogonalRouter(grid);
+            for (int reference = from; reference < to; reference++) {
+                routes[reference] = router.route(reference);
+            }
+        }
+    }
+
+    /** Rasterizes a range of tiles, splitting it in halves until a single tile is left. */
+    private static final class TileTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final BufferedImage image;
+        private final DiagramScene scene;
+        private final List<Rectangle> tiles;
+        private final int from;
+        private final int to;
+
+        TileTask(BufferedImage image, DiagramScene scene, List<Rectangle> tiles, int from, int to) {
+            this.image = image;
+            this.scene = scene;
+            this.tiles = tiles;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new TileTask(image, scene, tiles, from, middle), new TileTask(image, scene, tiles, middle, to));
+                return;
+            }
+            Rectangle tile = tiles.get(from);
+            // The subimage shares the image's pixels; tiles never overlap, so no locking is needed
+            paintRegion(image.getSubimage(tile.x, tile.y, tile.width, tile.height), scene, 1.0, tile.x, tile.y);
+        }
+    }
+
+    /**
+     * Edges of one paint call, collected into a path per style: solid containment lines, dashed
+     * reference lines and filled arrowheads. Painting a batch costs a few draw and fill calls
+     * however many edges it holds; the non-zero winding rule keeps overlapping arrowheads filled.
+     */
+    private static final class EdgeBatch {
+        private final Path2D.Float lines = new Path2D.Float(Path2D.WIND_NON_ZERO);
+        private final Path2D.Float dashedLines = new Path2D.Float(Path2D.WIND_NON_ZERO);
+        private final Path2D.Float arrowHeads = new Path2D.Float(Path2D.WIND_NON_ZERO);
+        private final Polygon shape = new Polygon();
+
+        void addContainment(DiagramGraph graph, int child) {
+            int parent = graph.parents[child];
+            add(lines, graph.centerX(parent), graph.bottom(parent), graph.centerX(child), graph.y[child]);
+        }
+
+        void addReference(int[] route) {
+            dashedLines.moveTo(route[0], route[1]);
+            for (int i = 2; i < route.length; i += 2) {
+                dashedLines.lineTo(route[i], route[i + 1]);
+            }
+            int n = route.length;
+            addArrowHead(route[n - 4], route[n - 3], route[n - 2], route[n - 1]);
+        }
+
+        void paint(Graphics2D g, Color color) {
+            g.setColor(color);
+            g.setStroke(EDGE_STROKE);
+            g.draw(lines);
+            g.fill(arrowHeads);
+            g.setStroke(DASHED_EDGE_STROKE);
+            g.draw(dashedLines);
+        }
+
+        void reset() {
+            lines.reset();
+            dashedLines.reset();
+            arrowHeads.reset();
+        }
+
+        private void add(Path2D.Float path, int x1, int y1, int x2, int y2) {
+            path.moveTo(x1, y1);
+            path.lineTo(x2, y2);
+            addArrowHead(x1, y1, x2, y2);
+        }
+
+        private void addArrowHead(int x1, int y1, int x2, int y2) {
+            arrowHead(x1, y1, x2, y2, shape);
+            arrowHeads.moveTo(shape.xpoints[0], shape.ypoints[0]);
+            for (int i = 1; i < shape.npoints; i++) {
+                arrowHeads.lineTo(shape.xpoints[i], shape.ypoints[i]);
+            }
+            arrowHeads.closePath();
+        }
+    }
+
+    /** A tile of a pyramid level: {@code region} of the diagram magnified by {@code scale}, written to {@code file}. */
+    private record PyramidTile(double scale, File file, Rectangle region) {
+    }
+
+    /** Renders and writes a range of pyramid tiles, splitting it in halves until a single tile is left. */
+    private static final class PyramidTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final DiagramScene scene;
+        private final List<PyramidTile> tiles;
+        private final int from;
+        private final int to;
+
+        PyramidTask(DiagramScene scene, List<PyramidTile> tiles, int from, int to) {
+            this.scene = scene;
+            this.tiles = tiles;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new PyramidTask(scene, tiles, from, middle), new PyramidTask(scene, tiles, middle, to));
+                return;
+            }
+            try {
+                writePyramidTile(scene, tiles.get(from));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * Widths of strings per font and rendering context. Repeated strings are answered from a
+     * bounded map; new strings made of ASCII characters are summed from a per-font advance table,
+     * which gives exactly {@link FontMetrics#stringWidth} as long as fractional metrics are off
+     * (advances are whole pixels then). Everything else falls back to the font metrics. Safe for
+     * concurrent use.
+     */
+    private static final class TextWidthCache {
+        private static final int MAX_STRINGS_PER_FONT = 1 << 16;
+
+        private final Map<FontKey, FontWidths> fonts = new ConcurrentHashMap<>();
+        private final LongAdder hits = new LongAdder();
+        private final LongAdder summed = new LongAdder();
+        private final LongAdder measured = new LongAdder();
+
+        int width(FontMetrics metrics, String text) {
+            FontWidths widths = fonts.computeIfAbsent(new FontKey(metrics.getFont(), metrics.getFontRenderContext()),
+                    key -> new FontWidths(metrics));
+            Integer cached = widths.strings.get(text);
+            if (cached != null) {
+                hits.increment();
+                return cached;
+            }
+            int width = widths.sumAscii(text);
+            if (width >= 0) {
+                summed.increment();
+            } else {
+                width = metrics.stringWidth(text);
+                measured.increment();
+            }
+            // Once full, the map keeps serving the strings it has; new ones are still summed cheaply
+            if (widths.strings.size() < MAX_STRINGS_PER_FONT) {
+                widths.strings.put(text, width);
+            }
+            return width;
+        }
+
+        String statistics() {
+            long hitCount = hits.sum();
+            long total = hitCount + summed.sum() + measured.sum();
+            return String.format(Locale.ROOT,
+                    "Text width cache: %d lookups, %d hits (%.1f%%), %d summed from advance tables, %d measured, %d fonts",
+                    total, hitCount, total == 0 ? 0.0 : 100.0 * hitCount / total, summed.sum(), measured.sum(),
+                    fonts.size());
+        }
+
+        private record FontKey(Font font, FontRenderContext context) {
+        }
+
+        private static final class FontWidths {
+            final Map<String, Integer> strings = new ConcurrentHashMap<>();
+            // Advances of the characters below 128, or null when they are not whole pixels
+            final int[] ascii;
+
+            FontWidths(FontMetrics metrics) {
+                if (metrics.getFontRenderContext().usesFractionalMetrics() || metrics.getFont().hasLayoutAttributes()) {
+                    ascii = null;
+                } else {
+                    ascii = new int[128];
+                    for (char c = 0; c < ascii.length; c++) {
+                        ascii[c] = metrics.charWidth(c);
+                    }
+                }
+            }
+
+            /** Returns the width of {@code text}, or -1 if it contains characters outside the table. */
+            int sumAscii(String text) {
+                if (ascii == null) {
+                    return -1;
+                }
+                int width = 0;
+                for (int i = 0; i < text.length(); i++) {
+                    char c = text.charAt(i);
+                    if (c >= ascii.length) {
+                        return -1;
+                    }
+                    width += ascii[c];
+                }
+                return width;
+            }
+        }
+    }
+
+    /** How much of each node is rendered, from most to least. */
+    public enum Detail {
+        /** Title, attribute lines and edge labels. */
+        FULL,
+        /** Titles and edge labels; attribute lines are not measured. */
+        TITLE,
+        /** Colored boxes and edges only. */
+        BOX;
+
+        static Detail forNodeCount(int nodes) {
+            return nodes <= FULL_DETAIL_NODE_LIMIT ? FULL : nodes <= TITLE_DETAIL_NODE_LIMIT ? TITLE : BOX;
+        }
+    }
+
+    /** How references are drawn between their nodes. */
+    public enum EdgeRouting {
+        /** A straight line from the right side of the source to the left side of the target. */
+        STRAIGHT,
+        /** Horizontal and vertical segments around the nodes in the way. */
+        ORTHOGONAL
+    }
+
+    /** Options for {@link XmiVisualizer#render(File, File, File, File, RenderOptions)}. */
+    public static final class RenderOptions {
+        private int threads = Runtime.getRuntime().availableProcessors();
+        private int tileHeight = DEFAULT_TILE_HEIGHT;
+        private boolean pyramid;
+        private int pyramidTileSize = DEFAULT_PYRAMID_TILE_SIZE;
+        private Detail detail;
+        private double rootAspectRatio;
+        private boolean layoutCache;
+        private EdgeRouting edgeRouting = EdgeRouting.STRAIGHT;
+        private boolean resolveProxies = true;
+        private int maxChildren = Integer.MAX_VALUE;
+        private final Map<String, Integer> referenceMaxChildren = new HashMap<>();
+        private int maxValueElements = DEFAULT_MAX_VALUE_ELEMENTS;
+        private int maxValueLength = DEFAULT_MAX_VALUE_LENGTH;
+        private int wrapLength = DEFAULT_WRAP_LENGTH;
+
+        private RenderOptions() {
+        }
+
+        public static RenderOptions defaults() {
+            return new RenderOptions();
+        }
+
+        /**
+         * Number of threads that rasterize tiles concurrently; {@code 1} paints on the calling
+         * thread. The output does not depend on this setting.
+         */
+        public RenderOptions threads(int threads) {
+            if (threads < 1) {
+                throw new IllegalArgumentException("Thread count must be positive: " + threads);
+            }
+            this.threads = threads;
+            return this;
+        }
+
+        public RenderOptions tileHeight(int tileHeight) {
+            if (tileHeight < 1) {
+                throw new IllegalArgumentException("Tile height must be positive: " + tileHeight);
+            }
+            this.tileHeight = tileHeight;
+            return this;
+        }
+
+        /**
+         * Writes a multi-resolution tile pyramid into the diagram output, which is then a
+         * directory, instead of a single image.
+         */
+        public RenderOptions pyramid(boolean pyramid) {
+            this.pyramid = pyramid;
+            return this;
+        }
+
+        public RenderOptions pyramidTileSize(int pyramidTileSize) {
+            if (pyramidTileSize < 1) {
+                throw new IllegalArgumentException("Pyramid tile size must be positive: " + pyramidTileSize);
+            }
+            this.pyramidTileSize = pyramidTileSize;
+            return this;
+        }
+
+        /**
+         * Fixes the level of detail; {@code null} (the default) chooses it from the number of
+         * nodes. Raster output additionally drops text that would be too small to read at the
+         * scale of a pyramid level.
+         */
+        public RenderOptions detail(Detail detail) {
+            this.detail = detail;
+            return this;
+        }
+
+        /**
+         * Width-to-height ratio the containment trees are packed to when there are several of them,
+         * tallest first; {@code 0}, the default, lines them up in a single row in model order
+         * instead.
+         */
+        public RenderOptions rootAspectRatio(double rootAspectRatio) {
+            if (!(rootAspectRatio >= 0) || Double.isInfinite(rootAspectRatio)) {
+                throw new IllegalArgumentException("Root aspect ratio must not be negative: " + rootAspectRatio);
+            }
+            this.rootAspectRatio = rootAspectRatio;
+            return this;
+        }
+
+        /**
+         * Keeps the measured sizes and positions of the containment trees in a file next to the
+         * diagram ({@code <diagram>.layout}), so that rendering an updated model again only
+         * measures and lays out the trees that changed. Off by default.
+         */
+        public RenderOptions layoutCache(boolean layoutCache) {
+            this.layoutCache = layoutCache;
+            return this;
+        }
+
+        /**
+         * How references are drawn; {@link EdgeRouting#STRAIGHT} by default.
+         * {@link EdgeRouting#ORTHOGONAL} routes them around the nodes in the way.
+         */
+        public RenderOptions edgeRouting(EdgeRouting edgeRouting) {
+            this.edgeRouting = Objects.requireNonNull(edgeRouting, "edgeRouting");
+            return this;
+        }
+
+        /**
+         * Whether references to objects in other resources are followed, loading those resources
+         * into the resource set. Without it, each object that is not in the model file is drawn as
+         * a stub titled with its URI, so time and memory only depend on the model file.
+         */
+        public RenderOptions resolveProxies(boolean resolveProxies) {
+            this.resolveProxies = resolveProxies;
+            return this;
+        }
+
+        /**
+         * Largest number of children shown per containment of a model element; the others are
+         * summed up in one node, such as {@code +9,990 more Order}, and never read. Unlimited by
+         * default.
+         */
+        public RenderOptions maxChildren(int maxChildren) {
+            if (maxChildren < 0) {
+                throw new IllegalArgumentException("Child limit must not be negative: " + maxChildren);
+            }
+            this.maxChildren = maxChildren;
+            return this;
+        }
+
+        /**
+         * Overrides {@link #maxChildren(int)} for one containment, named {@code Class.reference}
+         * after the class of the elements that contain the children, e.g. {@code Consumer.orders}.
+         */
+        public RenderOptions maxChildren(String reference, int maxChildren) {
+            Objects.requireNonNull(reference, "reference");
+            if (maxChildren < 0) {
+                throw new IllegalArgumentException("Child limit must not be negative: " + maxChildren);
+            }
+            referenceMaxChildren.put(reference, maxChildren);
+            return this;
+        }
+
+        int maxChildren(EClass eClass, EReference reference) {
+            return referenceMaxChildren.getOrDefault(eClass.getName() + "." + reference.getName(), maxChildren);
+        }
+
+        /**
+         * Largest number of values of a multi-valued attribute that are shown; a longer list ends
+         * in an ellipsis and the number of values.
+         */
+        public RenderOptions maxValueElements(int maxValueElements) {
+            if (maxValueElements < 1) {
+                throw new IllegalArgumentException("Value limit must be positive: " + maxValueElements);
+            }
+            this.maxValueElements = maxValueElements;
+            return this;
+        }
+
+        /** Length after which an attribute value is cut off with an ellipsis. */
+        public RenderOptions maxValueLength(int maxValueLength) {
+            if (maxValueLength < 1) {
+                throw new IllegalArgumentException("Value length must be positive: " + maxValueLength);
+            }
+            this.maxValueLength = maxValueLength;
+            return this;
+        }
+
+        /**
+         * Length in characters above which attribute lines are broken, preferably at a space, into
+         * indented continuation lines; {@code 0} never breaks them.
+         */
+        public RenderOptions wrapLength(int wrapLength) {
+            if (wrapLength != 0 && wrapLength <= WRAP_INDENT.length()) {
+                throw new IllegalArgumentException("Wrap length must be 0 or above " + WRAP_INDENT.length() + ": " + wrapLength);
+            }
+            this.wrapLength = wrapLength;
+            return this;
+        }
+
+        void apply(String argument) {
+            int equals = argument.indexOf('=');
+            String name = equals == -1 ? argument.substring(2) : argument.substring(2, equals);
+            String value = equals == -1 ? "" : argument.substring(equals + 1);
+            switch (name) {
+                case "threads" -> threads(Integer.parseInt(value));
+                case "tile-height" -> tileHeight(Integer.parseInt(value));
+                case "detail" -> detail("auto".equals(value) ? null : Detail.valueOf(value.toUpperCase(Locale.ROOT)));
+                case "pyramid" -> pyramid(true);
+                case "pyramid-tile-size" -> pyramidTileSize(Integer.parseInt(value));
+                case "pack" -> rootAspectRatio(PACKED_ROOT_ASPECT_RATIO);
+                case "root-aspect" -> rootAspectRatio(parseRatio(value));
+                case "layout-cache" -> layoutCache(true);
+                case "routing" -> edgeRouting(EdgeRouting.valueOf(value.toUpperCase(Locale.ROOT)));
+                case "no-resolve" -> resolveProxies(false);
+                case "max-children" -> {
+                    int separator = value.lastIndexOf('=');
+                    if (separator == -1) {
+                        maxChildren(Integer.parseInt(value));
+                    } else {
+                        maxChildren(value.substring(0, separator), Integer.parseInt(value.substring(separator + 1)));
+                    }
+                }
+                case "max-values" -> maxValueElements(Integer.parseInt(value));
+                case "max-value-length" -> maxValueLength(Integer.parseInt(value));
+                case "wrap" -> wrapLength(Integer.parseInt(value));
+                default -> throw new IllegalArgumentException("Unknown option: " + argument);
+            }
+        }
+
+        /** Parses {@code row} as 0, a fraction such as {@code 16/9}, or a plain number. */
+        private static double parseRatio(String value) {
+            if ("row".equals(value)) {
+                return 0;
+            }
+            int slash = value.indexOf('/');
+            return slash == -1 ? Double.parseDouble(value)
+                    : Double.parseDouble(value.substring(0, slash)) / Double.parseDouble(value.substring(slash + 1));
         }
     }
 }